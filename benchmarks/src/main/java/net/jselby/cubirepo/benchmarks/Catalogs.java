@@ -0,0 +1,52 @@
+package net.jselby.cubirepo.benchmarks;
+
+import net.jselby.cubirepo.Resource;
+import net.jselby.cubirepo.ResourceRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Catalogs generates registries of fake resources for the benchmarks to work on. Catalogs are
+ * deterministic, so runs can be compared with each other.
+ *
+ * @author j_selby
+ */
+final class Catalogs {
+    private Catalogs() {}
+
+    /**
+     * Generates a catalog. Every resource has 10 versions, and resources are spread over up to
+     * 100 authors.
+     *
+     * @param size The amount of resources to generate.
+     * @return The resources.
+     */
+    static List<Resource> generate(int size) {
+        List<Resource> resources = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Resource resource = new Resource();
+            resource.setAuthor("author" + (i / 10) % 100);
+            resource.setName("resource" + i / 10);
+            resource.setVersion("1." + i % 10);
+            resource.setType("jar");
+            resource.setMainClass("net.cubition.example.Resource" + i / 10);
+            resources.add(resource);
+        }
+        return resources;
+    }
+
+    /**
+     * Generates a catalog, and adds it to a new registry.
+     *
+     * @param size The amount of resources to generate.
+     * @return The registry.
+     */
+    static ResourceRegistry registry(int size) {
+        ResourceRegistry registry = new ResourceRegistry();
+        for (Resource resource : generate(size)) {
+            registry.add(resource);
+        }
+        return registry;
+    }
+}
@@ -0,0 +1,116 @@
+package net.jselby.cubirepo.benchmarks;
+
+import net.jselby.cubirepo.ArtifactCache;
+import net.jselby.cubirepo.Resource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the download path for artifacts of different sizes: reading the whole file into the
+ * heap through getContents(), as CubiRepo used to, against transferring the file to the socket
+ * and serving it from the memory cache. The "socket" copies everything written to it into a
+ * scratch buffer, much like a socket copies into the kernel, and then drops it.
+ *
+ * @author j_selby
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownloadBenchmark {
+    @Param({"1024", "1048576", "16777216"})
+    private int size;
+
+    private Resource resource;
+    private ArtifactCache cache;
+    private final WritableByteChannel sink = new DiscardingChannel();
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] contents = new byte[size];
+        new Random(42).nextBytes(contents);
+
+        resource = new Resource();
+        resource.setAuthor("benchmark");
+        resource.setName("download");
+        resource.setVersion(Integer.toString(size));
+        resource.setType("jar");
+        resource.setContents(contents);
+
+        // Files are only cached on their second request
+        cache = new ArtifactCache(256L * 1024 * 1024);
+        cache.get(resource.getFile());
+        cache.get(resource.getFile());
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.invalidate(resource.getFile());
+        resource.releaseContents();
+    }
+
+    @Benchmark
+    public byte[] getContents() {
+        return resource.getContents();
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        try (FileChannel channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, sink);
+            }
+            return position;
+        }
+    }
+
+    @Benchmark
+    public long memoryCache() throws IOException {
+        ByteBuffer buffer = cache.get(resource.getFile());
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += sink.write(buffer);
+        }
+        return written;
+    }
+
+    /**
+     * A channel which copies everything into a scratch buffer, and drops it.
+     */
+    static class DiscardingChannel implements WritableByteChannel {
+        private final ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            while (src.hasRemaining()) {
+                scratch.clear();
+                int chunk = Math.min(scratch.remaining(), src.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + chunk);
+                scratch.put(slice);
+                src.position(src.position() + chunk);
+            }
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,74 @@
+package net.jselby.cubirepo.benchmarks;
+
+import net.jselby.cubirepo.JenkinsMirror;
+import net.jselby.cubirepo.JenkinsResource;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Jenkins resource against a local stub: polling for an unchanged build, and
+ * downloading the mirrored server through getContents().
+ *
+ * @author j_selby
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JenkinsBenchmark {
+    @Param({"1048576", "16777216"})
+    private int size;
+
+    private JenkinsStub stub;
+    private File directory;
+    private JenkinsMirror mirror;
+    private JenkinsResource resource;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        byte[] artifact = new byte[size];
+        new Random(42).nextBytes(artifact);
+        // A build number per size, so a mirror left behind by another run is never reused
+        stub = new JenkinsStub(size, artifact);
+
+        directory = Files.createTempDirectory("cubirepo-jenkins").toFile();
+        mirror = new JenkinsMirror(stub.getProjectUrl(), directory);
+        mirror.refresh();
+
+        JenkinsResource.setProjectUrl(stub.getProjectUrl());
+        resource = new JenkinsResource();
+        resource.startMirroring(3600, build -> {});
+        long deadline = System.currentTimeMillis() + 60 * 1000;
+        while (resource.getSize() != size) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Jenkins stub was never mirrored");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        stub.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public JenkinsMirror.Build poll() {
+        mirror.refresh();
+        return mirror.getBuild();
+    }
+
+    @Benchmark
+    public byte[] getContents() {
+        return resource.getContents();
+    }
+}
@@ -0,0 +1,119 @@
+package net.jselby.cubirepo.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The JenkinsStub is a local stand-in for the parts of the Jenkins JSON API which CubiRepo uses,
+ * serving a single project whose last stable build has one server artifact.
+ *
+ * @author j_selby
+ */
+public class JenkinsStub implements AutoCloseable {
+    private final HttpServer server;
+    private final AtomicLong requests = new AtomicLong();
+
+    private volatile int buildNumber;
+    private volatile byte[] artifact;
+
+    /**
+     * Starts a stub on a free local port.
+     *
+     * @param buildNumber The number of the last stable build.
+     * @param artifact The contents of the server artifact.
+     * @throws IOException If the server could not be started.
+     */
+    public JenkinsStub(int buildNumber, byte[] artifact) throws IOException {
+        this.buildNumber = buildNumber;
+        this.artifact = artifact;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/job/Cubition/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Jenkins stub");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    /**
+     * Returns the project URL, to be passed to CubiRepo.
+     *
+     * @return The JSON API URL of the stubbed project.
+     */
+    public URL getProjectUrl() {
+        try {
+            return new URL(getBaseUrl() + "api/json");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Publishes a new build.
+     *
+     * @param buildNumber The number of the new build.
+     * @param artifact The contents of its server artifact.
+     */
+    public void publish(int buildNumber, byte[] artifact) {
+        this.artifact = artifact;
+        this.buildNumber = buildNumber;
+    }
+
+    /**
+     * Returns how many requests the stub has answered.
+     *
+     * @return The amount of requests.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/job/Cubition/";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+        int number = buildNumber;
+        String build = "/job/Cubition/" + number + "/";
+
+        byte[] body;
+        String type = "application/json";
+        if (path.equals("/job/Cubition/api/json")) {
+            body = ("{\"lastStableBuild\":{\"number\":" + number + ",\"url\":\"" + getBaseUrl() + number + "/\"}}")
+                    .getBytes(StandardCharsets.UTF_8);
+        } else if (path.equals(build + "api/json")) {
+            body = "{\"artifacts\":[{\"fileName\":\"server.jar\"}]}".getBytes(StandardCharsets.UTF_8);
+        } else if (path.equals(build + "artifact/out/server.jar")) {
+            body = artifact;
+            type = "application/octet-stream";
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
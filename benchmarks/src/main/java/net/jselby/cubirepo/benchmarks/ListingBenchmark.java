@@ -0,0 +1,55 @@
+package net.jselby.cubirepo.benchmarks;
+
+import com.google.gson.Gson;
+import net.jselby.cubirepo.CatalogListing;
+import net.jselby.cubirepo.Resource;
+import net.jselby.cubirepo.ResourceRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the listing served at /: serializing the whole catalog with Gson on every
+ * request, as CubiRepo used to, against rebuilding the cached snapshot after a change, and
+ * serving an unchanged snapshot.
+ *
+ * @author j_selby
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListingBenchmark {
+    @Param({"100", "10000", "100000"})
+    private int size;
+
+    private final Gson gson = new Gson();
+    private ResourceRegistry registry;
+    private CatalogListing listing;
+
+    @Setup
+    public void setup() {
+        registry = Catalogs.registry(size);
+        listing = new CatalogListing(registry, gson);
+    }
+
+    @Benchmark
+    public String serialize() {
+        List<Resource> resources = registry.getAll();
+        return gson.toJson(resources.toArray(new Resource[resources.size()]));
+    }
+
+    @Benchmark
+    public List<Resource> rebuildSnapshot() {
+        registry.touch();
+        return listing.getAll();
+    }
+
+    @Benchmark
+    public List<Resource> cachedSnapshot() {
+        return listing.getAll();
+    }
+}
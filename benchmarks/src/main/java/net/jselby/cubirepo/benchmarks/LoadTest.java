@@ -0,0 +1,347 @@
+package net.jselby.cubirepo.benchmarks;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import net.jselby.cubirepo.CubiRepo;
+import net.jselby.cubirepo.Histogram;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The LoadTest starts CubiRepo in this JVM, on a free port and mirroring a local Jenkins stub,
+ * and drives it with a mix of downloads, metadata fetches, listings and uploads from many
+ * clients. Once done, it reports throughput, latency percentiles and errors per operation, along
+ * with heap and GC statistics (which include the server, as it runs in the same JVM).
+ *
+ * CubiRepo keeps its files in the working directory, so run this from a scratch directory:
+ *
+ *     java -cp target/benchmarks.jar net.jselby.cubirepo.benchmarks.LoadTest --clients 64
+ *
+ * @author j_selby
+ */
+public class LoadTest {
+    private static final String PASSWORD = "load-test";
+
+    @Parameter(names = "--help", help = true)
+    private boolean showHelp;
+
+    @Parameter(names = "--clients", description = "Sets the amount of concurrent clients")
+    private int clients = 32;
+
+    @Parameter(names = "--warmup", description = "Sets how long to run before measuring, in seconds")
+    private int warmup = 5;
+
+    @Parameter(names = "--duration", description = "Sets how long to measure for, in seconds")
+    private int duration = 30;
+
+    @Parameter(names = "--resources", description = "Sets how many resources are uploaded before the test")
+    private int resourceCount = 50;
+
+    @Parameter(names = "--artifact-size", description = "Sets the size of uploaded artifacts, in kilobytes")
+    private int artifactSize = 256;
+
+    @Parameter(names = "--server-size", description = "Sets the size of the server build served by the Jenkins stub, in kilobytes")
+    private int serverSize = 4096;
+
+    @Parameter(names = "--downloads", description = "Sets the weight of resource downloads in the mix")
+    private int downloadWeight = 60;
+
+    @Parameter(names = "--server-downloads", description = "Sets the weight of server (Jenkins) downloads in the mix")
+    private int serverDownloadWeight = 5;
+
+    @Parameter(names = "--metadata", description = "Sets the weight of JSON metadata fetches in the mix")
+    private int metadataWeight = 20;
+
+    @Parameter(names = "--listings", description = "Sets the weight of listings in the mix")
+    private int listingWeight = 13;
+
+    @Parameter(names = "--uploads", description = "Sets the weight of uploads in the mix")
+    private int uploadWeight = 2;
+
+    private String baseUrl;
+    private String session;
+    private byte[] artifact;
+    private final AtomicInteger uploads = new AtomicInteger();
+
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    /**
+     * One kind of request in the mix.
+     */
+    private enum Operation {
+        DOWNLOAD, SERVER_DOWNLOAD, METADATA, LISTING, UPLOAD
+    }
+
+    /**
+     * Counts for a single operation, only updated while measuring.
+     */
+    private static class Stats {
+        private final Histogram latency = new Histogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+    }
+
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        JCommander commander = new JCommander(test);
+        commander.setProgramName("LoadTest");
+        commander.parse(args);
+
+        if (test.showHelp) {
+            commander.usage();
+            return;
+        }
+
+        test.run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+
+        byte[] server = new byte[serverSize * 1024];
+        new Random(1).nextBytes(server);
+        artifact = new byte[artifactSize * 1024];
+        new Random(2).nextBytes(artifact);
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        baseUrl = "http://127.0.0.1:" + port;
+
+        try (JenkinsStub stub = new JenkinsStub(1, server)) {
+            CubiRepo.main(new String[]{"--port", Integer.toString(port), "--password", PASSWORD,
+                    "--jenkins-url", stub.getProjectUrl().toString(), "--access-log-file", "logs/load-test.log"});
+            awaitStartup();
+
+            session = login();
+            for (int i = 0; i < resourceCount; i++) {
+                upload("load", "resource" + i, "1.0");
+            }
+            System.out.println("Uploaded " + resourceCount + " resources, starting " + clients + " clients");
+
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                Thread thread = new Thread(this::client, "Load test client " + i);
+                thread.start();
+                threads.add(thread);
+            }
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+            long[] gcBefore = gcTotals();
+            measuring = true;
+            long start = System.nanoTime();
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+            measuring = false;
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long[] gcAfter = gcTotals();
+
+            running = false;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            report(elapsed, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], stub.getRequests());
+        }
+    }
+
+    private void client() {
+        int[] weights = {downloadWeight, serverDownloadWeight, metadataWeight, listingWeight, uploadWeight};
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            int pick = random.nextInt(total);
+            Operation operation = Operation.values()[0];
+            for (int i = 0; i < weights.length; i++) {
+                if (pick < weights[i]) {
+                    operation = Operation.values()[i];
+                    break;
+                }
+                pick -= weights[i];
+            }
+
+            long start = System.nanoTime();
+            long bytes = -1;
+            try {
+                bytes = execute(operation, random);
+            } catch (IOException e) {
+                // Counted as an error below
+            }
+
+            if (measuring) {
+                Stats counts = stats.get(operation);
+                counts.latency.record((System.nanoTime() - start) / 1000);
+                if (bytes < 0) {
+                    counts.errors.increment();
+                } else {
+                    counts.bytes.add(bytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs a single request.
+     *
+     * @return The amount of bytes received, or -1 if the request failed.
+     */
+    private long execute(Operation operation, ThreadLocalRandom random) throws IOException {
+        String name = "resource" + random.nextInt(resourceCount);
+        switch (operation) {
+            case DOWNLOAD:
+                return get("/load/" + name + "/" + name + "_1.0.jar", false);
+            case SERVER_DOWNLOAD:
+                return get("/cubition/server/server_latest.jar", false);
+            case METADATA:
+                return get("/load/" + name + "/" + name + "_1.0.json", true);
+            case LISTING:
+                return get("/?noRedirect", true);
+            case UPLOAD:
+                return upload("load-uploads", "upload" + uploads.incrementAndGet(), "1.0") ? artifact.length : -1;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    private long get(String path, boolean gzip) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        if (gzip) {
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+
+        int status = connection.getResponseCode();
+        long read = drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        return status == 200 ? read : -1;
+    }
+
+    private boolean upload(String author, String name, String version) throws IOException {
+        String boundary = "----CubiRepoLoadTest" + System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/upload/?author=" + author
+                + "&name=" + name + "&version=" + version).openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Cookie", session);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+
+        byte[] head = ("--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\""
+                + name + ".jar\"\r\nContent-Type: application/java-archive\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        connection.setFixedLengthStreamingMode(head.length + artifact.length + tail.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(head);
+            out.write(artifact);
+            out.write(tail);
+        }
+
+        int status = connection.getResponseCode();
+        drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        return status == 200;
+    }
+
+    private String login() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/login/?password=" + PASSWORD).openConnection();
+        drain(connection.getInputStream());
+        String cookie = connection.getHeaderField("Set-Cookie");
+        if (cookie == null) {
+            throw new IOException("Login did not return a session");
+        }
+        return cookie.split(";", 2)[0];
+    }
+
+    private void awaitStartup() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                if (get("/info/", false) >= 0) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("CubiRepo did not start");
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        if (in == null) {
+            return 0;
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream stream = in) {
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    private static long[] gcTotals() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return new long[]{count, time};
+    }
+
+    private void report(double elapsed, long collections, long collectionTime, long jenkinsRequests) {
+        System.out.println();
+        System.out.printf("%-16s %10s %10s %8s %9s %9s %9s %9s %10s%n", "operation", "requests", "req/s",
+                "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "MB/s");
+
+        long totalRequests = 0;
+        long totalErrors = 0;
+        for (Operation operation : Operation.values()) {
+            Stats counts = stats.get(operation);
+            long requests = counts.latency.getCount();
+            totalRequests += requests;
+            totalErrors += counts.errors.sum();
+
+            System.out.printf("%-16s %10d %10.1f %8d %9.2f %9.2f %9.2f %9.2f %10.1f%n",
+                    operation.name().toLowerCase(), requests, requests / elapsed, counts.errors.sum(),
+                    counts.latency.getValueAtPercentile(50) / 1000.0,
+                    counts.latency.getValueAtPercentile(90) / 1000.0,
+                    counts.latency.getValueAtPercentile(99) / 1000.0,
+                    counts.latency.getValueAtPercentile(99.9) / 1000.0,
+                    counts.bytes.sum() / elapsed / (1024 * 1024));
+        }
+
+        System.out.printf("%ntotal: %d requests in %.1f s, %.1f req/s, %.2f%% errors%n", totalRequests, elapsed,
+                totalRequests / elapsed, totalRequests == 0 ? 0 : 100.0 * totalErrors / totalRequests);
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        System.out.printf("heap: %d MB used, %d MB committed, %d MB max%n", heap.getUsed() >> 20,
+                heap.getCommitted() >> 20, heap.getMax() >> 20);
+        System.out.printf("gc: %d collections, %d ms (%.2f%% of the run)%n", collections, collectionTime,
+                100.0 * collectionTime / (elapsed * 1000));
+        System.out.println("jenkins stub: " + jenkinsRequests + " requests");
+    }
+}
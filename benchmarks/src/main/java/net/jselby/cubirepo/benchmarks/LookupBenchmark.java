@@ -0,0 +1,79 @@
+package net.jselby.cubirepo.benchmarks;
+
+import net.jselby.cubirepo.Resource;
+import net.jselby.cubirepo.ResourceRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares finding a resource for a download by scanning the whole catalog, as CubiRepo used to,
+ * with the indexed ResourceRegistry, and resolving the newest version in a range.
+ *
+ * @author j_selby
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+    @Param({"100", "10000", "1000000"})
+    private int size;
+
+    private List<Resource> resources;
+    private ResourceRegistry registry;
+    private String[][] keys;
+    private int next;
+
+    @Setup
+    public void setup() {
+        resources = Catalogs.generate(size);
+        registry = new ResourceRegistry();
+        for (Resource resource : resources) {
+            registry.add(resource);
+        }
+
+        // Requests come in with whatever case the client used
+        Random random = new Random(42);
+        keys = new String[1024][];
+        for (int i = 0; i < keys.length; i++) {
+            Resource resource = resources.get(random.nextInt(size));
+            keys[i] = new String[]{resource.getAuthor().toUpperCase(), resource.getName(), resource.getVersion()};
+        }
+    }
+
+    @Benchmark
+    public Resource scan() {
+        String[] key = keys[next++ & (keys.length - 1)];
+        for (Resource resource : resources) {
+            if (resource.getName().equalsIgnoreCase(key[1])
+                    && resource.getAuthor().equalsIgnoreCase(key[0])
+                    && resource.getVersion().equalsIgnoreCase(key[2])) {
+                return resource;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public Resource registry() {
+        String[] key = keys[next++ & (keys.length - 1)];
+        return registry.get(key[0], key[1], key[2]);
+    }
+
+    @Benchmark
+    public Resource latest() {
+        String[] key = keys[next++ & (keys.length - 1)];
+        return registry.resolve(key[0], key[1], "latest-stable");
+    }
+
+    @Benchmark
+    public Resource range() {
+        String[] key = keys[next++ & (keys.length - 1)];
+        return registry.resolve(key[0], key[1], "[1.0,1.5)");
+    }
+}
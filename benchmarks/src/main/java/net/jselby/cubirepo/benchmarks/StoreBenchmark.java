@@ -0,0 +1,97 @@
+package net.jselby.cubirepo.benchmarks;
+
+import net.jselby.cubirepo.MetadataStore;
+import net.jselby.cubirepo.Resource;
+import net.jselby.cubirepo.ResourceRegistry;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares persisting the catalog as a serialized list in cubirepo.dat, as CubiRepo used to on
+ * every change, with the snapshot and journal of the MetadataStore.
+ *
+ * @author j_selby
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+    @Param({"100", "10000", "100000"})
+    private int size;
+
+    private File directory;
+    private File legacyFile;
+    private File snapshotDirectory;
+    private ArrayList<Resource> resources;
+    private MetadataStore store;
+    private MetadataStore journal;
+    private Resource added;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("cubirepo-store").toFile();
+        legacyFile = new File(directory, "cubirepo.dat");
+
+        ResourceRegistry registry = Catalogs.registry(size);
+        resources = new ArrayList<>(registry.getAll());
+        legacySave();
+
+        snapshotDirectory = new File(directory, "snapshot");
+        snapshotDirectory.mkdirs();
+        store = new MetadataStore(registry, snapshotDirectory, Integer.MAX_VALUE);
+        store.compact();
+
+        File journalDirectory = new File(directory, "journal");
+        journalDirectory.mkdirs();
+        journal = new MetadataStore(new ResourceRegistry(), journalDirectory, Integer.MAX_VALUE);
+        added = Catalogs.generate(1).get(0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        journal.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void legacySave() throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(legacyFile))) {
+            out.writeObject(resources);
+        }
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<Resource> legacyLoad() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(legacyFile))) {
+            return (List<Resource>) in.readObject();
+        }
+    }
+
+    @Benchmark
+    public void snapshotSave() throws IOException {
+        store.compact();
+    }
+
+    @Benchmark
+    public ResourceRegistry snapshotLoad() throws IOException {
+        ResourceRegistry registry = new ResourceRegistry();
+        new MetadataStore(registry, snapshotDirectory, Integer.MAX_VALUE).load();
+        return registry;
+    }
+
+    @Benchmark
+    public void journalAppend() throws IOException {
+        journal.add(added);
+    }
+}
@@ -0,0 +1,314 @@
+package net.jselby.cubirepo;
+
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The AccessLog records requests as JSON lines, without making requests wait on the disk.
+ *
+ * Request threads only claim a slot in a fixed size ring buffer and store their entry there; a
+ * single background thread formats entries and writes them out. Once the buffer is mostly full,
+ * only errors and a sample of successful requests are kept, and when it is full entries are
+ * dropped. Dropped entries are counted, and the count is written to the log. Files are rotated
+ * once they grow past a size limit.
+ *
+ * @author j_selby
+ */
+public class AccessLog {
+    static final int CAPACITY = 8192;
+    private static final int HIGH_WATER_MARK = CAPACITY * 3 / 4;
+    /**
+     * One in this many successful requests is kept while the buffer is above the high water mark.
+     */
+    private static final int SAMPLE_RATE = 16;
+    private static final int ROTATIONS = 5;
+
+    private final File file;
+    private final long maxSize;
+
+    private final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * A single line of the log.
+     */
+    private static class Entry {
+        private final long time;
+        private final String method;
+        private final String path;
+        private final int status;
+        private final long bytes;
+        private final long latencyMicros;
+        private final String remote;
+        private final String event;
+
+        private Entry(long time, String method, String path, int status, long bytes, long latencyMicros,
+                      String remote, String event) {
+            this.time = time;
+            this.method = method;
+            this.path = path;
+            this.status = status;
+            this.bytes = bytes;
+            this.latencyMicros = latencyMicros;
+            this.remote = remote;
+            this.event = event;
+        }
+    }
+
+    /**
+     * Creates a new log, and starts writing to it.
+     *
+     * @param file The file to write to. Rotated files get a .1 to .5 suffix.
+     * @param maxSize The size in bytes after which the file is rotated.
+     */
+    public AccessLog(File file, long maxSize) {
+        this(file, maxSize, true);
+    }
+
+    /**
+     * Creates a new log, optionally without writing anything yet, so entries build up in the buffer.
+     */
+    AccessLog(File file, long maxSize, boolean start) {
+        this.file = file;
+        this.maxSize = maxSize;
+
+        writer = new Thread(this::drain, "Access log writer");
+        writer.setDaemon(true);
+        if (start) {
+            writer.start();
+        }
+    }
+
+    /**
+     * Records a finished request.
+     *
+     * @param req The request.
+     * @param res The response to the request.
+     * @param status The status code the request was answered with.
+     * @param pendingBytes Body bytes that will be written after this call, on top of what has
+     *                     already been written to the response.
+     * @param latency How long the request took, in microseconds.
+     */
+    public void record(Request req, Response res, int status, long pendingBytes, long latency) {
+        boolean error = status >= 400;
+        if (!error && head.get() - tail.get() >= HIGH_WATER_MARK
+                && sampled.incrementAndGet() % SAMPLE_RATE != 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        offer(new Entry(System.currentTimeMillis(), req.requestMethod(), req.pathInfo(), status,
+                getWritten(res.raw()) + pendingBytes, latency, req.raw().getRemoteAddr(), null));
+    }
+
+    /**
+     * Records something which happened outside of the normal request flow, such as an upload.
+     *
+     * @param message The message to log.
+     */
+    public void event(String message) {
+        offer(new Entry(System.currentTimeMillis(), null, null, 0, 0, 0, null, message));
+    }
+
+    /**
+     * Returns how many entries have been dropped or sampled away because the writer fell behind.
+     *
+     * @return The amount of dropped entries.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the writer, after it has written everything that was already logged.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void offer(Entry entry) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail.get() >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        ring.lazySet((int) (sequence & (CAPACITY - 1)), entry);
+    }
+
+    private void drain() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+
+        Writer out = null;
+        long size = 0;
+        while (true) {
+            long sequence = tail.get();
+            int index = (int) (sequence & (CAPACITY - 1));
+            Entry entry = sequence < head.get() ? ring.get(index) : null;
+
+            if (entry == null) {
+                // Nothing left, or a producer has claimed the slot but not filled it in yet
+                long drops = dropped.get();
+                try {
+                    if (drops != reportedDrops && out != null) {
+                        line.setLength(0);
+                        line.append("{\"time\":\"").append(format.format(new Date())).append("\",\"dropped\":")
+                                .append(drops - reportedDrops).append("}\n");
+                        out.write(line.toString());
+                        size += line.length();
+                        reportedDrops = drops;
+                    }
+                    if (out != null) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to write access log: " + e);
+                    out = close(out);
+                }
+
+                if (!running && sequence >= head.get()) {
+                    close(out);
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+
+            ring.lazySet(index, null);
+            tail.lazySet(sequence + 1);
+
+            line.setLength(0);
+            line.append("{\"time\":\"").append(format.format(new Date(entry.time))).append('"');
+            if (entry.event != null) {
+                line.append(",\"event\":");
+                appendString(line, entry.event);
+            } else {
+                line.append(",\"method\":");
+                appendString(line, entry.method);
+                line.append(",\"path\":");
+                appendString(line, entry.path);
+                line.append(",\"status\":").append(entry.status)
+                        .append(",\"bytes\":").append(entry.bytes)
+                        .append(",\"latencyMicros\":").append(entry.latencyMicros)
+                        .append(",\"remote\":");
+                appendString(line, entry.remote);
+            }
+            line.append("}\n");
+
+            try {
+                if (out == null || size >= maxSize) {
+                    close(out);
+                    if (out != null) {
+                        rotate();
+                    }
+                    out = open();
+                    size = file.length();
+                }
+                out.write(line.toString());
+                size += line.length();
+            } catch (IOException e) {
+                System.err.println("Failed to write access log: " + e);
+                out = close(out);
+            }
+        }
+    }
+
+    private Writer open() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory " + parent.getPath());
+        }
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private void rotate() {
+        new File(file.getPath() + "." + ROTATIONS).delete();
+        for (int i = ROTATIONS - 1; i >= 1; i--) {
+            File rotated = new File(file.getPath() + "." + i);
+            if (rotated.exists()) {
+                rotated.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        if (!file.renameTo(new File(file.getPath() + ".1"))) {
+            System.err.println("Failed to rotate access log " + file.getPath());
+        }
+    }
+
+    private static Writer close(Writer out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close access log: " + e);
+            }
+        }
+        return null;
+    }
+
+    private static void appendString(StringBuilder line, String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * Returns how many body bytes have been written to a response so far.
+     *
+     * @param response The response.
+     * @return The amount of bytes written, or 0 if this is unknown.
+     */
+    static long getWritten(ServletResponse response) {
+        while (response instanceof HttpServletResponseWrapper) {
+            response = ((HttpServletResponseWrapper) response).getResponse();
+        }
+        if (response instanceof org.eclipse.jetty.server.Response) {
+            return ((org.eclipse.jetty.server.Response) response).getHttpOutput().getWritten();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,189 @@
+package net.jselby.cubirepo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ArtifactCache keeps the contents of frequently downloaded files in off-heap memory.
+ *
+ * The cache is bounded by a byte budget, and evicts the least recently used files first. A file is
+ * only cached on its second request, so one-off downloads don't push out popular artifacts, and
+ * files larger than a quarter of the budget are never cached. Cached files are expected to be
+ * immutable (blobs are addressed by their contents), so entries only need to be invalidated once
+ * their file is deleted.
+ *
+ * @author j_selby
+ */
+public class ArtifactCache {
+    /**
+     * How many files which have been requested once are remembered.
+     */
+    private static final int MAX_CANDIDATES = 4096;
+
+    private final long budget;
+    private final long maxEntrySize;
+
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> candidates = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+    private long used;
+
+    private final SingleFlight<String, ByteBuffer> loads = new SingleFlight<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param budget The maximum amount of bytes to keep in memory. 0 disables the cache.
+     */
+    public ArtifactCache(long budget) {
+        this.budget = budget;
+        this.maxEntrySize = budget / 4;
+    }
+
+    /**
+     * Returns the cached contents of a file, loading them if the file is popular enough.
+     *
+     * @param file The file to fetch.
+     * @return A read-only buffer over the whole file, or null if the file should be read from disk.
+     */
+    public ByteBuffer get(File file) {
+        if (budget <= 0) {
+            return null;
+        }
+
+        String key = file.getPath();
+        synchronized (this) {
+            ByteBuffer cached = entries.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.duplicate();
+            }
+
+            misses.incrementAndGet();
+            if (file.length() > maxEntrySize) {
+                return null;
+            }
+            if (candidates.get(key) == null) {
+                // First request: remember it, but don't cache it yet
+                candidates.put(key, Boolean.TRUE);
+                return null;
+            }
+        }
+
+        // Concurrent misses on the same file share a single read. The file stays a candidate
+        // until it has been loaded, so requests arriving meanwhile join the read too.
+        ByteBuffer loaded;
+        try {
+            loaded = loads.load(key, () -> {
+                ByteBuffer buffer = load(file);
+                synchronized (this) {
+                    candidates.remove(key);
+                    if (buffer != null) {
+                        ByteBuffer previous = entries.put(key, buffer);
+                        if (previous != null) {
+                            used -= previous.capacity();
+                        }
+                        used += buffer.capacity();
+                        evict();
+                    }
+                }
+                return buffer;
+            });
+        } catch (IOException e) {
+            return null;
+        }
+        return loaded == null ? null : loaded.duplicate();
+    }
+
+    /**
+     * Drops a file from the cache.
+     *
+     * @param file The file to drop.
+     */
+    public synchronized void invalidate(File file) {
+        if (file == null) {
+            return;
+        }
+
+        String key = file.getPath();
+        candidates.remove(key);
+        ByteBuffer removed = entries.remove(key);
+        if (removed != null) {
+            used -= removed.capacity();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns how many requests shared the load of a file with a concurrent request.
+     *
+     * @return The amount of shared loads.
+     */
+    public long getSharedLoads() {
+        return loads.getShared();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    private ByteBuffer load(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > maxEntrySize) {
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    // The file shrunk underneath us
+                    return null;
+                }
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void evict() {
+        Iterator<ByteBuffer> iterator = entries.values().iterator();
+        while (used > budget && iterator.hasNext()) {
+            used -= iterator.next().capacity();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
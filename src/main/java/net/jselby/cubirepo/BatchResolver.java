@@ -0,0 +1,333 @@
+package net.jselby.cubirepo;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The BatchResolver answers requests for many resources at once, so a launcher with dozens of
+ * dependencies needs a single round trip instead of two per dependency.
+ *
+ * Requests carry a JSON array of coordinates, either as objects ({"author", "name", "version"})
+ * or as "author/name/version" strings, where the version may also be a range (see VersionRange).
+ * Resolving returns the metadata of every resource found, along with the coordinates which
+ * weren't. Bundling streams the contents of every resource back as a single zip archive, with
+ * entries at the same paths they are downloaded from.
+ *
+ * @author j_selby
+ */
+public class BatchResolver {
+    /**
+     * The largest request body accepted, in bytes.
+     */
+    public static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+    /**
+     * The most coordinates a single request may ask for.
+     */
+    public static final int MAX_COORDINATES = 256;
+
+    private final ResourceRegistry registry;
+    private final Gson gson;
+
+    /**
+     * The outcome of looking up a batch of coordinates.
+     */
+    private static class Batch {
+        private final Map<String, Resource> found = new LinkedHashMap<>();
+        private final JsonArray missing = new JsonArray();
+    }
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param registry The registry to look resources up in.
+     * @param gson The Gson instance to serialize resources with.
+     */
+    public BatchResolver(ResourceRegistry registry, Gson gson) {
+        this.registry = registry;
+        this.gson = gson;
+    }
+
+    /**
+     * Sends the metadata of every requested resource, as {"resources": [...], "missing": [...]}.
+     * Resources are listed in the order they were asked for, each with the path it can be
+     * downloaded from as "url".
+     *
+     * @param req The request being answered.
+     * @param res The response to write to.
+     * @return The status code of the response, 400 if the request is malformed, or 413 if it is
+     *         too large.
+     * @throws IOException If the response could not be written.
+     */
+    public int resolve(Request req, Response res) throws IOException {
+        String body = readBody(req);
+        if (body == null) {
+            return 413;
+        }
+        Batch batch = lookup(body);
+        if (batch == null) {
+            return 400;
+        }
+
+        JsonArray resources = new JsonArray();
+        for (Resource resource : batch.found.values()) {
+            JsonObject element = gson.toJsonTree(resource).getAsJsonObject();
+            element.addProperty("url", "/" + getPath(resource));
+            resources.add(element);
+        }
+
+        JsonObject result = new JsonObject();
+        result.add("resources", resources);
+        result.add("missing", batch.missing);
+        Compression.sendText(req, res, "application/json", gson.toJson(result));
+        return 200;
+    }
+
+    /**
+     * Sends the contents of every requested resource as a zip archive. Nothing is sent unless all
+     * of them exist; otherwise, the missing coordinates are sent as JSON with a 404. If an
+     * executor is given, the archive is written from there with the request in async mode.
+     *
+     * @param req The request being answered.
+     * @param res The response to write to.
+     * @param executor The executor to write the archive from, or null to write it on this thread.
+     * @param scheduler The scheduler to send the archive through, or null.
+     * @return The status code of the response, 400 if the request is malformed, 404 if resources
+     *         are missing, 413 if it is too large, or 503 if some contents haven't been fetched yet
+     *         or the scheduler turned it away.
+     * @throws IOException If the response could not be written.
+     */
+    public int bundle(Request req, Response res, Executor executor, DownloadScheduler scheduler) throws IOException {
+        String body = readBody(req);
+        if (body == null) {
+            return 413;
+        }
+        Batch batch = lookup(body);
+        if (batch == null) {
+            return 400;
+        }
+
+        List<Resource> resources = new ArrayList<>(batch.found.values());
+        List<ResourceSender.Sendable> snapshots = new ArrayList<>(resources.size());
+        for (Resource resource : resources) {
+            ResourceSender.Sendable snapshot = resource.snapshot();
+            snapshots.add(snapshot);
+            File file = snapshot.getFile();
+            if (file != null && !file.isFile()) {
+                batch.missing.add(toCoordinate(resource.getAuthor(), resource.getName(), resource.getVersion()));
+            }
+        }
+        if (batch.missing.size() > 0) {
+            JsonObject result = new JsonObject();
+            result.add("missing", batch.missing);
+            res.status(404);
+            Compression.sendText(req, res, "application/json", gson.toJson(result));
+            return 404;
+        }
+
+        long size = 0;
+        for (ResourceSender.Sendable snapshot : snapshots) {
+            if (snapshot.getFile() == null) {
+                // Such as the Jenkins build, before it has been mirrored
+                res.header("Retry-After", "60");
+                return 503;
+            }
+            size += snapshot.getSize();
+        }
+        DownloadScheduler.Ticket ticket = scheduler == null ? DownloadScheduler.UNLIMITED
+                : scheduler.enter(req.ip(), size);
+        if (ticket == null) {
+            return 503;
+        }
+
+        HttpServletResponse raw = res.raw();
+        raw.setStatus(200);
+        raw.setContentType("application/zip");
+        raw.setHeader("Content-Disposition", "attachment; filename=\"bundle.zip\"");
+
+        if (executor == null) {
+            try {
+                ticket.await();
+                writeArchive(resources, snapshots, raw, ticket);
+            } finally {
+                ticket.close();
+            }
+            return 200;
+        }
+
+        AsyncContext async;
+        try {
+            raw.flushBuffer();
+            async = req.raw().startAsync();
+            async.setTimeout(0);
+        } catch (IOException | RuntimeException e) {
+            ticket.close();
+            throw e;
+        }
+        Runnable write = () -> {
+            try {
+                writeArchive(resources, snapshots, raw, ticket);
+            } catch (IOException e) {
+                // The client went away
+            } finally {
+                ticket.close();
+                async.complete();
+            }
+        };
+        // Queued bundles are only handed to a worker once they are let in
+        ticket.whenReady(() -> {
+            try {
+                executor.execute(write);
+            } catch (RejectedExecutionException e) {
+                write.run();
+            }
+        });
+        return 200;
+    }
+
+    /**
+     * Returns the path a resource is downloaded from, relative to the root of the repository.
+     *
+     * @param resource The resource.
+     * @return The path, in the form author/name/name_version.type.
+     */
+    public static String getPath(Resource resource) {
+        String name = resource.getName().toLowerCase(Locale.ROOT);
+        return resource.getAuthor().toLowerCase(Locale.ROOT) + "/" + name + "/" + name + "_"
+                + resource.getVersion().toLowerCase(Locale.ROOT) + "." + resource.getType().toLowerCase(Locale.ROOT);
+    }
+
+    private static void writeArchive(List<Resource> resources, List<ResourceSender.Sendable> snapshots,
+                                     HttpServletResponse raw, DownloadScheduler.Ticket ticket) throws IOException {
+        OutputStream out = new BufferedOutputStream(
+                Channels.newOutputStream(ticket.wrap(Channels.newChannel(raw.getOutputStream()))), 64 * 1024);
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            // Artifacts are mostly jars, which are compressed already
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            for (int i = 0; i < resources.size(); i++) {
+                Resource resource = resources.get(i);
+                ResourceSender.Sendable snapshot = snapshots.get(i);
+                ZipEntry entry = new ZipEntry(getPath(resource));
+                if (snapshot.getLastModified() > 0) {
+                    entry.setTime(snapshot.getLastModified());
+                }
+                zip.putNextEntry(entry);
+
+                Files.copy(snapshot.getFile().toPath(), zip);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Reads the body of a request, stopping one byte past the limit. Bodies sent without a length,
+     * such as chunked ones, are only ever read that far, rather than into memory whole.
+     *
+     * @return The body, or null if it is too large.
+     */
+    private static String readBody(Request req) throws IOException {
+        if (req.raw().getContentLength() > MAX_REQUEST_SIZE) {
+            return null;
+        }
+        InputStream in = new BoundedInputStream(UploadSessions.getBody(req.raw()), MAX_REQUEST_SIZE + 1);
+        byte[] body = IOUtils.toByteArray(in);
+        return body.length > MAX_REQUEST_SIZE ? null : new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a list of coordinates, and looks each of them up. Duplicates are only listed once.
+     *
+     * @return The outcome, or null if the list is malformed or too long.
+     */
+    private Batch lookup(String body) {
+        JsonArray coordinates;
+        try {
+            JsonElement parsed = new JsonParser().parse(body);
+            if (!parsed.isJsonArray()) {
+                return null;
+            }
+            coordinates = parsed.getAsJsonArray();
+        } catch (JsonParseException e) {
+            return null;
+        }
+        if (coordinates.size() > MAX_COORDINATES) {
+            return null;
+        }
+
+        Batch batch = new Batch();
+        for (JsonElement coordinate : coordinates) {
+            String author;
+            String name;
+            String version;
+            if (coordinate.isJsonPrimitive()) {
+                String[] parts = coordinate.getAsString().split("/");
+                if (parts.length != 3) {
+                    return null;
+                }
+                author = parts[0];
+                name = parts[1];
+                version = parts[2];
+            } else if (coordinate.isJsonObject()) {
+                JsonObject object = coordinate.getAsJsonObject();
+                author = getString(object, "author");
+                name = getString(object, "name");
+                version = getString(object, "version");
+                if (author == null || name == null || version == null) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+
+            Resource resource = registry.resolve(author, name, version);
+            if (resource == null) {
+                batch.missing.add(toCoordinate(author, name, version));
+            } else {
+                batch.found.put(getPath(resource), resource);
+            }
+        }
+        return batch;
+    }
+
+    private static String getString(JsonObject object, String key) {
+        JsonElement element = object.get(key);
+        return element == null || !element.isJsonPrimitive() ? null : element.getAsString();
+    }
+
+    private static JsonObject toCoordinate(String author, String name, String version) {
+        JsonObject coordinate = new JsonObject();
+        coordinate.addProperty("author", author);
+        coordinate.addProperty("name", name);
+        coordinate.addProperty("version", version);
+        return coordinate;
+    }
+}
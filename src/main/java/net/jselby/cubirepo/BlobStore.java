@@ -0,0 +1,273 @@
+package net.jselby.cubirepo;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The BlobStore holds the contents of resources on disk, addressed by their SHA-256 hash.
+ *
+ * Blobs are sharded into subdirectories by the first bytes of their hash
+ * (cache/blobs/ab/cd/abcd...), and identical contents are only ever stored once. Resources hold
+ * references to the blobs they use, and a blob is deleted once nothing references it.
+ *
+ * New blobs also get a gzip compressed copy (abcd....gz) in the background, where that saves
+ * space, so compressed downloads never have to compress anything per request.
+ *
+ * @author j_selby
+ */
+public class BlobStore {
+    private static final BlobStore INSTANCE = new BlobStore(new File("cache", "blobs"));
+
+    private final File directory;
+    private final Map<String, Integer> references = new HashMap<>();
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Blob compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a new store.
+     *
+     * @param directory The directory to store blobs in.
+     */
+    public BlobStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the store used for the contents of resources.
+     *
+     * @return The shared BlobStore.
+     */
+    public static BlobStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the file where a blob is, or would be, stored.
+     *
+     * @param hash The hash of the blob.
+     * @return The file for that blob.
+     */
+    public File getFile(String hash) {
+        return new File(directory, hash.substring(0, 2) + File.separator + hash.substring(2, 4)
+                + File.separator + hash);
+    }
+
+    /**
+     * Returns the gzip compressed copy of a blob.
+     *
+     * @param hash The hash of the blob.
+     * @return The compressed file, or null if there is no compressed copy.
+     */
+    public File getCompressedFile(String hash) {
+        File file = getCompressedPath(hash);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Checks if a blob is stored.
+     *
+     * @param hash The hash of the blob.
+     * @return If the blob exists on disk.
+     */
+    public boolean contains(String hash) {
+        return getFile(hash).isFile();
+    }
+
+    /**
+     * Returns the directory blobs are stored in.
+     *
+     * @return The root directory of the store.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Moves a blob, and drops its compressed copy, so it is no longer served. The blob is kept in
+     * another directory rather than deleted, so it can be looked at later. References to the blob
+     * are kept, so storing the same contents again restores it.
+     *
+     * @param hash The hash of the blob.
+     * @param target The directory to move the blob into.
+     * @param onlyUnreferenced Leaves the blob alone if anything references it.
+     * @return If the blob was moved.
+     * @throws IOException If the blob could not be moved.
+     */
+    public synchronized boolean quarantine(String hash, File target, boolean onlyUnreferenced) throws IOException {
+        File file = getFile(hash);
+        if (!file.isFile() || (onlyUnreferenced && references.containsKey(hash))) {
+            return false;
+        }
+
+        if (!target.exists() && !target.mkdirs()) {
+            throw new IOException("Failed to create directory " + target.getPath());
+        }
+        Files.move(file.toPath(), new File(target, hash + "-" + System.currentTimeMillis()).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(getCompressedPath(hash).toPath());
+        return true;
+    }
+
+    /**
+     * Stores the contents of a stream. If a blob with the same contents already exists, nothing
+     * new is kept. The caller is given a reference to the blob, which must be released when no
+     * longer used.
+     *
+     * @param in The stream to read from. This is not closed.
+     * @return The hash of the contents.
+     * @throws IOException If the contents could not be stored.
+     */
+    public String put(InputStream in) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory.getPath());
+        }
+
+        File temp = File.createTempFile("upload", ".tmp", directory);
+        try {
+            MessageDigest digest = Hashes.newDigest();
+            try (OutputStream out = new FileOutputStream(temp)) {
+                IOUtils.copyLarge(new DigestInputStream(in, digest), out);
+            }
+
+            String hash = Hashes.toHex(digest.digest());
+            commit(temp, hash);
+            compressor.execute(() -> compress(hash));
+            return hash;
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Moves an existing file into the store. The caller is given a reference to the blob, which
+     * must be released when no longer used.
+     *
+     * @param file The file to move.
+     * @return The hash of the contents.
+     * @throws IOException If the file could not be stored.
+     */
+    public String put(File file) throws IOException {
+        return put(file, Hashes.hash(file));
+    }
+
+    /**
+     * Moves an existing file, whose hash has already been checked, into the store. The caller is
+     * given a reference to the blob, which must be released when no longer used.
+     *
+     * @param file The file to move.
+     * @param hash The hash of the contents of the file.
+     * @return The hash of the contents.
+     * @throws IOException If the file could not be stored.
+     */
+    public String put(File file, String hash) throws IOException {
+        commit(file, hash);
+        Files.deleteIfExists(file.toPath());
+        compressor.execute(() -> compress(hash));
+        return hash;
+    }
+
+    /**
+     * Adds a reference to a blob, so that it is kept until released.
+     *
+     * @param hash The hash of the blob.
+     */
+    public synchronized void retain(String hash) {
+        references.merge(hash, 1, Integer::sum);
+    }
+
+    /**
+     * Releases a reference to a blob. Once no references remain, the blob is deleted.
+     *
+     * @param hash The hash of the blob.
+     */
+    public synchronized void release(String hash) {
+        Integer count = references.get(hash);
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            references.put(hash, count - 1);
+        } else {
+            references.remove(hash);
+            delete(hash);
+        }
+    }
+
+    /**
+     * Returns how many references are held to a blob.
+     *
+     * @param hash The hash of the blob.
+     * @return The number of references.
+     */
+    public synchronized int getReferences(String hash) {
+        Integer count = references.get(hash);
+        return count == null ? 0 : count;
+    }
+
+    private synchronized void commit(File temp, String hash) throws IOException {
+        File target = getFile(hash);
+        if (!target.isFile()) {
+            File parent = target.getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Failed to create directory " + parent.getPath());
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Held under the same lock as release(), so the blob can't be collected before the
+        // caller has registered it
+        retain(hash);
+    }
+
+    private void compress(String hash) {
+        File compressed = getCompressedPath(hash);
+        if (compressed.isFile()) {
+            return;
+        }
+
+        try {
+            synchronized (this) {
+                // Don't resurrect a copy of a blob which has been collected in the meantime
+                if (!references.containsKey(hash)) {
+                    return;
+                }
+            }
+            if (Compression.gzip(getFile(hash), compressed)) {
+                synchronized (this) {
+                    if (!references.containsKey(hash)) {
+                        Files.deleteIfExists(compressed.toPath());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to compress blob " + hash + ": " + e);
+        }
+    }
+
+    private File getCompressedPath(String hash) {
+        File file = getFile(hash);
+        return new File(file.getParentFile(), file.getName() + ".gz");
+    }
+
+    private void delete(String hash) {
+        try {
+            Files.deleteIfExists(getFile(hash).toPath());
+            Files.deleteIfExists(getCompressedPath(hash).toPath());
+        } catch (IOException e) {
+            System.err.println("Failed to delete blob " + hash + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package net.jselby.cubirepo;
+
+import com.google.gson.Gson;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The CatalogListing produces the JSON listing of all resources served at /.
+ *
+ * The full listing is serialized (and gzipped) once per change to the registry, and served with an
+ * ETag, so polling clients cost next to nothing. Filtered and paginated listings are built from the
+ * registry's indexes on demand.
+ *
+ * @author j_selby
+ */
+public class CatalogListing {
+    private static final Comparator<Resource> ORDER = Comparator
+            .comparing((Resource resource) -> normalize(resource.getAuthor()))
+            .thenComparing(resource -> normalize(resource.getName()))
+            .thenComparing(resource -> normalize(resource.getVersion()), VersionComparator.INSTANCE);
+
+    private final ResourceRegistry registry;
+    private final Gson gson;
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * A serialized copy of the full listing.
+     */
+    private static class Snapshot {
+        private final long modifications;
+        private final List<Resource> resources;
+        private final byte[] json;
+        private final byte[] gzip;
+        private final String etag;
+        private final String gzipEtag;
+
+        private Snapshot(long modifications, List<Resource> resources, byte[] json) {
+            this.modifications = modifications;
+            this.resources = Collections.unmodifiableList(resources);
+            this.json = json;
+            this.gzip = Compression.gzip(json);
+            String tag = Hashes.hash(json).substring(0, 32);
+            this.etag = "\"" + tag + "\"";
+            // The gzipped listing is a separate representation, with its own tag
+            this.gzipEtag = "\"" + tag + "-gzip\"";
+        }
+    }
+
+    /**
+     * Creates a new listing.
+     *
+     * @param registry The registry to list.
+     * @param gson The Gson instance to serialize resources with.
+     */
+    public CatalogListing(ResourceRegistry registry, Gson gson) {
+        this.registry = registry;
+        this.gson = gson;
+    }
+
+    /**
+     * Sends the listing. The query parameters author, name and type filter the listing, and
+     * offset and limit select a page of it. The total amount of matches is sent as X-Total-Count.
+     *
+     * @param req The request being answered.
+     * @param res The response to write to.
+     * @return The status code of the response, 400 if offset or limit isn't a non-negative integer.
+     * @throws IOException If the response could not be written.
+     */
+    public int send(Request req, Response res) throws IOException {
+        String author = req.queryParams("author");
+        String name = req.queryParams("name");
+        String type = req.queryParams("type");
+        String offset = req.queryParams("offset");
+        String limit = req.queryParams("limit");
+
+        if (author == null && name == null && type == null && offset == null && limit == null) {
+            return sendFull(req, res);
+        }
+
+        long skip = parse(offset, 0);
+        long count = parse(limit, Long.MAX_VALUE);
+        if (skip < 0 || count < 0) {
+            return 400;
+        }
+
+        List<Resource> matches = filter(author, name, type);
+        matches.sort(ORDER);
+
+        int total = matches.size();
+        int from = (int) Math.min(skip, total);
+        int to = (int) Math.min(total - from, count) + from;
+
+        List<Resource> page = matches.subList(from, to);
+        res.header("X-Total-Count", Integer.toString(total));
+        Compression.sendText(req, res, "application/json",
+                gson.toJson(page.toArray(new Resource[page.size()])));
+        return 200;
+    }
+
+    /**
+     * Returns all resources, sorted by author, name and version.
+     *
+     * @return An unmodifiable sorted list.
+     */
+    public List<Resource> getAll() {
+        return getSnapshot().resources;
+    }
+
+    /**
+     * Searches for resources by author or name. A query of the form author/name finds all versions
+     * of that resource. Matching is exact, but case insensitive.
+     *
+     * @param query The query to search for.
+     * @return The matching resources, sorted by author, name and version.
+     */
+    public List<Resource> search(String query) {
+        Set<Resource> matches = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        int slash = query.indexOf('/');
+        if (slash != -1) {
+            matches.addAll(registry.getVariants(query.substring(0, slash).trim(), query.substring(slash + 1).trim()));
+        } else {
+            matches.addAll(registry.getByAuthor(query.trim()));
+            matches.addAll(registry.getByName(query.trim()));
+        }
+
+        List<Resource> sorted = new ArrayList<>(matches);
+        sorted.sort(ORDER);
+        return sorted;
+    }
+
+    private int sendFull(Request req, Response res) throws IOException {
+        Snapshot current = getSnapshot();
+
+        boolean gzip = Compression.acceptsGzip(req);
+        String etag = gzip ? current.gzipEtag : current.etag;
+
+        res.type("application/json");
+        res.header("Vary", "Accept-Encoding");
+        res.header("ETag", etag);
+
+        if (ResourceSender.isNotModified(req.headers("If-None-Match"), -1, etag, 0)) {
+            return 304;
+        }
+
+        byte[] body = current.json;
+        if (gzip) {
+            body = current.gzip;
+            res.header("Content-Encoding", "gzip");
+        }
+
+        res.raw().setContentLength(body.length);
+        OutputStream out = res.raw().getOutputStream();
+        out.write(body);
+        out.flush();
+        return 200;
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        long modifications = registry.getModificationCount();
+        if (current != null && current.modifications == modifications) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = snapshot;
+            modifications = registry.getModificationCount();
+            if (current == null || current.modifications != modifications) {
+                List<Resource> resources = registry.getAll();
+                resources.sort(ORDER);
+                byte[] json = gson.toJson(resources.toArray(new Resource[resources.size()]))
+                        .getBytes(StandardCharsets.UTF_8);
+                current = new Snapshot(modifications, resources, json);
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    private List<Resource> filter(String author, String name, String type) {
+        Collection<Resource> candidates;
+        if (author != null && name != null) {
+            candidates = registry.getVariants(author, name);
+        } else if (author != null) {
+            candidates = registry.getByAuthor(author);
+        } else if (name != null) {
+            candidates = registry.getByName(name);
+        } else {
+            candidates = registry.getAll();
+        }
+
+        List<Resource> matches = new ArrayList<>(candidates.size());
+        for (Resource resource : candidates) {
+            if (type == null || type.equalsIgnoreCase(resource.getType())) {
+                matches.add(resource);
+            }
+        }
+        return matches;
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Parses a count from a query parameter.
+     *
+     * @return The count, the fallback if the parameter is missing, or -1 if it isn't a count.
+     */
+    private static long parse(String value, long fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            long parsed = Long.parseLong(value);
+            return parsed < 0 ? -1 : parsed;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package net.jselby.cubirepo;
+
+import org.apache.commons.io.IOUtils;
+import spark.Request;
+import spark.Response;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression contains helpers for negotiating and producing gzip encoded responses.
+ *
+ * Only gzip is offered. Brotli would compress text slightly better, but there is no maintained
+ * pure Java encoder for it, and the native bindings would tie the server to particular platforms.
+ *
+ * @author j_selby
+ */
+public class Compression {
+    /**
+     * Responses smaller than this aren't worth compressing.
+     */
+    private static final int MINIMUM_SIZE = 1024;
+
+    /**
+     * Compressed copies are only kept if they are at most this fraction of the original size.
+     */
+    private static final double MAXIMUM_RATIO = 0.9;
+
+    private Compression() {}
+
+    /**
+     * Checks if a client accepts gzip encoded responses.
+     *
+     * @param req The request to check.
+     * @return If gzip is acceptable.
+     */
+    public static boolean acceptsGzip(Request req) {
+        return acceptsGzip(req.headers("Accept-Encoding"));
+    }
+
+    /**
+     * Checks if an Accept-Encoding header allows gzip. An explicit gzip entry takes precedence over
+     * a wildcard, whichever order they come in.
+     *
+     * @param header The value of the header, or null if it wasn't sent.
+     * @return If gzip is acceptable.
+     */
+    static boolean acceptsGzip(String header) {
+        if (header == null) {
+            return false;
+        }
+
+        double wildcard = 0;
+        for (String coding : header.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip")) {
+                return getQuality(parts) > 0;
+            } else if (name.equals("*")) {
+                wildcard = getQuality(parts);
+            }
+        }
+        return wildcard > 0;
+    }
+
+    /**
+     * Returns the q value of an Accept-Encoding entry, split on semicolons.
+     */
+    private static double getQuality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Compresses an array of bytes with gzip.
+     *
+     * @param data The data to compress.
+     * @return The compressed data.
+     */
+    public static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        } catch (IOException e) {
+            // Can't happen with an in-memory stream
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a gzip compressed copy of a file, if that saves enough space to be worth keeping.
+     *
+     * @param source The file to compress.
+     * @param target Where to write the compressed copy.
+     * @return If the compressed copy was kept.
+     * @throws IOException If the file could not be compressed.
+     */
+    public static boolean gzip(File source, File target) throws IOException {
+        if (source.length() < MINIMUM_SIZE) {
+            return false;
+        }
+
+        File temp = File.createTempFile("compress", ".tmp", target.getParentFile());
+        try {
+            try (InputStream in = new FileInputStream(source);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 64 * 1024)) {
+                IOUtils.copyLarge(in, out);
+            }
+
+            if (temp.length() > source.length() * MAXIMUM_RATIO) {
+                return false;
+            }
+
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Sends a text response, compressing it on the fly if the client accepts gzip and the body
+     * is large enough to benefit.
+     *
+     * @param req The request being answered.
+     * @param res The response to write to.
+     * @param type The content type of the body.
+     * @param body The body to send.
+     * @throws IOException If the response could not be written.
+     */
+    public static void sendText(Request req, Response res, String type, String body) throws IOException {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+
+        res.type(type);
+        res.header("Vary", "Accept-Encoding");
+        if (data.length >= MINIMUM_SIZE && acceptsGzip(req)) {
+            data = gzip(data);
+            res.header("Content-Encoding", "gzip");
+        }
+
+        res.raw().setContentLength(data.length);
+        OutputStream out = res.raw().getOutputStream();
+        out.write(data);
+        out.flush();
+    }
+}
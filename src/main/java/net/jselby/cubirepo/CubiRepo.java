@@ -3,18 +3,27 @@ package net.jselby.cubirepo;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.google.gson.Gson;
-import org.apache.commons.io.IOUtils;
+import com.google.gson.GsonBuilder;
 import org.eclipse.jetty.server.Request;
+import spark.HaltException;
+import spark.Response;
 import spark.Route;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.http.Part;
 import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.List;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 import static spark.Spark.*;
 
@@ -39,44 +48,241 @@ public class CubiRepo {
     @Parameter(names = "--title", description = "Sets the info page title")
     private String title = "CubiRepo Central";
 
-    private List<Resource> resources = null;
-    private Gson gson = new Gson();
+    @Parameter(names = "--jenkins-url", description = "Sets the JSON API URL of the Jenkins project to mirror server builds from")
+    private String jenkinsUrl;
+
+    @Parameter(names = "--jenkins-interval", description = "Sets how often Jenkins is polled for new builds, in seconds")
+    private long jenkinsInterval = 300;
+
+    @Parameter(names = "--compact-threshold", description = "Sets how many journal records are kept before the metadata is compacted")
+    private int compactThreshold = 1000;
+
+    @Parameter(names = "--max-upload", description = "Sets the maximum size of an upload, in megabytes")
+    private long maxUploadSize = 512;
+
+    @Parameter(names = "--upload-chunk-size", description = "Sets the size of each chunk of a chunked upload, in megabytes")
+    private int uploadChunkSize = 8;
+
+    @Parameter(names = "--memory-cache", description = "Sets how much memory is used to cache popular artifacts, in megabytes (0 to disable)")
+    private long memoryCacheSize = 64;
+
+    @Parameter(names = "--delta-cache", description = "Sets how much disk space is used to keep patches between versions, in megabytes (0 to disable)")
+    private long deltaCacheSize = 512;
+
+    @Parameter(names = "--access-log-file", description = "Sets the file requests are logged to")
+    private String accessLogFile = "logs/access.log";
+
+    @Parameter(names = "--access-log-size", description = "Sets the size after which the access log is rotated, in megabytes")
+    private long accessLogSize = 16;
+
+    private static final String STARTED = "cubirepo.started";
+    private static final String LOGGED = "cubirepo.logged";
+
+    @Parameter(names = "--blocking-downloads", description = "Writes downloads on Jetty's threads, instead of in async mode on worker threads")
+    private boolean blockingDownloads = false;
+
+    @Parameter(names = "--download-threads", description = "Sets how many threads write downloads, where virtual threads aren't available (Java 20 and earlier)")
+    private int downloadThreads = 256;
+
+    @Parameter(names = "--bandwidth-limit", description = "Sets the total bandwidth of downloads, in kilobytes per second (0 for no limit)")
+    private long bandwidthLimit = 0;
+
+    @Parameter(names = "--client-bandwidth-limit", description = "Sets the bandwidth of downloads to each remote address, in kilobytes per second (0 for no limit)")
+    private long clientBandwidthLimit = 0;
+
+    @Parameter(names = "--max-downloads", description = "Sets how many large downloads are sent at once")
+    private int maxDownloads = 256;
+
+    @Parameter(names = "--download-queue", description = "Sets how many large downloads may wait to be sent, before others are turned away")
+    private int downloadQueue = 1024;
+
+    @Parameter(names = "--scheduled-size", description = "Sets the size from which downloads are limited and queued, in kilobytes")
+    private long scheduledSize = 256;
+
+    @Parameter(names = "--integrity-threads", description = "Sets how many threads check the contents of resources after startup (0 to skip the check)")
+    private int integrityThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    private ResourceRegistry resources = new ResourceRegistry();
+    private MetadataStore store;
+    private ArtifactCache cache;
+    private ResourceSender sender;
+    private CatalogListing listing;
+    private BatchResolver batch;
+    private JarEntrySender jarEntries;
+    private DeltaCache deltas;
+    private DownloadScheduler scheduler;
+    private IntegrityScan integrity;
+    private UploadSessions uploads;
+    private AccessLog accessLog;
+    private ExecutorService downloads;
+
+    private final StaticAssets assets = new StaticAssets("/res/", "prism.css", "prism.js");
+    private final Template manageTemplate = Template.load("/manage.html", assets);
+    private final Template loginTemplate = Template.load("/login.html");
+    private Gson gson = new GsonBuilder().registerTypeAdapter(JenkinsResource.class, JenkinsResource.SERIALIZER)
+            .create();
 
     public void start() {
+        store = new MetadataStore(resources, new File("."), compactThreshold);
+        cache = new ArtifactCache(memoryCacheSize * 1024 * 1024);
+        sender = new ResourceSender(cache);
+        if (!blockingDownloads) {
+            downloads = Workers.create("Download worker-", downloadThreads);
+        }
+        listing = new CatalogListing(resources, gson);
+        batch = new BatchResolver(resources, gson);
+        jarEntries = new JarEntrySender();
+        uploads = new UploadSessions(new File("cache", "uploads"), maxUploadSize * 1024 * 1024,
+                uploadChunkSize * 1024 * 1024, gson);
+        scheduler = new DownloadScheduler(scheduledSize * 1024, bandwidthLimit * 1024, clientBandwidthLimit * 1024,
+                maxDownloads, downloadQueue);
+        deltas = new DeltaCache(new File("cache", "deltas"), deltaCacheSize * 1024 * 1024);
+        accessLog = new AccessLog(new File(accessLogFile), accessLogSize * 1024 * 1024);
+        Runtime.getRuntime().addShutdownHook(new Thread(accessLog::close, "Access log shutdown"));
         load();
 
         // Make sure we have a Jenkins resource
-        boolean hasJenkins = false;
-        for (Resource resource : resources) {
-            if (resource instanceof JenkinsResource) {
-                hasJenkins = true;
-                break;
+        JenkinsResource jenkins = resources.find(JenkinsResource.class);
+        if (jenkins == null) {
+            jenkins = new JenkinsResource();
+            resources.add(jenkins);
+        }
+        if (jenkinsUrl != null) {
+            try {
+                JenkinsResource.setProjectUrl(new URL(jenkinsUrl));
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Invalid Jenkins URL " + jenkinsUrl, e);
             }
         }
+        JenkinsResource mirrored = jenkins;
+        jenkins.startMirroring(jenkinsInterval, build -> {
+            accessLog.event("Serving Jenkins build #" + build.getNumber() + " (" + build.getFileName() + ")");
+            resources.touch();
+            indexJar(mirrored);
+        });
 
-        if (!hasJenkins) {
-            resources.add(new JenkinsResource());
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("cubirepo_resources", "Resources in the registry.", resources::size);
+        metrics.counter("cubirepo_cache_hits_total", "Downloads served from the memory cache.", cache::getHits);
+        metrics.counter("cubirepo_cache_misses_total", "Downloads not served from the memory cache.", cache::getMisses);
+        metrics.counter("cubirepo_cache_shared_loads_total", "Cache loads which waited for a concurrent load of the same file.",
+                cache::getSharedLoads);
+        metrics.counter("cubirepo_jenkins_shared_polls_total", "Jenkins refreshes which waited for a poll already running.",
+                JenkinsResource::getSharedRefreshes);
+        metrics.counter("cubirepo_cache_evictions_total", "Files evicted from the memory cache.", cache::getEvictions);
+        metrics.gauge("cubirepo_cache_used_bytes", "Bytes held by the memory cache.", cache::getUsed);
+        metrics.gauge("cubirepo_cache_hit_ratio", "Share of downloads served from the memory cache.", () -> {
+            long hits = cache.getHits();
+            long total = hits + cache.getMisses();
+            return total == 0 ? 0 : (double) hits / total;
+        });
+        metrics.counter("cubirepo_deltas_created_total", "Patches made between versions.", deltas::getCreated);
+        metrics.gauge("cubirepo_delta_cache_used_bytes", "Bytes of patches kept on disk.", deltas::getUsed);
+        metrics.gauge("cubirepo_downloads_active", "Large downloads being sent.", scheduler::getActive);
+        metrics.gauge("cubirepo_downloads_queued", "Large downloads waiting to be sent.", scheduler::getQueued);
+        metrics.counter("cubirepo_downloads_rejected_total", "Large downloads turned away, as the queue was full.",
+                scheduler::getRejected);
+        metrics.gauge("cubirepo_upload_sessions_open", "Chunked uploads in progress.", uploads::getOpen);
+        if (integrityThreads > 0) {
+            integrity = new IntegrityScan(resources, store, accessLog, new File("cache", "quarantine"),
+                    integrityThreads, this::invalidate);
+            metrics.gauge("cubirepo_integrity_scan_progress", "Share of resources checked since startup.",
+                    integrity::getProgress);
+            metrics.counter("cubirepo_integrity_missing_total", "Resources found without their contents.",
+                    integrity::getMissing);
+            metrics.counter("cubirepo_integrity_corrupt_total", "Blobs quarantined, as they didn't match their hash.",
+                    integrity::getCorrupt);
+            metrics.counter("cubirepo_integrity_orphans_total", "Blobs quarantined, as nothing referenced them.",
+                    integrity::getOrphans);
         }
+        metrics.counter("cubirepo_access_log_dropped_total", "Access log entries dropped under load.", accessLog::getDropped);
 
         port(port);
 
+        before((req, res) -> req.raw().setAttribute(STARTED, System.nanoTime()));
+
+        // Chunked uploads, which can be resumed, and sent over several connections at once. These
+        // come before the class file mapping, which would otherwise match the session paths
+        post("/upload/sessions/", instrumented("/upload/sessions/", (req, res) -> {
+            checkUploader(req);
+            int status = uploads.open(req, res);
+            if (status == 400) {
+                halt(400, "Expected author, name, version, type, size and hash (SHA-256, in hex) parameters.");
+            } else if (status == 413) {
+                halt(413, "Upload is larger than the maximum of " + maxUploadSize + " MB.");
+            } else if (status == 503) {
+                res.header("Retry-After", "60");
+                halt(503, "Too many uploads in progress, please try again later.");
+            }
+            halt(status);
+            return null;
+        }));
+
+        get("/upload/sessions/:id", instrumented("/upload/sessions/:id", (req, res) -> {
+            checkUploader(req);
+            int status = uploads.status(req.params("id"), req, res);
+            if (status == 404) {
+                halt(404, "Upload session not found.");
+            }
+            halt(status);
+            return null;
+        }));
+
+        put("/upload/sessions/:id/:chunk", instrumented("/upload/sessions/:id/:chunk", (req, res) -> {
+            checkUploader(req);
+            int status = uploads.write(req.params("id"), req.params("chunk"), req);
+            if (status == 400) {
+                halt(400, "Chunk doesn't have the expected length.");
+            } else if (status == 404) {
+                halt(404, "Upload session or chunk not found.");
+            } else if (status == 409) {
+                halt(409, "Chunk is already being written.");
+            }
+            halt(status);
+            return null;
+        }));
+
+        post("/upload/sessions/:id/commit", instrumented("/upload/sessions/:id/commit", (req, res) -> {
+            checkUploader(req);
+            int status = uploads.commit(req.params("id"), this::publish);
+            if (status == 404) {
+                halt(404, "Upload session not found.");
+            } else if (status == 409) {
+                halt(409, "Chunks are still missing, or being written.");
+            } else if (status == 422) {
+                halt(422, "Upload doesn't match the expected hash, and has been discarded.");
+            }
+            halt(200, "Upload completed successfully.");
+            return null;
+        }));
+
+        delete("/upload/sessions/:id", instrumented("/upload/sessions/:id", (req, res) -> {
+            checkUploader(req);
+            int status = uploads.abort(req.params("id"));
+            if (status == 404) {
+                halt(404, "Upload session not found.");
+            }
+            halt(status);
+            return null;
+        }));
+
         // Class file mapping
-        get("/:author/:name/*", (req, res) -> {
+        get("/:author/:name/*", instrumented("/:author/:name/*", (req, res) -> {
             if (req.pathInfo().startsWith("/delete/") || req.pathInfo().startsWith("/upload/")) {
                 return null;
             }
 
             String path = req.pathInfo();
 
-            String version = path.substring(path.lastIndexOf("/") + 1).toLowerCase();
+            String version = path.substring(path.lastIndexOf("/") + 1).toLowerCase(Locale.ROOT);
             String extension = null;
             if (version.contains(".")) {
                 extension = version.substring(version.lastIndexOf(".") + 1);
                 version = version.substring(0, version.lastIndexOf("."));
             }
 
-            String author = req.params("author").toLowerCase();
-            String name = req.params("name").toLowerCase();
+            String author = req.params("author").toLowerCase(Locale.ROOT);
+            String name = req.params("name").toLowerCase(Locale.ROOT);
 
             // The version currently contains the name. Split that out, or error.
             // Extension must not be null as well
@@ -86,24 +292,11 @@ public class CubiRepo {
             }
             version = version.substring((name + "_").length());
 
-            // Find a resource that matches this description
-            boolean categoryExists = false;
-            Resource resource = null;
-
-            for (Resource checkResource : resources) {
-                if (checkResource.getName().equalsIgnoreCase(name)
-                        && checkResource.getAuthor().equalsIgnoreCase(author)) {
-                    if (checkResource.getVersion().equalsIgnoreCase(version)) {
-                        resource = checkResource;
-                        break;
-                    } else {
-                        categoryExists = true;
-                    }
-                }
-            }
+            // Find a resource that matches this description, or the newest one in a range
+            Resource resource = resources.resolve(author, name, version);
 
             if (resource == null) {
-                if (categoryExists) {
+                if (resources.hasVariants(author, name)) {
                     halt(404, "Version not found, but resource exists in other variants.");
                 } else {
                     halt(404, "Resource not found, and no variants detected.");
@@ -113,70 +306,95 @@ public class CubiRepo {
 
             if (extension.equalsIgnoreCase("json")) {
                 // Return a JSON representation of this file
-                res.type("application/json");
-                return gson.toJson(resource);
-            } else if (resource.getType().equalsIgnoreCase(extension)) {
-                // Return the resource itself
-                res.type("application/octet-stream");
-                BufferedInputStream in =
-                        new BufferedInputStream(new ByteArrayInputStream(resource.getContents()));
-                IOUtils.copy(in, res.raw().getOutputStream());
-                in.close();
+                Compression.sendText(req, res, "application/json", gson.toJson(resource));
+                halt(200);
+            } else if (resource.getType().equalsIgnoreCase(extension) && req.queryParams("entries") != null) {
+                // List the entries of a jar
+                JarIndex index = indexJar(resource);
+                if (index == null) {
+                    halt(415, "Resource is not a jar.");
+                }
+                Compression.sendText(req, res, "application/json", gson.toJson(index.getEntries()));
                 halt(200);
+            } else if (resource.getType().equalsIgnoreCase(extension) && req.queryParams("entry") != null) {
+                // Return a single entry of a jar, such as a class or plugin.yml
+                int status = jarEntries.send(resource, req.queryParams("entry"), req, res);
+                if (status == 404) {
+                    halt(404, "Entry not found.");
+                } else if (status == 415) {
+                    halt(415, "Resource is not a jar, or the entry is stored in an unsupported way.");
+                } else if (status == 503) {
+                    res.header("Retry-After", "60");
+                    halt(503, "Resource is not available yet, please try again later.");
+                }
+                halt(status);
+            } else if (resource.getType().equalsIgnoreCase(extension)) {
+                // Return the resource itself, or a patch from a version the client already has
+                ResourceSender.Sendable body = getPatch(resource, req.queryParams("from"), res);
+                if (body != null) {
+                    res.type(Delta.CONTENT_TYPE);
+                } else {
+                    body = resource;
+                    res.type("application/octet-stream");
+                }
+                res.header("X-Resolved-Version", resource.getVersion());
+                int status = sender.send(body, req, res, downloads, scheduler);
+                whenComplete(req, () -> Metrics.getInstance().increment("cubirepo_resource_bytes_total",
+                        "Bytes of resource contents sent, by resource.", AccessLog.getWritten(res.raw()),
+                        "author", resource.getAuthor(), "name", resource.getName(), "version", resource.getVersion()));
+                if (status == 404) {
+                    halt(404, "Resource contents are unavailable.");
+                } else if (status == 503) {
+                    // Unless the scheduler has already said when to come back
+                    if (!res.raw().containsHeader("Retry-After")) {
+                        res.header("Retry-After", "60");
+                    }
+                    halt(503, "Resource is not available right now, please try again later.");
+                }
+                halt(status);
             }
 
             halt(404, "File not found.");
             return null;
-        });
+        }));
 
         // User frontend for managing
-        get("/manage/", (req, res) -> {
+        get("/manage/", instrumented("/manage/", (req, res) -> {
             // Make sure they are logged in
             if (req.session() == null || req.session().attribute("loggedIn") == null) {
                 halt(403, "Not logged in.<script>document.location=\"/login/\";</script>");
             }
 
-            String elements = "";
-            for (Resource resource : resources) {
-                String deleteSrc = "<a href=\"/delete/?author=" + resource.getAuthor()
-                        + "&name=" + resource.getName() + "&version=" + resource.getVersion()
-                        + "\"><button class=\"btn btn-default\">Delete</button></a>";
-                if (!resource.canDelete()) {
-                    deleteSrc = "<a href=\"#\"><button class=\"btn btn-default\" disabled=\"disabled\">Delete</button></a>";
-                }
+            String query = req.queryParams("q");
+            List<Resource> matches = query == null || query.trim().isEmpty()
+                    ? listing.getAll() : listing.search(query);
+
+            int pageSize = Math.min(Math.max(parseInt(req.queryParams("size"), 50), 1), 500);
+            int pages = Math.max(1, (matches.size() + pageSize - 1) / pageSize);
+            int page = Math.min(Math.max(parseInt(req.queryParams("page"), 1), 1), pages);
 
-                elements += "<tr>" +
-                        "<td>" + resource.getName() + "</td>" +
-                        "<td>" + resource.getAuthor() + "</td>" +
-                        "<td>" + resource.getVersion() + "</td>" +
-                        "<td>" +
-                        deleteSrc + "&nbsp;" +
-                        "<a href=\"#\" onclick=\"doPrompt(this," +
-                            " '" + resource.getName() + "'," +
-                            " '" + resource.getAuthor() + "'," +
-                            " '" + resource.getVersion() + "'); return false;\">" +
-                            "<button class=\"btn btn-default\">Get code</button></a>&nbsp;" +
-                        "<a href=\"/" + resource.getAuthor() + "/"
-                            + resource.getName() + "/" + resource.getName()
-                            + "_" + resource.getVersion() + "." + resource.getType() + "\">" +
-                            "<button class=\"btn btn-default\">Download</button></a>&nbsp;" +
-                        "</td>" +
-                        "</tr>\n";
-            }
-
-            try (InputStream in = getClass().getResourceAsStream("/manage.html")) {
-                return IOUtils.toString(in).replace("%deleteElements%", elements);
+            StringBuilder elements = new StringBuilder(pageSize * 768);
+            int from = (page - 1) * pageSize;
+            for (Resource resource : matches.subList(from, Math.min(matches.size(), from + pageSize))) {
+                appendRow(elements, resource);
             }
-        });
+
+            Map<String, CharSequence> values = new HashMap<>();
+            values.put("deleteElements", elements);
+            values.put("pagination", renderPagination(query, page, pages, pageSize));
+            values.put("query", Template.escapeHtml(query));
+            values.put("total", Integer.toString(matches.size()));
+            return manageTemplate.render(values);
+        }));
 
         // Login page
-        get("/login/", (req, res) -> {
+        get("/login/", instrumented("/login/", (req, res) -> {
             if (req.session() == null || req.session().attribute("loggedIn") == null) {
                 String password = req.queryParams("password");
                 String message = "Please login before accessing our resources.";
 
                 if (password != null) {
-                    if (password.equalsIgnoreCase(this.password)) {
+                    if (checkPassword(password)) {
                         req.session(true).attribute("loggedIn", true);
                         return "Logged in.<script>document.location=\"/manage/\";</script>";
                     }  else {
@@ -184,17 +402,15 @@ public class CubiRepo {
                     }
                 }
 
-                try (InputStream in = getClass().getResourceAsStream("/login.html")) {
-                    return IOUtils.toString(in).replace("%messages%", message);
-                }
+                return loginTemplate.render(Collections.singletonMap("messages", message));
             } else {
                 return "Logged in.<script>document.location=\"/manage/\";</script>";
             }
-        });
+        }));
 
 
         // Resource deletion
-        get("/delete/", (req, res) -> {
+        get("/delete/", instrumented("/delete/", (req, res) -> {
             // Make sure they are logged in
             if (req.session() == null || req.session().attribute("loggedIn") == null) {
                 halt(403, "Not logged in.<script>document.location=\"/login/\";</script>");
@@ -205,39 +421,38 @@ public class CubiRepo {
             String version = req.queryParams("version");
 
             // Find the resource
-            Resource resource = null;
-
-            for (Resource checkResource : resources) {
-                if (checkResource.getName().equalsIgnoreCase(name)
-                        && checkResource.getAuthor().equalsIgnoreCase(author)
-                        && checkResource.getVersion().equalsIgnoreCase(version)) {
-                    resource = checkResource;
-                    break;
-                }
-            }
+            Resource resource = resources.get(author, name, version);
 
             if (resource == null) {
                 halt(404, "Resource not found.");
                 return null;
             }
 
-            System.out.println("Deleting resource " + resource);
-            resources.remove(resource);
-            save();
+            accessLog.event("Deleting resource " + resource);
+            if (store.remove(resource)) {
+                invalidate(resource);
+                resource.releaseContents();
+            }
 
             return "Successfully deleted.<script>document.location=\"/manage/\";</script>";
-        });
+        }));
 
         // Resource uploading
-        post("/upload/", (req, res) -> {
+        post("/upload/", instrumented("/upload/", (req, res) -> {
             // Make sure they are logged in
             if (req.session() == null || req.session().attribute("loggedIn") == null) {
                 halt(403, "Not logged in.<script>document.location=\"/login/\";</script>");
             }
 
             // Make sure we have the multipart attribute set
+            long maxUploadBytes = maxUploadSize * 1024 * 1024;
             req.raw().setAttribute(Request.__MULTIPART_CONFIG_ELEMENT,
-                    new MultipartConfigElement(System.getProperty("java.io.tmpdir")));
+                    new MultipartConfigElement(System.getProperty("java.io.tmpdir"),
+                            maxUploadBytes, maxUploadBytes, 64 * 1024));
+
+            if (req.raw().getContentLength() > maxUploadBytes) {
+                halt(413, "Upload is larger than the maximum of " + maxUploadSize + " MB.");
+            }
 
             File parentFolder = new File("resources");
             if (!parentFolder.exists() && !parentFolder.mkdirs()) {
@@ -245,10 +460,16 @@ public class CubiRepo {
             }
             if (req.raw().getContentType() != null
                     && req.raw().getContentType().startsWith("multipart/form-data")) {
-                Part userfiles = req.raw().getPart("file");
-                if (userfiles != null) {
-                    byte[] data = IOUtils.toByteArray(userfiles.getInputStream(), userfiles.getSize());
+                Part userfiles;
+                try {
+                    userfiles = req.raw().getPart("file");
+                } catch (IllegalStateException e) {
+                    // Thrown by Jetty when the upload exceeds the configured limits
+                    halt(413, "Upload is larger than the maximum of " + maxUploadSize + " MB.");
+                    return null;
+                }
 
+                if (userfiles != null) {
                     // Create a new resource
                     Resource resource = new Resource();
                     resource.setName(req.queryParams("name"));
@@ -262,18 +483,18 @@ public class CubiRepo {
                     }
                     resource.setType(filename);
 
-                    resource.setContents(data);
+                    try (InputStream in = userfiles.getInputStream()) {
+                        resource.setContents(in);
+                    } finally {
+                        userfiles.delete();
+                    }
 
                     if (req.queryParams("mainClass") != null) {
                         String mainClass = URLDecoder.decode(req.queryParams("mainClass"), "UTF-8");
                         resource.setMainClass(mainClass);
                     }
 
-                    System.out.println("Uploaded new resource: " + resource);
-
-                    resources.add(resource);
-                    save();
-
+                    publish(resource);
                     halt(200, "Upload completed successfully.<script>document.location=\"/manage/\";</script>");
                     return null;
                 } else {
@@ -284,76 +505,384 @@ public class CubiRepo {
                 halt(404, "Failed to upload a file with your request. (as part \"file\")");
                 return null;
             }
-        });
+        }));
 
-        get("/res/*", (req, res) -> {
-            String url = req.pathInfo();
+        // Batch resolution, for launchers fetching many dependencies at once
+        post("/resolve/", instrumented("/resolve/", (req, res) -> {
+            halt(checkBatch(batch.resolve(req, res), res));
+            return null;
+        }));
 
-            if (url.contains("*") || url.contains("//") || url.contains("..") || url.contains("~")) {
-                halt(404);
+        post("/bundle/", instrumented("/bundle/", (req, res) -> {
+            int status = checkBatch(batch.bundle(req, res, downloads, scheduler), res);
+            if (status == 200) {
+                whenComplete(req, () -> Metrics.getInstance().increment("cubirepo_bundle_bytes_total",
+                        "Bytes of resource contents sent in bundles.", AccessLog.getWritten(res.raw())));
             }
+            halt(status);
+            return null;
+        }));
 
-            String contents = null;
-            try (InputStream in = getClass().getResourceAsStream(url)) {
-                contents = IOUtils.toString(in);
-            }
+        get("/res/*", instrumented("/res/*", (req, res) -> {
+            halt(assets.send(req.splat()[0], req, res));
+            return null;
+        }));
 
-            String type;
+        // Resource listing
+        get("/", instrumented("/", (req, res) -> {
+            if (req.queryParams("noRedirect") == null) {
+                res.header("refresh", "0; /info/"); // To redirect compatible clients, in a friendly way
+            }
+            int status = listing.send(req, res);
+            if (status == 400) {
+                halt(400, "Expected offset and limit to be non-negative integers.");
+            }
+            halt(status);
+            return null;
+        }));
 
-            if (url.endsWith(".js")) {
-                type = "text/javascript";
-            } else if (url.endsWith(".html")) {
-                type = "text/html";
-            } else if (url.endsWith(".css")) {
-                type = "text/css";
-            } else {
-                type = "application/octet-stream";
+        // Instrumentation, for Prometheus
+        get("/metrics", instrumented("/metrics", (req, res) -> {
+            if (!isAdmin(req)) {
+                res.header("WWW-Authenticate", "Basic realm=\"CubiRepo\"");
+                halt(401, "Not logged in.");
             }
 
-            res.type(type);
+            res.type("text/plain; version=0.0.4");
+            return Metrics.getInstance().render();
+        }));
 
-            return contents;
+        // Information
+        String infoPage = Template.load("/info.html")
+                .render(Collections.singletonMap("name", Template.escapeHtml(title)));
+        get("/info/", "text/html", instrumented("/info/", (req, res) -> infoPage));
+
+        // Requests which no route answered are left for Spark to send a 404 for
+        after((req, res) -> {
+            if (req.raw().getAttribute(LOGGED) == null) {
+                record("unmatched", req, res, 404, 0, (Long) req.raw().getAttribute(STARTED));
+            }
         });
 
-        // Resource listing
-        get("/", (req, res) -> {
-            if (req.queryParams("noRedirect") == null) {
-                res.header("refresh", "0; /info/"); // To redirect compatible clients, in a friendly way
+        // Contents are checked once requests are being answered, so startup doesn't grow with them
+        if (integrity != null) {
+            integrity.start();
+        }
+        uploads.start();
+    }
+
+    /**
+     * Halts unless the client is logged in, or sends the password.
+     */
+    private void checkUploader(spark.Request req) {
+        if (!isAdmin(req)) {
+            halt(403, "Not logged in.");
+        }
+    }
+
+    /**
+     * Adds an uploaded resource to the registry, replacing any previous resource with the same
+     * coordinates. Halts with a 400 if it is a jar, and its main class is missing.
+     *
+     * @param resource The resource, whose contents have been stored.
+     */
+    private void publish(Resource resource) {
+        // Jars are indexed now, so the main class can be checked
+        if (resource.getType().equalsIgnoreCase("jar")) {
+            JarIndex index = indexJar(resource);
+            String mainClass = resource.getMainClass();
+            if (mainClass != null && (index == null || !index.hasClass(mainClass))) {
+                resource.releaseContents();
+                halt(400, "Main class " + Template.escapeHtml(mainClass) + " was not found in the jar.");
             }
-            return gson.toJson(resources.toArray(new Resource[resources.size()]));
-        });
+        }
 
-        // Information
-        get("/info/", "text/html", (req, res) -> {
-           try (InputStream in = getClass().getResourceAsStream("/info.html")) {
-               return IOUtils.toString(in).replace("%name%", title);
-           }
+        accessLog.event("Uploaded new resource: " + resource);
+        Metrics.getInstance().observe("cubirepo_upload_bytes", "Sizes of uploaded resources, in bytes.", 1,
+                resource.getSize());
+
+        Resource previous;
+        try {
+            previous = store.add(resource);
+        } catch (IOException e) {
+            resource.releaseContents();
+            throw new UncheckedIOException(e);
+        }
+        if (previous != null) {
+            invalidate(previous);
+            previous.releaseContents();
+        }
+    }
+
+    /**
+     * Halts with an explanation if a batch request was rejected.
+     */
+    private static int checkBatch(int status, Response res) {
+        if (status == 400) {
+            halt(400, "Expected a JSON array of at most " + BatchResolver.MAX_COORDINATES
+                    + " coordinates, as {\"author\", \"name\", \"version\"} or \"author/name/version\".");
+        } else if (status == 413) {
+            halt(413, "Request is larger than the maximum of " + BatchResolver.MAX_REQUEST_SIZE + " bytes.");
+        } else if (status == 503) {
+            // Unless the batch has already said when to come back
+            if (!res.raw().containsHeader("Retry-After")) {
+                res.header("Retry-After", "5");
+            }
+            halt(503, "Resources are not available right now, please try again shortly.");
+        }
+        return status;
+    }
+
+    /**
+     * Wraps a route so that its requests are written to the access log and counted in the
+     * metrics, including those which end in a halt() (which skips after filters).
+     */
+    private Route instrumented(String name, Route route) {
+        return (req, res) -> {
+            long start = (Long) req.raw().getAttribute(STARTED);
+            Object body;
+            try {
+                body = route.handle(req, res);
+            } catch (HaltException e) {
+                String halted = e.getBody();
+                long pending = halted == null ? 0 : halted.getBytes(StandardCharsets.UTF_8).length;
+                // Async responses are still being written, so wait for them to finish
+                whenComplete(req, () -> record(name, req, res, e.getStatusCode(), pending, start));
+                throw e;
+            } catch (Exception e) {
+                record(name, req, res, 500, 0, start);
+                throw e;
+            }
+
+            // A null body means this route passed, and Spark moves on to the next one
+            if (body != null) {
+                int status = res.raw().getStatus();
+                record(name, req, res, status == 0 ? 200 : status, body.toString().getBytes(StandardCharsets.UTF_8).length, start);
+            }
+            return body;
+        };
+    }
+
+    /**
+     * Runs an action once the response to a request is complete. For requests in async mode, this
+     * is once the async work has finished, otherwise it is right away.
+     */
+    private static void whenComplete(spark.Request req, Runnable action) {
+        if (!req.raw().isAsyncStarted()) {
+            action.run();
+            return;
+        }
+
+        req.raw().getAsyncContext().addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                action.run();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {}
+
+            @Override
+            public void onError(AsyncEvent event) {}
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {}
         });
+    }
+
+    private void record(String route, spark.Request req, spark.Response res, int status, long pendingBytes, long start) {
+        long latency = (System.nanoTime() - start) / 1000;
+        req.raw().setAttribute(LOGGED, Boolean.TRUE);
+        accessLog.record(req, res, status, pendingBytes, latency);
+
+        Metrics metrics = Metrics.getInstance();
+        metrics.increment("cubirepo_requests_total", "Requests answered, by route and status.", 1,
+                "route", route, "status", Integer.toString(status));
+        metrics.observe("cubirepo_request_duration_seconds", "Time taken to answer requests, by route.", 1e-6,
+                latency, "route", route);
+    }
 
-        // Debug output
-        after((req, res) -> System.out.println(req.raw().getRemoteAddr() + " requested: " + req.pathInfo()));
+    /**
+     * Checks if a request comes from an administrator, either through a login session or through
+     * HTTP Basic authentication with the password (for clients which can't log in, like scrapers).
+     */
+    private boolean isAdmin(spark.Request req) {
+        if (req.session(false) != null && req.session().attribute("loggedIn") != null) {
+            return true;
+        }
+
+        String authorization = req.headers("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return false;
+        }
+        try {
+            String credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()),
+                    StandardCharsets.UTF_8);
+            return checkPassword(credentials.substring(credentials.indexOf(':') + 1));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
     }
 
-    private void save() {
-        try (ObjectOutputStream out = new ObjectOutputStream(
-                new FileOutputStream(new File("cubirepo.dat")))) {
-            out.writeObject(resources);
+    /**
+     * Checks a password against the configured one. Case is ignored, as it always has been, and
+     * the check takes the same time wherever the passwords differ; both are hashed first, so
+     * neither does their length.
+     */
+    private boolean checkPassword(String attempt) {
+        MessageDigest digest = Hashes.newDigest();
+        byte[] expected = digest.digest(foldCase(password).getBytes(StandardCharsets.UTF_8));
+        byte[] actual = digest.digest(foldCase(attempt).getBytes(StandardCharsets.UTF_8));
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Folds the case of each character the way String.equalsIgnoreCase compares them.
+     */
+    private static String foldCase(String value) {
+        StringBuilder folded = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            folded.append(Character.toLowerCase(Character.toUpperCase(value.charAt(i))));
+        }
+        return folded.toString();
+    }
+
+    private static void appendRow(StringBuilder out, Resource resource) {
+        String name = Template.escapeHtml(resource.getName());
+        String author = Template.escapeHtml(resource.getAuthor());
+        String version = Template.escapeHtml(resource.getVersion());
+
+        out.append("<tr><td>").append(name)
+                .append("</td><td>").append(author)
+                .append("</td><td>").append(version)
+                .append("</td><td>");
+
+        if (resource.canDelete()) {
+            out.append("<a href=\"/delete/?author=").append(encode(resource.getAuthor()))
+                    .append("&amp;name=").append(encode(resource.getName()))
+                    .append("&amp;version=").append(encode(resource.getVersion()))
+                    .append("\"><button class=\"btn btn-default\">Delete</button></a>");
+        } else {
+            out.append("<a href=\"#\"><button class=\"btn btn-default\" disabled=\"disabled\">Delete</button></a>");
+        }
+
+        out.append("&nbsp;<a href=\"#\" onclick=\"doPrompt(this, '")
+                .append(Template.escapeJs(resource.getName())).append("', '")
+                .append(Template.escapeJs(resource.getAuthor())).append("', '")
+                .append(Template.escapeJs(resource.getVersion())).append("'); return false;\">")
+                .append("<button class=\"btn btn-default\">Get code</button></a>&nbsp;")
+                .append("<a href=\"/").append(encode(resource.getAuthor()))
+                .append('/').append(encode(resource.getName()))
+                .append('/').append(encode(resource.getName() + "_" + resource.getVersion() + "." + resource.getType()))
+                .append("\"><button class=\"btn btn-default\">Download</button></a>&nbsp;")
+                .append("</td></tr>\n");
+    }
+
+    private static String renderPagination(String query, int page, int pages, int pageSize) {
+        if (pages <= 1) {
+            return "";
+        }
+
+        String base = "/manage/?size=" + pageSize + (query == null ? "" : "&amp;q=" + encode(query)) + "&amp;page=";
+        StringBuilder out = new StringBuilder("<ul class=\"pagination\">");
+        if (page > 1) {
+            out.append("<li><a href=\"").append(base).append(page - 1).append("\">&laquo;</a></li>");
+        }
+        for (int i = Math.max(1, page - 5); i <= Math.min(pages, page + 5); i++) {
+            out.append(i == page ? "<li class=\"active\">" : "<li>")
+                    .append("<a href=\"").append(base).append(i).append("\">").append(i).append("</a></li>");
+        }
+        if (page < pages) {
+            out.append("<li><a href=\"").append(base).append(page + 1).append("\">&raquo;</a></li>");
+        }
+        return out.append("</ul>").toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value == null ? "" : value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int parseInt(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private void invalidate(Resource resource) {
+        cache.invalidate(resource.getFile());
+        cache.invalidate(resource.getCompressedFile());
+        jarEntries.invalidate(resource.getFile());
+    }
+
+    /**
+     * Finds a patch to a resource from another version of it.
+     *
+     * @param resource The version the client wants.
+     * @param from The version the client has, or null.
+     * @param res The response, which is told which version a patch is from.
+     * @return The patch, or null if the full resource should be sent.
+     */
+    private ResourceSender.Sendable getPatch(Resource resource, String from, Response res) {
+        if (from == null) {
+            return null;
+        }
+
+        Resource base = resources.resolve(resource.getAuthor(), resource.getName(), from);
+        ResourceSender.Sendable patch = null;
+        if (base != null && base != resource) {
+            try {
+                patch = deltas.get(base, resource);
+            } catch (IOException e) {
+                accessLog.event("Failed to create a patch from " + base + " to " + resource + ": " + e);
+            }
+        }
+
+        if (patch != null) {
+            res.header("X-Delta-From", base.getVersion());
+        }
+        Metrics.getInstance().increment("cubirepo_delta_requests_total", "Downloads asking for a patch, by outcome.", 1,
+                "outcome", patch != null ? "patch" : "full");
+        return patch;
+    }
+
+    /**
+     * Indexes the entries of a jar resource.
+     *
+     * @return The index, or null if the resource isn't a readable zip archive.
+     */
+    private JarIndex indexJar(Resource resource) {
+        File file = resource.getFile();
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+
+        try {
+            return jarEntries.getIndex(file);
         } catch (IOException e) {
-            e.printStackTrace();
+            accessLog.event("Failed to index " + resource + ": " + e);
+            return null;
         }
     }
 
     private void load() {
-        if (!new File("cubirepo.dat").exists()) {
-            resources = new ArrayList<>();
-            return;
-        }
+        try {
+            store.load();
 
-        try (ObjectInputStream in = new ObjectInputStream(
-                new FileInputStream(new File("cubirepo.dat")))) {
-            resources = (List<Resource>) in.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+            // Contents are only checked, and migrated from earlier builds, by the IntegrityScan
+            for (Resource resource : resources.getAll()) {
+                resource.retainContents();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load the repository metadata", e);
         }
     }
 
@@ -0,0 +1,308 @@
+package net.jselby.cubirepo;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Delta creates and applies binary patches, which turn one version of a file into another.
+ *
+ * Patches are found the way rsync does: the old file is split into blocks, which are indexed by a
+ * rolling checksum, and the checksum is rolled over the new file one byte at a time to find blocks
+ * which moved. Matches are extended in both directions for as far as the files agree. As both
+ * files are on hand, candidate blocks are compared directly rather than by a strong hash. Entries
+ * which are unchanged between two jars keep their compressed bytes, so they are found as well.
+ *
+ * A patch is laid out as follows, with numbers in big-endian order:
+ *
+ * <pre>
+ *     "CRD1"                 magic
+ *     long                   size of the new file
+ *     byte[32]               SHA-256 hash of the new file
+ *     then any amount of:
+ *       0x01 long int        copy (offset, length) from the old file
+ *       0x02 int byte[]      insert (length) bytes
+ *     0x00                   end
+ * </pre>
+ *
+ * @author j_selby
+ */
+public final class Delta {
+    /**
+     * The media type patches are sent as.
+     */
+    public static final String CONTENT_TYPE = "application/x-cubirepo-delta";
+
+    /**
+     * The largest file patches are made for.
+     */
+    public static final long MAX_FILE_SIZE = 1024L * 1024 * 1024;
+
+    private static final byte[] MAGIC = {'C', 'R', 'D', '1'};
+    private static final int END = 0;
+    private static final int COPY = 1;
+    private static final int INSERT = 2;
+
+    private static final int MIN_BLOCK_SIZE = 512;
+    private static final int MAX_BLOCK_SIZE = 16 * 1024;
+
+    private Delta() {}
+
+    /**
+     * Creates a patch from one file to another.
+     *
+     * @param base The old file, which the client has.
+     * @param target The new file, which the client wants.
+     * @param targetHash The hex-encoded SHA-256 hash of the new file.
+     * @param out The file to write the patch to.
+     * @param maxSize Stops once the patch grows larger than this, in bytes.
+     * @return The size of the patch, or -1 if it would be larger than maxSize.
+     * @throws IOException If either file could not be read, or the patch could not be written.
+     */
+    public static long create(File base, File target, String targetHash, File out, long maxSize) throws IOException {
+        try (FileChannel baseChannel = FileChannel.open(base.toPath(), StandardOpenOption.READ);
+             FileChannel targetChannel = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+            if (baseChannel.size() > MAX_FILE_SIZE || targetChannel.size() > MAX_FILE_SIZE) {
+                return -1;
+            }
+            MappedByteBuffer old = baseChannel.map(FileChannel.MapMode.READ_ONLY, 0, baseChannel.size());
+            MappedByteBuffer current = targetChannel.map(FileChannel.MapMode.READ_ONLY, 0, targetChannel.size());
+
+            try (CountingOutputStream counter = new CountingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(out), 64 * 1024));
+                 DataOutputStream data = new DataOutputStream(counter)) {
+                data.write(MAGIC);
+                data.writeLong(current.limit());
+                data.write(Hashes.fromHex(targetHash));
+                if (!encode(old, current, data, counter, maxSize)) {
+                    return -1;
+                }
+                data.writeByte(END);
+                data.flush();
+                return counter.count;
+            }
+        }
+    }
+
+    /**
+     * Applies a patch, and checks that the result is what the patch was made for.
+     *
+     * @param base The old file.
+     * @param patch The patch to apply.
+     * @param out Where to write the new file to.
+     * @throws IOException If the patch is invalid, doesn't match the old file, or either could not
+     *         be read.
+     */
+    public static void apply(File base, InputStream patch, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(patch, 64 * 1024));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a patch");
+        }
+        long size = in.readLong();
+        byte[] hash = new byte[32];
+        in.readFully(hash);
+
+        MessageDigest digest = Hashes.newDigest();
+        DigestOutputStream target = new DigestOutputStream(out, digest);
+        byte[] buffer = new byte[64 * 1024];
+        long written = 0;
+        try (RandomAccessFile old = new RandomAccessFile(base, "r")) {
+            int op;
+            while ((op = in.readUnsignedByte()) != END) {
+                if (op == COPY) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    if (offset < 0 || length < 0 || offset + length > old.length()) {
+                        throw new IOException("Patch copies outside of the old file");
+                    }
+                    old.seek(offset);
+                    for (int remaining = length; remaining > 0; ) {
+                        int read = Math.min(remaining, buffer.length);
+                        old.readFully(buffer, 0, read);
+                        target.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    written += length;
+                } else if (op == INSERT) {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Invalid insert in patch");
+                    }
+                    for (int remaining = length; remaining > 0; ) {
+                        int read = Math.min(remaining, buffer.length);
+                        in.readFully(buffer, 0, read);
+                        target.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    written += length;
+                } else {
+                    throw new IOException("Unknown operation " + op + " in patch");
+                }
+            }
+        }
+        target.flush();
+
+        if (written != size || !Arrays.equals(digest.digest(), hash)) {
+            throw new IOException("Patched file doesn't match the expected contents");
+        }
+    }
+
+    private static boolean encode(MappedByteBuffer old, MappedByteBuffer current, DataOutputStream out,
+                                  CountingOutputStream counter, long maxSize) throws IOException {
+        int oldSize = old.limit();
+        int size = current.limit();
+        int blockSize = getBlockSize(oldSize);
+        int blocks = oldSize / blockSize;
+
+        // Index the blocks of the old file by their checksum, chaining blocks which share one
+        int tableSize = Integer.highestOneBit(Math.max(blocks, 1) * 2 - 1) << 1;
+        int[] heads = new int[tableSize];
+        Arrays.fill(heads, -1);
+        int[] chain = new int[blocks];
+        int[] sums = new int[blocks];
+        for (int i = blocks - 1; i >= 0; i--) {
+            sums[i] = checksum(old, i * blockSize, blockSize);
+            int slot = mix(sums[i]) & (tableSize - 1);
+            chain[i] = heads[slot];
+            heads[slot] = i;
+        }
+
+        int literalStart = 0;
+        int position = 0;
+        boolean fresh = true;
+        int a = 0;
+        int b = 0;
+        while (blocks > 0 && position + blockSize <= size) {
+            if (fresh) {
+                int sum = checksum(current, position, blockSize);
+                a = sum & 0xFFFF;
+                b = sum >>> 16;
+                fresh = false;
+            }
+
+            int sum = (b << 16) | a;
+            int match = -1;
+            for (int i = heads[mix(sum) & (tableSize - 1)]; i != -1; i = chain[i]) {
+                if (sums[i] == sum && equal(old, i * blockSize, current, position, blockSize)) {
+                    match = i;
+                    break;
+                }
+            }
+
+            if (match == -1) {
+                // Roll the checksum one byte along
+                int leaving = current.get(position) & 0xFF;
+                if (position + blockSize < size) {
+                    int entering = current.get(position + blockSize) & 0xFF;
+                    a = (a - leaving + entering) & 0xFFFF;
+                    b = (b - blockSize * leaving + a) & 0xFFFF;
+                }
+                position++;
+                continue;
+            }
+
+            // Grow the match backwards into the pending literal, and forwards as far as it goes
+            int oldStart = match * blockSize;
+            int start = position;
+            while (start > literalStart && oldStart > 0 && old.get(oldStart - 1) == current.get(start - 1)) {
+                start--;
+                oldStart--;
+            }
+            int end = position + blockSize;
+            int oldEnd = oldStart + (end - start);
+            while (end < size && oldEnd < oldSize && old.get(oldEnd) == current.get(end)) {
+                end++;
+                oldEnd++;
+            }
+
+            writeInsert(out, current, literalStart, start);
+            out.writeByte(COPY);
+            out.writeLong(oldStart);
+            out.writeInt(end - start);
+            if (counter.count > maxSize) {
+                return false;
+            }
+
+            position = end;
+            literalStart = end;
+            fresh = true;
+        }
+
+        writeInsert(out, current, literalStart, size);
+        return counter.count <= maxSize;
+    }
+
+    private static void writeInsert(DataOutputStream out, MappedByteBuffer current, int start, int end)
+            throws IOException {
+        if (start >= end) {
+            return;
+        }
+        out.writeByte(INSERT);
+        out.writeInt(end - start);
+        for (int i = start; i < end; i++) {
+            out.write(current.get(i));
+        }
+    }
+
+    /**
+     * Picks a block size near the square root of the file size, as rsync does.
+     */
+    private static int getBlockSize(int size) {
+        int root = (int) Math.sqrt(size);
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, Integer.highestOneBit(Math.max(root, 1))));
+    }
+
+    /**
+     * The rsync rolling checksum of a block: the sum of its bytes in the low 16 bits, and the sum
+     * of those sums in the high 16 bits.
+     */
+    private static int checksum(MappedByteBuffer buffer, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += buffer.get(offset + i) & 0xFF;
+            b += a;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    private static int mix(int sum) {
+        return sum ^ (sum >>> 15) * 0x2c1b3c6d;
+    }
+
+    private static boolean equal(MappedByteBuffer first, int firstOffset, MappedByteBuffer second, int secondOffset,
+                                 int length) {
+        for (int i = 0; i < length; i++) {
+            if (first.get(firstOffset + i) != second.get(secondOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package net.jselby.cubirepo;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The DeltaCache keeps patches between versions of resources on disk, so clients holding an older
+ * version only download what has changed.
+ *
+ * Patches are made the first time they are asked for, and concurrent requests for the same patch
+ * wait for that one to finish. The cache is bounded by a byte budget, and drops the least recently
+ * used patches first. Patches are named after the hashes of both files, so they never go stale;
+ * they just stop being asked for. Pairs which don't produce a worthwhile patch (one at most 90% of
+ * the size of the new file) are remembered, so they aren't tried again.
+ *
+ * @author j_selby
+ */
+public class DeltaCache {
+    private static final String EXTENSION = ".delta";
+
+    /**
+     * How many pairs without a worthwhile patch are remembered.
+     */
+    private static final int MAX_UNWORTHY = 4096;
+
+    private final File directory;
+    private final long budget;
+
+    private final LinkedHashMap<String, Long> patches = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> unworthy = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_UNWORTHY;
+        }
+    };
+    private long used;
+
+    private final SingleFlight<String, File> builds = new SingleFlight<>();
+    private final AtomicLong created = new AtomicLong();
+
+    /**
+     * A patch, which can be sent like the contents of a resource.
+     */
+    private static class Patch implements ResourceSender.Sendable {
+        private final File file;
+        private final String hash;
+        private final long lastModified;
+
+        private Patch(Resource base, Resource target, File file) {
+            this.file = file;
+            this.hash = "delta-" + base.getHash().substring(0, 16) + "-" + target.getHash().substring(0, 16);
+            this.lastModified = target.getLastModified();
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String getHash() {
+            return hash;
+        }
+
+        @Override
+        public long getSize() {
+            return file.length();
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Creates a new cache, picking up patches made by earlier runs.
+     *
+     * @param directory The directory to keep patches in.
+     * @param budget The maximum amount of bytes of patches to keep. 0 disables patches.
+     */
+    public DeltaCache(File directory, long budget) {
+        this.directory = directory;
+        this.budget = budget;
+
+        // Patches which were still being made when we last stopped are incomplete
+        File[] partial = directory.listFiles((dir, name) -> name.endsWith(".tmp"));
+        if (partial != null) {
+            for (File file : partial) {
+                if (!file.delete()) {
+                    System.err.println("Failed to delete " + file.getPath());
+                }
+            }
+        }
+
+        File[] existing = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (existing != null) {
+            // Oldest first, so they are the first to go
+            Arrays.sort(existing, Comparator.comparingLong(File::lastModified));
+            for (File file : existing) {
+                patches.put(file.getName(), file.length());
+                used += file.length();
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Returns a patch from one version of a resource to another, making it if needed.
+     *
+     * @param base The version the client has.
+     * @param target The version the client wants.
+     * @return The patch, or null if the full resource should be sent instead.
+     * @throws IOException If the patch could not be made.
+     */
+    public ResourceSender.Sendable get(Resource base, Resource target) throws IOException {
+        if (budget <= 0 || base.getHash() == null || target.getHash() == null) {
+            return null;
+        }
+        File baseFile = base.getFile();
+        File targetFile = target.getFile();
+        if (baseFile == null || targetFile == null || !baseFile.isFile() || !targetFile.isFile()) {
+            return null;
+        }
+
+        String key = base.getHash() + "-" + target.getHash();
+        String name = key + EXTENSION;
+        File file = new File(directory, name);
+        synchronized (this) {
+            if (unworthy.containsKey(key)) {
+                return null;
+            }
+            if (patches.get(name) != null && file.isFile()) {
+                // Keeps the order of use across restarts
+                file.setLastModified(System.currentTimeMillis());
+                return new Patch(base, target, file);
+            }
+        }
+
+        File built = builds.load(key, () -> build(baseFile, targetFile, target.getHash(), key, file));
+        return built == null ? null : new Patch(base, target, built);
+    }
+
+    /**
+     * Returns how many patches have been made.
+     *
+     * @return The amount of patches made.
+     */
+    public long getCreated() {
+        return created.get();
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    private File build(File base, File target, String targetHash, String key, File file) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory.getPath());
+        }
+
+        // Patches which would crowd out most of the cache aren't worth keeping either
+        long maxSize = Math.min(target.length() * 9 / 10, budget / 4);
+        File temp = File.createTempFile("delta", ".tmp", directory);
+        try {
+            long size = Delta.create(base, target, targetHash, temp, maxSize);
+            if (size != -1 && !verify(base, temp)) {
+                System.err.println("Patch " + key + " didn't reproduce its target, so it was discarded");
+                size = -1;
+            }
+            if (size == -1) {
+                synchronized (this) {
+                    unworthy.put(key, Boolean.TRUE);
+                }
+                return null;
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            created.incrementAndGet();
+            synchronized (this) {
+                Long previous = patches.put(file.getName(), size);
+                if (previous != null) {
+                    used -= previous;
+                }
+                used += size;
+                evict();
+            }
+            return file;
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Applies a new patch the way a client would, so a patch which doesn't reproduce its target is
+     * never cached or sent. Patches are only made once, so this costs little.
+     */
+    private static boolean verify(File base, File patch) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(patch))) {
+            Delta.apply(base, in, new NullOutputStream());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = patches.entrySet().iterator();
+        while (used > budget && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            used -= eldest.getValue();
+            iterator.remove();
+            try {
+                Files.deleteIfExists(new File(directory, eldest.getKey()).toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
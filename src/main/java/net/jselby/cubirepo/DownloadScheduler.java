@@ -0,0 +1,318 @@
+package net.jselby.cubirepo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The DownloadScheduler shares the uplink between large downloads, so that a few clients on fast
+ * connections can't crowd out everyone else.
+ *
+ * Only so many large downloads are sent at once. Further ones wait in a queue of bounded length,
+ * and beyond that are turned away, to try again shortly. A queued download can be handed to a
+ * worker once it is let in, rather than holding one while it waits. Downloads being sent are limited to a
+ * global bandwidth, and each remote address to its own share of it, by token buckets; both are
+ * taken in small chunks, so concurrent downloads interleave fairly. Small responses, such as
+ * metadata and listings, never go through the scheduler, and so never wait behind bulk transfers.
+ *
+ * @author j_selby
+ */
+public class DownloadScheduler {
+    /**
+     * The most bytes written to the client between checks of the bandwidth limits.
+     */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * How long a remote address has to be idle before its bucket is forgotten.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final long minimumSize;
+    private final long clientRate;
+    private final int maxActive;
+    private final int maxQueued;
+
+    private final TokenBucket global;
+    private final ConcurrentHashMap<String, TokenBucket> clients = new ConcurrentHashMap<>();
+    // Guards active and waiting, which are only held for a moment, never while waiting
+    private final Object lock = new Object();
+    private final ArrayDeque<Scheduled> waiting = new ArrayDeque<>();
+    private int active;
+    private final AtomicInteger entered = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * A download which has been let in, and must be closed once it has been sent.
+     */
+    public interface Ticket extends AutoCloseable {
+        /**
+         * Waits until this download may be sent.
+         *
+         * @throws IOException If the wait was interrupted.
+         */
+        void await() throws IOException;
+
+        /**
+         * Runs a task once this download may be sent, without holding a thread while it waits.
+         * The task runs right away if the download may already be sent, and otherwise on the
+         * thread which lets it in, so it should only hand the download over to an executor.
+         *
+         * @param task The task to run.
+         */
+        void whenReady(Runnable task);
+
+        /**
+         * Limits a channel to the bandwidth this download is allowed.
+         *
+         * @param out The channel to the client.
+         * @return A channel which waits for bandwidth before writing.
+         */
+        WritableByteChannel wrap(WritableByteChannel out);
+
+        @Override
+        void close();
+    }
+
+    /**
+     * The ticket of downloads which aren't scheduled.
+     */
+    public static final Ticket UNLIMITED = new Ticket() {
+        @Override
+        public void await() {}
+
+        @Override
+        public void whenReady(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public WritableByteChannel wrap(WritableByteChannel out) {
+            return out;
+        }
+
+        @Override
+        public void close() {}
+    };
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param minimumSize Downloads smaller than this, in bytes, aren't scheduled.
+     * @param globalRate The total bandwidth of downloads, in bytes per second, or 0 for no limit.
+     * @param clientRate The bandwidth of each remote address, in bytes per second, or 0 for no limit.
+     * @param maxActive The most downloads sent at once.
+     * @param maxQueued The most downloads waiting to be sent, before others are turned away.
+     */
+    public DownloadScheduler(long minimumSize, long globalRate, long clientRate, int maxActive, int maxQueued) {
+        this.minimumSize = minimumSize;
+        this.clientRate = clientRate;
+        this.maxActive = maxActive;
+        this.maxQueued = maxQueued;
+        // Allow a quarter second of burst, so limits hold over short periods too
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, Math.max(globalRate / 4, CHUNK_SIZE)) : null;
+    }
+
+    /**
+     * Lets a download in, unless too many are already waiting.
+     *
+     * @param address The remote address of the client.
+     * @param size The size of the download, in bytes.
+     * @return The ticket of the download, or null if it should be turned away.
+     */
+    public Ticket enter(String address, long size) {
+        if (size < minimumSize) {
+            return UNLIMITED;
+        }
+
+        if ((entered.incrementAndGet() & 1023) == 0) {
+            forgetIdleClients();
+        }
+        TokenBucket client = clientRate > 0
+                ? clients.computeIfAbsent(address, k -> new TokenBucket(clientRate, Math.max(clientRate / 4, CHUNK_SIZE)))
+                : null;
+
+        synchronized (lock) {
+            // Don't jump ahead of downloads which are already waiting
+            if (waiting.isEmpty() && active < maxActive) {
+                active++;
+                return new Scheduled(client, true);
+            }
+            if (waiting.size() >= maxQueued) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            Scheduled ticket = new Scheduled(client, false);
+            waiting.add(ticket);
+            return ticket;
+        }
+    }
+
+    /**
+     * Returns how many downloads are being sent.
+     *
+     * @return The amount of downloads which have been let in.
+     */
+    public int getActive() {
+        synchronized (lock) {
+            return active;
+        }
+    }
+
+    /**
+     * Returns how many downloads are waiting to be sent.
+     *
+     * @return The amount of queued downloads.
+     */
+    public int getQueued() {
+        synchronized (lock) {
+            return waiting.size();
+        }
+    }
+
+    /**
+     * Returns how many downloads have been turned away, as the queue was full.
+     *
+     * @return The amount of rejected downloads.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private void forgetIdleClients() {
+        long now = System.nanoTime();
+        Iterator<TokenBucket> iterator = clients.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getLastUsed() > IDLE_NANOS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void pause(TokenBucket client, int bytes) throws IOException {
+        long wait = 0;
+        if (global != null) {
+            wait = global.reserve(bytes);
+        }
+        if (client != null) {
+            wait = Math.max(wait, client.reserve(bytes));
+        }
+
+        long deadline = System.nanoTime() + wait;
+        while (wait > 0) {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+            wait = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * A scheduled download. The lock is never held while waiting, so waiting on a virtual thread
+     * doesn't pin its carrier.
+     */
+    private class Scheduled implements Ticket {
+        private final TokenBucket client;
+        // Guarded by lock
+        private boolean holding;
+        private boolean closed;
+        private Runnable onReady;
+
+        private Scheduled(TokenBucket client, boolean holding) {
+            this.client = client;
+            this.holding = holding;
+        }
+
+        @Override
+        public void await() throws IOException {
+            CountDownLatch ready = new CountDownLatch(1);
+            whenReady(ready::countDown);
+            try {
+                ready.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queued");
+            }
+        }
+
+        @Override
+        public void whenReady(Runnable task) {
+            synchronized (lock) {
+                if (!holding && !closed) {
+                    onReady = task;
+                    return;
+                }
+            }
+            task.run();
+        }
+
+        @Override
+        public WritableByteChannel wrap(WritableByteChannel out) {
+            if (global == null && client == null) {
+                return out;
+            }
+            return new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int length = Math.min(src.remaining(), CHUNK_SIZE);
+                    pause(client, length);
+
+                    ByteBuffer chunk = src.duplicate();
+                    ((Buffer) chunk).limit(chunk.position() + length);
+                    int written = out.write(chunk);
+                    ((Buffer) src).position(src.position() + written);
+                    return written;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return out.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            Runnable next = null;
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (!holding) {
+                    waiting.remove(this);
+                    return;
+                }
+
+                // Hand this download's place straight to the next in line
+                active--;
+                Scheduled admitted = waiting.poll();
+                if (admitted != null) {
+                    active++;
+                    admitted.holding = true;
+                    next = admitted.onReady;
+                    admitted.onReady = null;
+                }
+            }
+            if (next != null) {
+                next.run();
+            }
+        }
+    }
+}
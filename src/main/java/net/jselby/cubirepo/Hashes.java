@@ -0,0 +1,130 @@
+package net.jselby.cubirepo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes contains helpers for computing the content hashes of resources.
+ *
+ * @author j_selby
+ */
+public class Hashes {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Hashes() {}
+
+    /**
+     * Creates a new digest for the hash algorithm used by resources (SHA-256).
+     *
+     * @return A new MessageDigest.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not supported by this JVM", e);
+        }
+    }
+
+    /**
+     * Hashes an array of bytes.
+     *
+     * @param data The data to hash.
+     * @return The hex-encoded hash.
+     */
+    public static String hash(byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+
+    /**
+     * Hashes the contents of a file.
+     *
+     * @param file The file to hash.
+     * @return The hex-encoded hash.
+     * @throws IOException If the file could not be read.
+     */
+    public static String hash(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return hash(in);
+        }
+    }
+
+    /**
+     * Hashes the remaining contents of a stream. The stream is not closed.
+     *
+     * @param in The stream to hash.
+     * @return The hex-encoded hash.
+     * @throws IOException If the stream could not be read.
+     */
+    public static String hash(InputStream in) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Converts a digest into its hex representation.
+     *
+     * @param digest The digest to convert.
+     * @return The lowercase hex string.
+     */
+    public static String toHex(byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Checks if a string looks like a hex-encoded hash, such as the name of a blob.
+     *
+     * @param value The string to check.
+     * @return If it is 64 lowercase hex characters.
+     */
+    public static boolean isHash(String value) {
+        if (value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts a hex representation back into a digest.
+     *
+     * @param hex The hex string to convert.
+     * @return The digest.
+     * @throws IllegalArgumentException If the string isn't valid hex.
+     */
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd length hex string");
+        }
+
+        byte[] digest = new byte[hex.length() / 2];
+        for (int i = 0; i < digest.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high == -1 || low == -1) {
+                throw new IllegalArgumentException("Invalid hex string " + hex);
+            }
+            digest[i] = (byte) ((high << 4) | low);
+        }
+        return digest;
+    }
+}
@@ -0,0 +1,289 @@
+package net.jselby.cubirepo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The IntegrityScan checks that the contents of every resource are still on disk, and still what
+ * was stored, once the server has started answering requests.
+ *
+ * Each blob is checked for existence, size and hash, in parallel on a fork-join pool. Corrupt
+ * blobs are moved into cache/quarantine rather than deleted, so they can be looked at later, and
+ * their resources answer with a 404 until they are uploaded again. Blobs which no resource
+ * references any more, such as those left behind by a crash mid-upload, are quarantined as
+ * orphans. Contents stored by earlier builds are moved into the BlobStore along the way.
+ *
+ * Progress is written to the access log, and exported as metrics.
+ *
+ * @author j_selby
+ */
+public class IntegrityScan {
+    /**
+     * How many resources a fork-join task checks itself, before splitting.
+     */
+    private static final int BATCH_SIZE = 16;
+
+    private final ResourceRegistry registry;
+    private final MetadataStore store;
+    private final AccessLog log;
+    private final File quarantine;
+    private final int parallelism;
+    private final Consumer<Resource> onQuarantine;
+
+    private final ConcurrentHashMap<String, Boolean> checked = new ConcurrentHashMap<>();
+    /**
+     * The resources being checked, by hash, so everything sharing a corrupt blob is found at once.
+     */
+    private Map<String, List<Resource>> byHash;
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong corrupt = new AtomicLong();
+    private final AtomicLong orphans = new AtomicLong();
+    private volatile boolean finished;
+
+    /**
+     * Creates a new scan.
+     *
+     * @param registry The resources to check.
+     * @param store The store to record migrated resources in.
+     * @param log The log to report progress and problems to.
+     * @param quarantine The directory to move corrupt and orphaned blobs into.
+     * @param parallelism How many threads to check blobs on.
+     * @param onQuarantine Called with every resource whose contents were quarantined, so anything
+     *                     derived from them can be dropped.
+     */
+    public IntegrityScan(ResourceRegistry registry, MetadataStore store, AccessLog log, File quarantine,
+                         int parallelism, Consumer<Resource> onQuarantine) {
+        this.registry = registry;
+        this.store = store;
+        this.log = log;
+        this.quarantine = quarantine;
+        this.parallelism = parallelism;
+        this.onQuarantine = onQuarantine;
+    }
+
+    /**
+     * Starts the scan on a background thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, "Integrity scan");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Runs the scan on this thread, until it is complete.
+     */
+    public void run() {
+        long start = System.nanoTime();
+        List<Resource> resources = registry.getAll();
+        resources.removeIf(resource -> resource instanceof JenkinsResource);
+        byHash = new HashMap<>();
+        for (Resource resource : resources) {
+            if (resource.getHash() != null) {
+                byHash.computeIfAbsent(resource.getHash(), k -> new ArrayList<>()).add(resource);
+            }
+        }
+        total.set(resources.size());
+        log.event("Integrity scan started, checking " + resources.size() + " resources");
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ForEach<>(resources, 0, resources.size(), this::check));
+
+            // Only now is every blob in use known to be referenced
+            File[] shards = BlobStore.getInstance().getDirectory().listFiles(File::isDirectory);
+            if (shards != null) {
+                List<File> list = new ArrayList<>();
+                for (File shard : shards) {
+                    list.add(shard);
+                }
+                pool.invoke(new ForEach<>(list, 0, list.size(), this::collectOrphans));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        finished = true;
+        log.event("Integrity scan finished in " + (System.nanoTime() - start) / 1000000 + " ms: "
+                + done.get() + " resources and " + bytes.get() + " bytes checked, " + missing.get() + " missing, "
+                + corrupt.get() + " corrupt, " + orphans.get() + " orphaned blobs quarantined");
+    }
+
+    /**
+     * Returns how far along the scan is.
+     *
+     * @return The share of resources checked, from 0 to 1.
+     */
+    public double getProgress() {
+        if (finished) {
+            return 1;
+        }
+        int count = total.get();
+        return count == 0 ? 0 : (double) done.get() / count;
+    }
+
+    /**
+     * Returns how many resources were found without their contents.
+     *
+     * @return The amount of missing resources.
+     */
+    public long getMissing() {
+        return missing.get();
+    }
+
+    /**
+     * Returns how many blobs were quarantined, as they didn't match their hash.
+     *
+     * @return The amount of corrupt blobs.
+     */
+    public long getCorrupt() {
+        return corrupt.get();
+    }
+
+    /**
+     * Returns how many blobs were quarantined, as nothing referenced them.
+     *
+     * @return The amount of orphaned blobs.
+     */
+    public long getOrphans() {
+        return orphans.get();
+    }
+
+    private void check(Resource resource) {
+        try {
+            if (resource.getHash() == null) {
+                // Contents stored by earlier builds need to be moved into the BlobStore once
+                if (resource.migrateLegacyContents()) {
+                    if (store.update(resource)) {
+                        registry.touch();
+                    } else {
+                        // Replaced or deleted meanwhile, so nothing will release the migrated blob
+                        resource.releaseContents();
+                    }
+                } else if (registry.get(resource.getAuthor(), resource.getName(), resource.getVersion()) == resource) {
+                    report(resource, "has no contents");
+                }
+            } else if (checked.putIfAbsent(resource.getHash(), Boolean.TRUE) == null) {
+                verify(resource);
+            }
+        } catch (IOException e) {
+            log.event("Failed to check " + resource + ": " + e);
+        }
+
+        int count = total.get();
+        int current = done.incrementAndGet();
+        if (current * 10L / count != (current - 1) * 10L / count) {
+            log.event("Integrity scan " + current * 100L / count + "% done (" + current + "/" + count + ")");
+        }
+    }
+
+    private void verify(Resource resource) throws IOException {
+        String hash = resource.getHash();
+        BlobStore blobs = BlobStore.getInstance();
+        File file = blobs.getFile(hash);
+        if (!file.isFile()) {
+            // Unless it was deleted since the scan started
+            if (blobs.getReferences(hash) > 0) {
+                report(resource, "is missing " + file.getPath());
+            }
+            return;
+        }
+
+        long length = file.length();
+        String problem = null;
+        if (resource.getSize() > 0 && length != resource.getSize()) {
+            problem = "has " + length + " bytes, expected " + resource.getSize();
+        } else {
+            String actual = Hashes.hash(file);
+            bytes.addAndGet(length);
+            if (!actual.equals(hash)) {
+                problem = "hashes to " + actual;
+            }
+        }
+
+        if (problem != null && blobs.quarantine(hash, quarantine, false)) {
+            corrupt.incrementAndGet();
+            log.event("Quarantined the contents of " + resource + ", which " + problem);
+            for (Resource other : byHash.get(hash)) {
+                onQuarantine.accept(other);
+            }
+        }
+    }
+
+    private void collectOrphans(File shard) {
+        BlobStore blobs = BlobStore.getInstance();
+        File[] directories = shard.listFiles(File::isDirectory);
+        if (directories == null) {
+            return;
+        }
+
+        for (File directory : directories) {
+            // Compressed copies are collected along with their blob
+            File[] files = directory.listFiles((dir, name) -> Hashes.isHash(name));
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                try {
+                    if (blobs.quarantine(file.getName(), quarantine, true)) {
+                        orphans.incrementAndGet();
+                        log.event("Quarantined orphaned blob " + file.getName());
+                    }
+                } catch (IOException e) {
+                    log.event("Failed to quarantine orphaned blob " + file.getName() + ": " + e);
+                }
+            }
+        }
+    }
+
+    private void report(Resource resource, String problem) {
+        missing.incrementAndGet();
+        log.event("Contents of " + resource + " " + problem);
+    }
+
+    /**
+     * Runs an action over a range of a list, splitting it in halves between the threads of the pool.
+     */
+    private static class ForEach<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<T> items;
+        private final int from;
+        private final int to;
+        private final Consumer<T> action;
+
+        private ForEach(List<T> items, int from, int to, Consumer<T> action) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SIZE) {
+                for (int i = from; i < to; i++) {
+                    action.accept(items.get(i));
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new ForEach<>(items, from, middle, action), new ForEach<>(items, middle, to, action));
+        }
+    }
+}
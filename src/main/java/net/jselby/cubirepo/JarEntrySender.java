@@ -0,0 +1,208 @@
+package net.jselby.cubirepo;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * The JarEntrySender serves single entries out of jars, such as a class file or plugin.yml, so
+ * tools which only need one file don't have to download the whole jar.
+ *
+ * Entries are found through a JarIndex of each jar, which is kept in memory. Stored entries are
+ * sent straight from their byte range in the jar. Deflated entries are sent as they are to
+ * clients which accept gzip, with a gzip header and trailer around them, so nothing is inflated;
+ * other clients have just that entry inflated for them.
+ *
+ * @author j_selby
+ */
+public class JarEntrySender {
+    /**
+     * How many entries are indexed across all jars, before the least recently used indexes are
+     * dropped.
+     */
+    private static final long MAX_ENTRIES = 500000;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final LinkedHashMap<String, JarIndex> indexes = new LinkedHashMap<>(16, 0.75f, true);
+    private final SingleFlight<String, JarIndex> reads = new SingleFlight<>();
+    private long indexedEntries;
+
+    /**
+     * Returns the index of a jar, reading it if it isn't known yet.
+     *
+     * @param file The jar.
+     * @return The index of the jar.
+     * @throws ZipException If the file isn't a valid zip archive.
+     * @throws IOException If the file could not be read.
+     */
+    public JarIndex getIndex(File file) throws IOException {
+        String key = file.getPath();
+        synchronized (this) {
+            JarIndex index = indexes.get(key);
+            if (index != null && index.isCurrent(file)) {
+                return index;
+            }
+        }
+
+        return reads.load(key, () -> {
+            JarIndex index = JarIndex.read(file);
+            synchronized (this) {
+                JarIndex previous = indexes.put(key, index);
+                if (previous != null) {
+                    indexedEntries -= previous.getEntries().size();
+                }
+                indexedEntries += index.getEntries().size();
+
+                Iterator<JarIndex> iterator = indexes.values().iterator();
+                while (indexedEntries > MAX_ENTRIES && indexes.size() > 1 && iterator.hasNext()) {
+                    indexedEntries -= iterator.next().getEntries().size();
+                    iterator.remove();
+                }
+            }
+            return index;
+        });
+    }
+
+    /**
+     * Drops the index of a jar.
+     *
+     * @param file The jar.
+     */
+    public synchronized void invalidate(File file) {
+        if (file == null) {
+            return;
+        }
+
+        JarIndex removed = indexes.remove(file.getPath());
+        if (removed != null) {
+            indexedEntries -= removed.getEntries().size();
+        }
+    }
+
+    /**
+     * Sends a single entry of a jar as the body of a response.
+     *
+     * @param resource The resource holding the jar.
+     * @param name The full name of the entry, such as META-INF/MANIFEST.MF.
+     * @param req The request being answered.
+     * @param res The response to write to.
+     * @return The status code of the response, 404 if there is no such entry, 415 if the resource
+     *         isn't a zip archive, or 503 if its contents haven't been fetched yet.
+     * @throws IOException If the response could not be written.
+     */
+    public int send(Resource resource, String name, Request req, Response res) throws IOException {
+        File file = resource.getFile();
+        if (file == null) {
+            return 503;
+        } else if (!file.isFile()) {
+            return 404;
+        }
+
+        JarIndex index;
+        try {
+            index = getIndex(file);
+        } catch (ZipException e) {
+            return 415;
+        }
+        JarIndex.Entry entry = index.getEntry(name);
+        if (entry == null) {
+            return 404;
+        } else if (entry.getMethod() != JarIndex.STORED && entry.getMethod() != JarIndex.DEFLATED) {
+            return 415;
+        }
+
+        boolean gzip = entry.getMethod() == JarIndex.DEFLATED && Compression.acceptsGzip(req);
+        String etag = resource.getHash() == null ? null : "\"" + resource.getHash() + "-"
+                + Long.toHexString(entry.getCrc()) + (gzip ? "-gzip" : "") + "\"";
+        long lastModified = resource.getLastModified() > 0 ? resource.getLastModified() : file.lastModified();
+
+        HttpServletResponse raw = res.raw();
+        raw.setContentType(getContentType(name));
+        raw.setDateHeader("Last-Modified", lastModified);
+        if (entry.getMethod() == JarIndex.DEFLATED) {
+            raw.setHeader("Vary", "Accept-Encoding");
+        }
+        if (etag != null) {
+            raw.setHeader("ETag", etag);
+        }
+        if (ResourceSender.isNotModified(req, etag, lastModified)) {
+            return 304;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long offset = JarIndex.getDataOffset(channel, entry);
+            raw.setStatus(200);
+
+            if (entry.getMethod() == JarIndex.STORED) {
+                raw.setHeader("Content-Length", Long.toString(entry.getSize()));
+                WritableByteChannel out = Channels.newChannel(raw.getOutputStream());
+                ResourceSender.transfer(channel, offset, entry.getSize(), out);
+            } else if (gzip) {
+                // A deflated entry is a gzip body, once wrapped in a header and a trailer
+                raw.setHeader("Content-Encoding", "gzip");
+                raw.setHeader("Content-Length", Long.toString(GZIP_HEADER.length + entry.getCompressedSize() + 8));
+
+                ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                trailer.putInt((int) entry.getCrc());
+                trailer.putInt((int) entry.getSize());
+                trailer.flip();
+
+                OutputStream stream = raw.getOutputStream();
+                stream.write(GZIP_HEADER);
+                WritableByteChannel out = Channels.newChannel(stream);
+                ResourceSender.transfer(channel, offset, entry.getCompressedSize(), out);
+                while (trailer.hasRemaining()) {
+                    out.write(trailer);
+                }
+            } else {
+                raw.setHeader("Content-Length", Long.toString(entry.getSize()));
+                InputStream compressed = new BoundedInputStream(
+                        Channels.newInputStream(channel.position(offset)), entry.getCompressedSize());
+                Inflater inflater = new Inflater(true);
+                try (InputStream in = new InflaterInputStream(compressed, inflater, 16 * 1024)) {
+                    IOUtils.copyLarge(in, raw.getOutputStream(), 0, entry.getSize());
+                } finally {
+                    inflater.end();
+                }
+            }
+            return 200;
+        }
+    }
+
+    private static String getContentType(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".class")) {
+            return "application/java-vm";
+        } else if (lower.endsWith(".json")) {
+            return "application/json";
+        } else if (lower.endsWith(".xml")) {
+            return "application/xml";
+        } else if (lower.endsWith(".yml") || lower.endsWith(".yaml") || lower.endsWith(".txt")
+                || lower.endsWith(".properties") || lower.endsWith(".mf") || lower.endsWith(".cfg")) {
+            return "text/plain; charset=utf-8";
+        } else if (lower.endsWith(".png")) {
+            return "image/png";
+        }
+        return "application/octet-stream";
+    }
+}
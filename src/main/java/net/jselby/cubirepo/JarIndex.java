@@ -0,0 +1,304 @@
+package net.jselby.cubirepo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * A JarIndex lists the entries of a jar (or any zip archive), along with where each of them is
+ * stored, so a single entry can be read without going through the rest of the archive.
+ *
+ * Only the central directory at the end of the archive is read to build the index. Zip64
+ * archives, for more than 65535 entries or 4 GB, are supported.
+ *
+ * @author j_selby
+ */
+public class JarIndex {
+    /**
+     * Entries are stored as they are.
+     */
+    public static final int STORED = 0;
+
+    /**
+     * Entries are compressed with raw deflate.
+     */
+    public static final int DEFLATED = 8;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    /**
+     * The largest central directory read, in bytes.
+     */
+    private static final long MAX_DIRECTORY_SIZE = 64 * 1024 * 1024;
+
+    private final Map<String, Entry> entries;
+    private final long fileSize;
+    private final long fileModified;
+
+    /**
+     * An entry of an archive.
+     */
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final transient long headerOffset;
+
+        private Entry(String name, int method, long crc, long compressedSize, long size, long headerOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns how this entry is stored.
+         *
+         * @return STORED, DEFLATED, or another zip compression method.
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private JarIndex(Map<String, Entry> entries, long fileSize, long fileModified) {
+        this.entries = entries;
+        this.fileSize = fileSize;
+        this.fileModified = fileModified;
+    }
+
+    /**
+     * Reads the index of an archive.
+     *
+     * @param file The archive to read.
+     * @return The index of the archive.
+     * @throws ZipException If the file isn't a valid zip archive.
+     * @throws IOException If the file could not be read.
+     */
+    public static JarIndex read(File file) throws IOException {
+        long modified = file.lastModified();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < END_SIZE) {
+                throw new ZipException("Too small to be a zip archive");
+            }
+
+            // The end record is followed by a comment of up to 64k, so search backwards for it
+            int tailSize = (int) Math.min(size, END_SIZE + MAX_COMMENT_SIZE);
+            long tailStart = size - tailSize;
+            ByteBuffer tail = read(channel, tailStart, tailSize);
+            int end = -1;
+            for (int i = tailSize - END_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == END_SIGNATURE) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end == -1) {
+                throw new ZipException("No end of central directory record");
+            }
+
+            long count = tail.getShort(end + 10) & 0xFFFF;
+            long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+            long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+            if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+                // Zip64: the real values are in another record, found through a locator
+                long locator = tailStart + end - 20;
+                if (locator < 0) {
+                    throw new ZipException("Missing zip64 locator");
+                }
+                ByteBuffer locatorRecord = read(channel, locator, 20);
+                if (locatorRecord.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+                    throw new ZipException("Missing zip64 locator");
+                }
+                long recordOffset = locatorRecord.getLong(8);
+                if (recordOffset < 0 || recordOffset + 56 > size) {
+                    throw new ZipException("Invalid zip64 end record offset");
+                }
+                ByteBuffer record = read(channel, recordOffset, 56);
+                if (record.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new ZipException("Missing zip64 end record");
+                }
+                count = record.getLong(32);
+                directorySize = record.getLong(40);
+                directoryOffset = record.getLong(48);
+            }
+
+            if (directorySize < 0 || directoryOffset < 0 || directoryOffset + directorySize > size) {
+                throw new ZipException("Central directory is outside of the archive");
+            } else if (directorySize > MAX_DIRECTORY_SIZE) {
+                throw new ZipException("Central directory is too large");
+            }
+
+            ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+            Map<String, Entry> entries = new LinkedHashMap<>((int) Math.min(count, 1 << 20) * 4 / 3 + 1);
+            int position = 0;
+            while (position + CENTRAL_HEADER_SIZE <= directory.limit()
+                    && directory.getInt(position) == CENTRAL_SIGNATURE) {
+                int method = directory.getShort(position + 10) & 0xFFFF;
+                long crc = directory.getInt(position + 16) & 0xFFFFFFFFL;
+                long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+                long uncompressedSize = directory.getInt(position + 24) & 0xFFFFFFFFL;
+                int nameLength = directory.getShort(position + 28) & 0xFFFF;
+                int extraLength = directory.getShort(position + 30) & 0xFFFF;
+                int commentLength = directory.getShort(position + 32) & 0xFFFF;
+                long headerOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+
+                int nameStart = position + CENTRAL_HEADER_SIZE;
+                int next = nameStart + nameLength + extraLength + commentLength;
+                if (next > directory.limit()) {
+                    throw new ZipException("Truncated central directory");
+                }
+
+                byte[] nameBytes = new byte[nameLength];
+                for (int i = 0; i < nameLength; i++) {
+                    nameBytes[i] = directory.get(nameStart + i);
+                }
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+                // Values which don't fit in 32 bits are moved to the zip64 extra field, in order
+                int extra = nameStart + nameLength;
+                int extraEnd = extra + extraLength;
+                while (extra + 4 <= extraEnd) {
+                    int id = directory.getShort(extra) & 0xFFFF;
+                    int length = directory.getShort(extra + 2) & 0xFFFF;
+                    if (id == 0x0001) {
+                        int field = extra + 4;
+                        if (uncompressedSize == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                            uncompressedSize = directory.getLong(field);
+                            field += 8;
+                        }
+                        if (compressedSize == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                            compressedSize = directory.getLong(field);
+                            field += 8;
+                        }
+                        if (headerOffset == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                            headerOffset = directory.getLong(field);
+                        }
+                        break;
+                    }
+                    extra += 4 + length;
+                }
+
+                if (!name.endsWith("/")) {
+                    entries.put(name, new Entry(name, method, crc, compressedSize, uncompressedSize, headerOffset));
+                }
+                position = next;
+            }
+
+            return new JarIndex(Collections.unmodifiableMap(entries), size, modified);
+        }
+    }
+
+    /**
+     * Finds an entry by its name.
+     *
+     * @param name The full name of the entry, such as META-INF/MANIFEST.MF.
+     * @return The entry, or null if there is none with that name.
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns every entry of the archive, in the order they are listed in the central directory.
+     * Directories are left out.
+     *
+     * @return An unmodifiable collection of entries.
+     */
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Checks if the archive contains a class.
+     *
+     * @param className The fully qualified name of the class, such as net.cubition.Example.
+     * @return If the archive has a class file for it.
+     */
+    public boolean hasClass(String className) {
+        return entries.containsKey(className.replace('.', '/') + ".class");
+    }
+
+    /**
+     * Checks if this index still describes a file, or if the file has been replaced since.
+     *
+     * @param file The file the index was read from.
+     * @return If the index is up to date.
+     */
+    public boolean isCurrent(File file) {
+        return file.length() == fileSize && file.lastModified() == fileModified;
+    }
+
+    /**
+     * Finds where the data of an entry starts, after its local header.
+     *
+     * @param channel The archive.
+     * @param entry The entry to find.
+     * @return The offset of the (possibly compressed) data of the entry.
+     * @throws IOException If the local header is invalid, or could not be read.
+     */
+    public static long getDataOffset(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer header = read(channel, entry.headerOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_SIGNATURE) {
+            throw new ZipException("Invalid local header for " + entry.name);
+        }
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        long offset = entry.headerOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        if (offset + entry.compressedSize > channel.size()) {
+            throw new ZipException("Data of " + entry.name + " is outside of the archive");
+        }
+        return offset;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new ZipException("Unexpected end of archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,367 @@
+package net.jselby.cubirepo;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The JenkinsMirror keeps a local copy of the last stable server build from Jenkins.
+ *
+ * Jenkins is polled in the background, and the artifact is only downloaded again when the build
+ * number changes. Requests are always served from the local copy, so a slow or unavailable Jenkins
+ * only means that the copy gets stale.
+ *
+ * @author j_selby
+ */
+public class JenkinsMirror {
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+    // How long replaced builds are kept, so downloads which already picked one can still open it
+    private static final long RETIRE_DELAY = 10 * 60;
+
+    private volatile URL projectUrl;
+    private final File directory;
+    private final File stateFile;
+    private final Gson gson = new Gson();
+
+    private final SingleFlight<String, Build> refreshes = new SingleFlight<>();
+    private final List<Consumer<Build>> listeners = new CopyOnWriteArrayList<>();
+    private volatile ScheduledExecutorService scheduler;
+
+    private volatile Build build;
+
+    /**
+     * A build that has been mirrored locally. Builds are never changed once created, so they can be
+     * handed between threads through a volatile reference.
+     */
+    public static class Build {
+        private final int number;
+        private final String fileName;
+        private final String hash;
+        private final long size;
+        private final long lastModified;
+
+        private Build(int number, String fileName, String hash, long size, long lastModified) {
+            this.number = number;
+            this.fileName = fileName;
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Creates a new mirror.
+     *
+     * @param projectUrl The JSON API URL for the Jenkins project.
+     * @param directory The directory to store mirrored builds in.
+     */
+    public JenkinsMirror(URL projectUrl, File directory) {
+        this.projectUrl = projectUrl;
+        this.directory = directory;
+        this.stateFile = new File(directory, "state.json");
+
+        loadState();
+    }
+
+    /**
+     * Changes where builds are mirrored from, such as to point at a local stand-in for Jenkins.
+     * Takes effect on the next poll.
+     *
+     * @param projectUrl The JSON API URL for the Jenkins project.
+     */
+    public void setProjectUrl(URL projectUrl) {
+        this.projectUrl = projectUrl;
+    }
+
+    /**
+     * Starts polling Jenkins in the background. Does nothing if the mirror is already running.
+     *
+     * @param interval The delay between polls, in seconds.
+     */
+    public synchronized void start(long interval) {
+        if (scheduler != null) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Jenkins mirror");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, interval, TimeUnit.SECONDS);
+        // Builds replaced just before a restart never had their deletion run
+        scheduler.execute(this::deleteOldBuilds);
+    }
+
+    /**
+     * Adds a listener which is called whenever a new build has been mirrored. If a build has
+     * already been mirrored, the listener is called immediately.
+     *
+     * @param listener The listener to add.
+     */
+    public void addListener(Consumer<Build> listener) {
+        listeners.add(listener);
+
+        Build current = build;
+        if (current != null) {
+            listener.accept(current);
+        }
+    }
+
+    /**
+     * Returns the build which is currently mirrored.
+     *
+     * @return The build, or null if nothing has been mirrored yet.
+     */
+    public Build getBuild() {
+        return build;
+    }
+
+    /**
+     * Returns the local copy of the currently mirrored artifact.
+     *
+     * @return The file, or null if nothing has been mirrored yet.
+     */
+    public File getFile() {
+        Build current = build;
+        if (current == null) {
+            return null;
+        }
+        return getFile(current);
+    }
+
+    /**
+     * Polls Jenkins for a new stable build, and downloads it if it has changed. Failures are
+     * logged, and the existing copy continues to be served. If a poll is already running, this
+     * waits for it to finish rather than starting another.
+     */
+    public void refresh() {
+        URL url = projectUrl;
+        long start = System.nanoTime();
+        try {
+            refreshes.load(url.toString(), () -> poll(url));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to refresh Jenkins mirror: " + e);
+            Metrics.getInstance().increment("cubirepo_jenkins_failures_total", "Failed polls of Jenkins.", 1);
+        } finally {
+            Metrics.getInstance().observe("cubirepo_jenkins_poll_seconds", "Time taken to poll Jenkins, including downloads.",
+                    1e-6, (System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Returns how many refreshes waited for a poll which was already running.
+     *
+     * @return The amount of shared polls.
+     */
+    public long getSharedRefreshes() {
+        return refreshes.getShared();
+    }
+
+    private Build poll(URL projectUrl) throws IOException {
+        JsonObject project = fetchJson(projectUrl);
+        JsonElement lastStableElement = project.get("lastStableBuild");
+        if (lastStableElement == null || lastStableElement.isJsonNull()) {
+            return build;
+        }
+        JsonObject lastStable = lastStableElement.getAsJsonObject();
+        int number = lastStable.get("number").getAsInt();
+
+        Build current = build;
+        if (current != null && current.number == number && getFile(current).isFile()) {
+            return current;
+        }
+
+        // Poll the build itself
+        String buildUrl = lastStable.get("url").getAsString();
+        JsonObject buildDescription = fetchJson(new URL(buildUrl + "api/json"));
+        JsonArray artifacts = buildDescription.get("artifacts").getAsJsonArray();
+
+        String fileName = null;
+        for (JsonElement object : artifacts) {
+            String name = object.getAsJsonObject().get("fileName").getAsString();
+            if (!isSafeFileName(name)) {
+                System.err.println("Ignoring Jenkins artifact with unsafe name " + name);
+            } else if (name.toLowerCase(Locale.ROOT).startsWith("server")) {
+                fileName = name;
+                break;
+            }
+        }
+
+        if (fileName == null) {
+            System.err.println("Jenkins build #" + number + " has no server artifact");
+            return current;
+        }
+
+        long downloadStart = System.nanoTime();
+        Build fetched = download(number, fileName, new URL(buildUrl + "artifact/out/" + fileName));
+        Metrics.getInstance().observe("cubirepo_jenkins_download_seconds", "Time taken to download Jenkins builds.",
+                1e-6, (System.nanoTime() - downloadStart) / 1000);
+        build = fetched;
+        saveState(fetched);
+
+        if (current != null && !getFile(current).equals(getFile(fetched))) {
+            retire(getFile(current));
+        }
+
+        for (Consumer<Build> listener : listeners) {
+            listener.accept(fetched);
+        }
+        return fetched;
+    }
+
+    /**
+     * Deletes the artifact of a replaced build, once downloads which started before it was replaced
+     * have had time to open it. Without a running scheduler, it is deleted right away.
+     */
+    private void retire(File file) {
+        Runnable delete = () -> {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                System.err.println("Failed to delete old Jenkins build: " + e);
+            }
+        };
+
+        ScheduledExecutorService current = scheduler;
+        if (current == null) {
+            delete.run();
+        } else {
+            current.schedule(delete, RETIRE_DELAY, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Deletes the artifacts of every build other than the current one.
+     */
+    private void deleteOldBuilds() {
+        Build current = build;
+        File[] files = directory.listFiles((dir, name) -> name.matches("\\d+_.+"));
+        if (current == null || files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.equals(getFile(current))) {
+                retire(file);
+            }
+        }
+    }
+
+    private Build download(int number, String fileName, URL url) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory.getPath());
+        }
+
+        File temp = File.createTempFile("download", ".tmp", directory);
+        try {
+            MessageDigest digest = Hashes.newDigest();
+            long size;
+            try (InputStream in = new DigestInputStream(open(url), digest);
+                 OutputStream out = new FileOutputStream(temp)) {
+                size = IOUtils.copyLarge(in, out);
+            }
+
+            Build fetched = new Build(number, fileName, Hashes.toHex(digest.digest()), size,
+                    System.currentTimeMillis());
+            Files.move(temp.toPath(), getFile(fetched).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return fetched;
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Returns the local copy of the artifact of a build.
+     *
+     * @param build The build.
+     * @return The file, which may no longer exist if the build has been replaced.
+     */
+    public File getFile(Build build) {
+        return new File(directory, build.number + "_" + build.fileName);
+    }
+
+    /**
+     * Checks that an artifact name from Jenkins can't lead outside of the mirror's directory.
+     */
+    static boolean isSafeFileName(String fileName) {
+        return fileName != null && !fileName.isEmpty() && !fileName.contains("/") && !fileName.contains("\\")
+                && !fileName.contains("..");
+    }
+
+    private JsonObject fetchJson(URL url) throws IOException {
+        try (InputStream in = open(url)) {
+            return gson.fromJson(IOUtils.toString(in, StandardCharsets.UTF_8), JsonObject.class);
+        }
+    }
+
+    private InputStream open(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        return connection.getInputStream();
+    }
+
+    private void loadState() {
+        if (!stateFile.isFile()) {
+            return;
+        }
+
+        try (Reader in = new InputStreamReader(new FileInputStream(stateFile), StandardCharsets.UTF_8)) {
+            Build loaded = gson.fromJson(in, Build.class);
+            if (loaded != null && isSafeFileName(loaded.fileName) && getFile(loaded).isFile()) {
+                build = loaded;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to load Jenkins mirror state: " + e);
+        }
+    }
+
+    private void saveState(Build state) throws IOException {
+        File temp = new File(directory, stateFile.getName() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            gson.toJson(state, out);
+        }
+        Files.move(temp.toPath(), stateFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
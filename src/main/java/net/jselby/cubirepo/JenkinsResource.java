@@ -1,26 +1,48 @@
 package net.jselby.cubirepo;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import org.apache.commons.io.IOUtils;
+import com.google.gson.JsonSerializer;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.function.Consumer;
 
 /**
- * The JenkinsResource pulls Servers directly from my Jenkins.
+ * The JenkinsResource pulls Servers directly from my Jenkins. Builds are served from a local
+ * mirror, which is refreshed in the background.
  *
  * @author j_selby
  */
 public class JenkinsResource extends Resource {
-    private transient final long serialVersionUID = 104242301239l;
+    // Matches the UID computed for earlier builds, so existing cubirepo.dat files still load
+    private static final long serialVersionUID = 4808444020513696586L;
 
     private transient static final URL PROJECT_URL;
 
+    private transient static final JenkinsMirror MIRROR;
+
+    /**
+     * The build this resource currently describes, swapped whole so readers never see a mix of two
+     * builds' metadata.
+     */
+    private transient volatile JenkinsMirror.Build build;
+
+    /**
+     * Serializes JenkinsResources along with the metadata of the current build, which Gson wouldn't
+     * find in the fields of Resource.
+     */
+    public static final JsonSerializer<JenkinsResource> SERIALIZER = (src, type, context) -> {
+        JsonObject json = context.serialize(src, Resource.class).getAsJsonObject();
+        JenkinsMirror.Build current = src.build;
+        if (current != null) {
+            json.addProperty("hash", current.getHash());
+            json.addProperty("size", current.getSize());
+            json.addProperty("lastModified", current.getLastModified());
+        }
+        return json;
+    };
+
     public JenkinsResource() {
         name = "server";
         version = "latest";
@@ -38,6 +60,7 @@ public class JenkinsResource extends Resource {
         }
 
         PROJECT_URL = PROJECT_URL1;
+        MIRROR = new JenkinsMirror(PROJECT_URL, new File("cache", "jenkins"));
     }
 
     @Override
@@ -56,56 +79,108 @@ public class JenkinsResource extends Resource {
     }
 
     @Override
-    public byte[] getContents() {
-        // Find out latest build
-        try {
-            Gson gson = new Gson();
+    public String getHash() {
+        JenkinsMirror.Build current = build;
+        return current == null ? null : current.getHash();
+    }
 
-            InputStream jsonBasicIn = PROJECT_URL.openStream();
-            String jsonBasicString = IOUtils.toString(jsonBasicIn);
-            jsonBasicIn.close();
+    @Override
+    public long getSize() {
+        JenkinsMirror.Build current = build;
+        return current == null ? 0 : current.getSize();
+    }
 
-            // Get the last stable build
-            JsonObject jsonBasic = gson.fromJson(jsonBasicString, JsonObject.class);
-            JsonObject jsonBasicLastStable = jsonBasic.get("lastStableBuild").getAsJsonObject();
+    @Override
+    public long getLastModified() {
+        JenkinsMirror.Build current = build;
+        return current == null ? 0 : current.getLastModified();
+    }
 
-            // Poll the build itself
-            URL buildDescriptionUrl = new URL(jsonBasicLastStable.get("url").getAsString() + "api/json");
+    @Override
+    public File getFile() {
+        JenkinsMirror.Build current = build;
+        return current == null ? null : MIRROR.getFile(current);
+    }
 
-            InputStream buildDescriptionIn = buildDescriptionUrl.openStream();
-            String buildDescriptionString = IOUtils.toString(buildDescriptionIn);
-            buildDescriptionIn.close();
+    @Override
+    public File getCompressedFile() {
+        // Server jars don't compress well enough to be worth keeping a copy
+        return null;
+    }
 
-            // Get the artifacts from it
-            JsonObject buildDescription = gson.fromJson(buildDescriptionString, JsonObject.class);
-            JsonArray artifacts = buildDescription.get("artifacts").getAsJsonArray();
+    @Override
+    public ResourceSender.Sendable snapshot() {
+        // Read the build once, so the file and its metadata always come from the same one
+        JenkinsMirror.Build current = build;
+        File file = current == null ? null : MIRROR.getFile(current);
+        return new ResourceSender.Sendable() {
+            @Override
+            public File getFile() {
+                return file;
+            }
 
-            JsonObject artifact = null;
+            @Override
+            public String getHash() {
+                return current == null ? null : current.getHash();
+            }
 
-            for (JsonElement object : artifacts) {
-                JsonObject discoveredArtifact = object.getAsJsonObject();
-                String name = discoveredArtifact.get("fileName").getAsString().toLowerCase();
-                if (name.startsWith("server")) {
-                    artifact = discoveredArtifact;
-                    break;
-                }
+            @Override
+            public long getSize() {
+                return current == null ? 0 : current.getSize();
             }
 
-            if (artifact == null) {
-                return null;
+            @Override
+            public long getLastModified() {
+                return current == null ? 0 : current.getLastModified();
             }
+        };
+    }
 
-            // Woo! We have an artifact now
-            String name = artifact.get("fileName").getAsString();
+    @Override
+    public void retainContents() {
+        // Contents are kept by the mirror, not the BlobStore
+    }
 
-            URL artifactUrl = new URL(jsonBasicLastStable.get("url").getAsString() + "artifact/out/" + name);
+    @Override
+    public void releaseContents() {}
 
-            return IOUtils.toByteArray(artifactUrl);
-        } catch ( IOException e) {
-            e.printStackTrace();
-        }
+    @Override
+    public boolean migrateLegacyContents() {
+        return false;
+    }
 
-        return null;
+    /**
+     * Changes the Jenkins project which builds are mirrored from. The default is the Cubition
+     * project on my Jenkins.
+     *
+     * @param projectUrl The JSON API URL for the Jenkins project.
+     */
+    public static void setProjectUrl(URL projectUrl) {
+        MIRROR.setProjectUrl(projectUrl);
+    }
+
+    /**
+     * Returns how many refreshes of the mirror waited for a poll which was already running.
+     *
+     * @return The amount of shared polls.
+     */
+    public static long getSharedRefreshes() {
+        return MIRROR.getSharedRefreshes();
+    }
+
+    /**
+     * Starts mirroring builds from Jenkins in the background, keeping the metadata of this resource
+     * up to date with the mirrored build.
+     *
+     * @param interval The delay between polls of Jenkins, in seconds.
+     * @param onUpdate Called with the new build after the metadata of this resource has changed.
+     */
+    public void startMirroring(long interval, Consumer<JenkinsMirror.Build> onUpdate) {
+        MIRROR.addListener(build -> {
+            this.build = build;
+            onUpdate.accept(build);
+        });
+        MIRROR.start(interval);
     }
 
     @Override
@@ -0,0 +1,388 @@
+package net.jselby.cubirepo;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * The MetadataStore persists the contents of a ResourceRegistry. Changes to the registry should be
+ * made through the store, which serializes them.
+ *
+ * Every mutation is appended to a journal (cubirepo.journal) and synced, so it costs a single small
+ * write. Once the journal grows past a threshold, the registry is compacted into a snapshot
+ * (cubirepo.snapshot) and the journal is started again. Both files are replaced with atomic renames,
+ * and journal records are checksummed, so a crash mid-write loses at most the record being written.
+ *
+ * Resources are stored as JSON, so fields can be added to or removed from Resource without breaking
+ * existing files. Snapshot records are decoded in parallel when loading. JenkinsResources aren't
+ * stored, as they are created at startup.
+ *
+ * @author j_selby
+ */
+public class MetadataStore {
+    private static final int SNAPSHOT_MAGIC = 0x4352534E; // CRSN
+    private static final int JOURNAL_MAGIC = 0x43524A4C; // CRJL
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_DELETE = 2;
+
+    private final ResourceRegistry registry;
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File legacyFile;
+    private final int compactThreshold;
+    private final Gson gson = new Gson();
+
+    private FileChannel journal;
+    private int journalRecords;
+
+    /**
+     * Creates a new store.
+     *
+     * @param registry The registry to load into and snapshot from.
+     * @param directory The directory to keep the store in.
+     * @param compactThreshold The amount of journal records after which a snapshot is taken.
+     */
+    public MetadataStore(ResourceRegistry registry, File directory, int compactThreshold) {
+        this.registry = registry;
+        this.snapshotFile = new File(directory, "cubirepo.snapshot");
+        this.journalFile = new File(directory, "cubirepo.journal");
+        this.legacyFile = new File(directory, "cubirepo.dat");
+        this.compactThreshold = compactThreshold;
+    }
+
+    /**
+     * Loads the snapshot and replays the journal into the registry. Registries saved by earlier
+     * builds (cubirepo.dat) are migrated into a snapshot.
+     *
+     * @throws IOException If the store could not be read.
+     */
+    public synchronized void load() throws IOException {
+        if (snapshotFile.exists()) {
+            readSnapshot();
+        } else if (legacyFile.exists()) {
+            readLegacy();
+            writeSnapshot();
+            Files.move(legacyFile.toPath(), new File(legacyFile.getPath() + ".migrated").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        replayJournal();
+        compactIfNeeded();
+    }
+
+    /**
+     * Adds a resource to the registry, replacing any existing resource with the same coordinates.
+     * The change is journaled before it is applied, so the registry never holds anything which
+     * would be lost on a restart.
+     *
+     * @param resource The resource to add.
+     * @return The resource that was replaced, or null if none existed.
+     * @throws IOException If the record could not be written. The registry is left unchanged.
+     */
+    public synchronized Resource add(Resource resource) throws IOException {
+        if (!(resource instanceof JenkinsResource)) {
+            append(OP_ADD, gson.toJsonTree(resource).getAsJsonObject());
+        }
+        Resource previous = registry.add(resource);
+        compactIfNeeded();
+        return previous;
+    }
+
+    /**
+     * Records the current fields of a resource, such as after its contents have been migrated.
+     *
+     * @param resource The resource that was changed.
+     * @return If the resource was recorded, or false if it has since been removed or replaced.
+     * @throws IOException If the record could not be written.
+     */
+    public synchronized boolean update(Resource resource) throws IOException {
+        if (!isCurrent(resource)) {
+            return false;
+        }
+        add(resource);
+        return true;
+    }
+
+    /**
+     * Removes a resource from the registry. As with add(), the change is journaled first.
+     *
+     * @param resource The resource to remove.
+     * @return If the resource was present.
+     * @throws IOException If the record could not be written. The registry is left unchanged.
+     */
+    public synchronized boolean remove(Resource resource) throws IOException {
+        if (!isCurrent(resource)) {
+            return false;
+        }
+
+        if (!(resource instanceof JenkinsResource)) {
+            JsonObject record = new JsonObject();
+            record.addProperty("author", resource.getAuthor());
+            record.addProperty("name", resource.getName());
+            record.addProperty("version", resource.getVersion());
+            append(OP_DELETE, record);
+        }
+        registry.remove(resource);
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Writes the whole registry to a new snapshot, and starts a new journal.
+     *
+     * @throws IOException If the snapshot could not be written.
+     */
+    public synchronized void compact() throws IOException {
+        long start = System.nanoTime();
+        writeSnapshot();
+
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+
+        // Everything in the journal is now part of the snapshot
+        File temp = new File(journalFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, journalHeader());
+            channel.force(true);
+        }
+        replace(temp, journalFile);
+        journalRecords = 0;
+
+        Metrics.getInstance().observe("cubirepo_store_compact_seconds", "Time taken to write metadata snapshots.",
+                1e-6, (System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Closes the journal.
+     *
+     * @throws IOException If the journal could not be closed.
+     */
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private void append(byte op, JsonObject record) throws IOException {
+        long start = System.nanoTime();
+        byte[] payload = record.toString().getBytes(StandardCharsets.UTF_8);
+
+        CRC32 crc = new CRC32();
+        crc.update(op);
+        crc.update(payload);
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + payload.length + 8);
+        buffer.put(op).putInt(payload.length).put(payload).putLong(crc.getValue());
+        buffer.flip();
+
+        FileChannel channel = openJournal();
+        writeFully(channel, buffer);
+        channel.force(false);
+        Metrics.getInstance().observe("cubirepo_store_append_seconds", "Time taken to write and sync journal records.",
+                1e-6, (System.nanoTime() - start) / 1000);
+        journalRecords++;
+    }
+
+    /**
+     * Compacts once the journal has grown past the threshold. This has to wait until the journaled
+     * change has been applied to the registry, as the snapshot is taken from the registry.
+     */
+    private void compactIfNeeded() throws IOException {
+        if (journalRecords >= compactThreshold) {
+            compact();
+        }
+    }
+
+    private boolean isCurrent(Resource resource) {
+        return registry.get(resource.getAuthor(), resource.getName(), resource.getVersion()) == resource;
+    }
+
+    private FileChannel openJournal() throws IOException {
+        if (journal == null) {
+            boolean exists = journalFile.exists();
+            journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (!exists || journal.size() == 0) {
+                writeFully(journal, journalHeader());
+            }
+            journal.position(journal.size());
+        }
+        return journal;
+    }
+
+    private void replayJournal() throws IOException {
+        journalRecords = 0;
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        long validLength;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            if (journalFile.length() < 8) {
+                validLength = 0;
+            } else {
+                checkHeader(in.readInt(), in.readInt(), JOURNAL_MAGIC, journalFile);
+                validLength = 8;
+
+                while (true) {
+                    int op = in.read();
+                    if (op == -1) {
+                        break;
+                    }
+
+                    byte[] payload;
+                    long checksum;
+                    try {
+                        int length = in.readInt();
+                        if (length < 0 || validLength + 13 + length > journalFile.length()) {
+                            break;
+                        }
+                        payload = new byte[length];
+                        in.readFully(payload);
+                        checksum = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+
+                    CRC32 crc = new CRC32();
+                    crc.update(op);
+                    crc.update(payload);
+                    if (crc.getValue() != checksum) {
+                        break;
+                    }
+
+                    apply((byte) op, gson.fromJson(new String(payload, StandardCharsets.UTF_8), JsonObject.class));
+                    validLength += 13 + payload.length;
+                    journalRecords++;
+                }
+            }
+        }
+
+        if (validLength < journalFile.length()) {
+            // A write was interrupted; drop the torn record so new records follow valid ones
+            System.err.println("Discarding " + (journalFile.length() - validLength)
+                    + " bytes of incomplete journal records");
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        }
+    }
+
+    private void apply(byte op, JsonObject record) {
+        if (op == OP_ADD) {
+            registry.add(gson.fromJson(record, Resource.class));
+        } else if (op == OP_DELETE) {
+            Resource existing = registry.get(record.get("author").getAsString(),
+                    record.get("name").getAsString(), record.get("version").getAsString());
+            if (existing != null) {
+                registry.remove(existing);
+            }
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            checkHeader(in.readInt(), in.readInt(), SNAPSHOT_MAGIC, snapshotFile);
+
+            int count = in.readInt();
+            byte[][] payloads = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                payloads[i] = new byte[in.readInt()];
+                in.readFully(payloads[i]);
+            }
+
+            // Records don't depend on each other, so only adding them to the registry needs to be in order
+            Resource[] resources = new Resource[count];
+            IntStream.range(0, count).parallel().forEach(i -> resources[i] =
+                    gson.fromJson(new String(payloads[i], StandardCharsets.UTF_8), Resource.class));
+            for (Resource resource : resources) {
+                registry.add(resource);
+            }
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        List<Resource> resources = registry.getAll();
+        resources.removeIf(resource -> resource instanceof JenkinsResource);
+
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(resources.size());
+            for (Resource resource : resources) {
+                byte[] payload = gson.toJson(resource).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(payload.length);
+                out.write(payload);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        replace(temp, snapshotFile);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readLegacy() throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(legacyFile))) {
+            for (Resource resource : (List<Resource>) in.readObject()) {
+                if (!(resource instanceof JenkinsResource)) {
+                    registry.add(resource);
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Failed to read " + legacyFile.getPath(), e);
+        }
+    }
+
+    private static void checkHeader(int magic, int version, int expectedMagic, File file) throws IOException {
+        if (magic != expectedMagic) {
+            throw new IOException(file.getPath() + " is not a CubiRepo metadata file");
+        }
+        if (version > FORMAT_VERSION) {
+            throw new IOException(file.getPath() + " was written by a newer version (format " + version + ")");
+        }
+    }
+
+    private static ByteBuffer journalHeader() {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(JOURNAL_MAGIC).putInt(FORMAT_VERSION);
+        header.flip();
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void replace(File source, File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Make sure the rename itself is durable, where the platform allows it
+        File parent = target.getAbsoluteFile().getParentFile();
+        try (FileChannel directory = FileChannel.open(parent.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Not supported on all platforms
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package net.jselby.cubirepo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Metrics collects counters, gauges and histograms from across the server, and renders them in
+ * the Prometheus text format.
+ *
+ * Metrics are created on first use, and are identified by their name and labels. Labels are
+ * given as alternating names and values. Each metric keeps a bounded amount of label
+ * combinations; further combinations are counted together under overflow="true".
+ *
+ * @author j_selby
+ */
+public class Metrics {
+    private static final Metrics INSTANCE = new Metrics();
+
+    private static final int MAX_SERIES = 10000;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * All series sharing a name.
+     */
+    private static class Family {
+        private final String type;
+        private final String help;
+        private final double scale;
+        private final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        private Family(String type, String help, double scale) {
+            this.type = type;
+            this.help = help;
+            this.scale = scale;
+        }
+
+        private Object get(String labels, Supplier<Object> factory) {
+            Object existing = series.get(labels);
+            if (existing != null) {
+                return existing;
+            }
+            if (series.size() >= MAX_SERIES) {
+                labels = "overflow=\"true\"";
+            }
+            return series.computeIfAbsent(labels, key -> factory.get());
+        }
+    }
+
+    /**
+     * Returns the metrics of this server.
+     *
+     * @return The shared Metrics.
+     */
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds to a counter.
+     *
+     * @param name The name of the counter.
+     * @param help A description of the counter.
+     * @param amount The amount to add.
+     * @param labels Alternating label names and values.
+     */
+    public void increment(String name, String help, long amount, String... labels) {
+        Family family = family(name, "counter", help, 1);
+        ((LongAdder) family.get(formatLabels(labels), LongAdder::new)).add(amount);
+    }
+
+    /**
+     * Records a value in a histogram, which is exported as a summary with quantiles.
+     *
+     * @param name The name of the histogram.
+     * @param help A description of the histogram.
+     * @param scale What to multiply values with when exporting, such as 1e-6 to export
+     *              microseconds as seconds.
+     * @param value The value to record.
+     * @param labels Alternating label names and values.
+     */
+    public void observe(String name, String help, double scale, long value, String... labels) {
+        Family family = family(name, "summary", help, scale);
+        ((Histogram) family.get(formatLabels(labels), Histogram::new)).record(value);
+    }
+
+    /**
+     * Registers a gauge, which is read whenever the metrics are rendered.
+     *
+     * @param name The name of the gauge.
+     * @param help A description of the gauge.
+     * @param value Supplies the current value.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        family(name, "gauge", help, 1).series.put("", value);
+    }
+
+    /**
+     * Registers a counter which is maintained elsewhere, and read whenever the metrics are
+     * rendered.
+     *
+     * @param name The name of the counter.
+     * @param help A description of the counter.
+     * @param value Supplies the current count.
+     */
+    public void counter(String name, String help, DoubleSupplier value) {
+        family(name, "counter", help, 1).series.put("", value);
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text format.
+     *
+     * @return The rendered metrics.
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+            for (Map.Entry<String, Object> series : new ConcurrentSkipListMap<>(family.series).entrySet()) {
+                String labels = series.getKey();
+                Object value = series.getValue();
+
+                if (value instanceof LongAdder) {
+                    appendSample(out, name, labels, null, ((LongAdder) value).sum());
+                } else if (value instanceof DoubleSupplier) {
+                    appendSample(out, name, labels, null, ((DoubleSupplier) value).getAsDouble());
+                } else if (value instanceof Histogram) {
+                    Histogram histogram = (Histogram) value;
+                    for (double quantile : QUANTILES) {
+                        appendSample(out, name, labels, "quantile=\"" + quantile + "\"",
+                                histogram.getValueAtPercentile(quantile * 100) * family.scale);
+                    }
+                    appendSample(out, name + "_sum", labels, null, histogram.getSum() * family.scale);
+                    appendSample(out, name + "_count", labels, null, histogram.getCount());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String type, String help, double scale) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = families.computeIfAbsent(name, key -> new Family(type, help, scale));
+        }
+        return family;
+    }
+
+    private static void appendSample(StringBuilder out, String name, String labels, String extra, double value) {
+        out.append(name);
+        if (!labels.isEmpty() || extra != null) {
+            out.append('{').append(labels);
+            if (extra != null) {
+                out.append(labels.isEmpty() ? "" : ",").append(extra);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(labels[i]).append("=\"");
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    out.append('\\').append(c);
+                } else if (c == '\n') {
+                    out.append("\\n");
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+        return out.toString();
+    }
+}
@@ -4,8 +4,9 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.*;
 
-public class Resource implements Serializable {
-    private transient final long serialVersionUID = 104242301238l;
+public class Resource implements Serializable, ResourceSender.Sendable {
+    // Matches the UID computed for earlier builds, so existing cubirepo.dat files still load
+    private static final long serialVersionUID = -4581228825465909009L;
 
     /**
      * The name of the resource defines the actual resource name, and is used in downloading resources.
@@ -32,6 +33,21 @@ public class Resource implements Serializable {
      */
     protected String type;
 
+    /**
+     * The SHA-256 hash of the contents of this resource, in hex.
+     */
+    protected String hash;
+
+    /**
+     * The size of the contents of this resource, in bytes.
+     */
+    protected long size;
+
+    /**
+     * When the contents of this resource were last changed, in milliseconds since the epoch.
+     */
+    protected long lastModified;
+
     /**
      * Returns the name of this resource. This is also the name used in polling for resources.
      *
@@ -77,13 +93,76 @@ public class Resource implements Serializable {
         return type;
     }
 
+    /**
+     * Returns the SHA-256 hash of the contents of this resource.
+     *
+     * @return The hex-encoded hash, or null if it is unknown.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the size of the contents of this resource.
+     *
+     * @return The size in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns when the contents of this resource were last changed.
+     *
+     * @return The modification time in milliseconds since the epoch, or 0 if unknown.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the file on disk which holds the contents of this resource.
+     *
+     * @return The file for this resource, or null if this resource isn't stored locally.
+     */
+    public File getFile() {
+        if (hash == null) {
+            return getLegacyFile();
+        }
+        return BlobStore.getInstance().getFile(hash);
+    }
+
+    /**
+     * Returns a gzip compressed copy of the contents of this resource.
+     *
+     * @return The compressed file, or null if there is no compressed copy.
+     */
+    public File getCompressedFile() {
+        if (hash == null) {
+            return null;
+        }
+        return BlobStore.getInstance().getCompressedFile(hash);
+    }
+
+    /**
+     * Returns where earlier builds stored the contents of this resource, before the BlobStore.
+     *
+     * @return The legacy file for this resource.
+     */
+    private File getLegacyFile() {
+        return new File("cache", getName() + "_" + getAuthor() + "_" + getVersion() + "." + getType());
+    }
+
     /**
      * Returns the byte contents of the main resource itself.
      *
      * @return The contents of the resource.
      */
     public byte[] getContents() {
-        File file = new File("cache", getName() + "_" + getAuthor() + "_" + getVersion() + "." + getType());
+        File file = getFile();
+        if (file == null) {
+            return null;
+        }
 
         try (FileInputStream in = new FileInputStream(file)) {
             return IOUtils.toByteArray(in);
@@ -114,18 +193,101 @@ public class Resource implements Serializable {
     }
 
     public void setContents(byte[] contents) {
-        // Save it to disk
-        File parent = new File("cache");
-        if (!parent.exists()) {
-            parent.mkdir();
+        try {
+            setContents(new ByteArrayInputStream(contents));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Streams new contents for this resource into the BlobStore. If identical contents are already
+     * stored, nothing new is kept. This resource holds a reference to its contents, which is given
+     * up by releaseContents().
+     *
+     * @param in The stream to read the contents from. This is not closed.
+     * @throws IOException If the contents could not be stored.
+     */
+    public void setContents(InputStream in) throws IOException {
+        String previous = hash;
+
+        hash = BlobStore.getInstance().put(in);
+        size = getFile().length();
+        lastModified = System.currentTimeMillis();
+
+        if (previous != null) {
+            BlobStore.getInstance().release(previous);
+        }
+    }
+
+    /**
+     * Moves a file, whose hash has already been checked, into the BlobStore as the new contents of
+     * this resource, as for setContents(InputStream).
+     *
+     * @param file The file holding the contents.
+     * @param hash The hex-encoded SHA-256 hash of the file.
+     * @throws IOException If the contents could not be stored.
+     */
+    public void setContents(File file, String hash) throws IOException {
+        String previous = this.hash;
+
+        this.hash = BlobStore.getInstance().put(file, hash);
+        size = getFile().length();
+        lastModified = System.currentTimeMillis();
+
+        if (previous != null) {
+            BlobStore.getInstance().release(previous);
+        }
+    }
+
+    /**
+     * Takes a reference to the contents of this resource, so they are kept in the BlobStore.
+     * Used when resources are loaded at startup.
+     */
+    public void retainContents() {
+        if (hash != null) {
+            BlobStore.getInstance().retain(hash);
         }
+    }
+
+    /**
+     * Gives up this resource's reference to its contents. Once nothing else references the same
+     * contents, they are deleted from disk.
+     */
+    public void releaseContents() {
+        if (hash != null) {
+            BlobStore.getInstance().release(hash);
+        }
+    }
+
+    /**
+     * Moves contents stored by earlier builds (cache/name_author_version.type) into the BlobStore,
+     * filling in the hash, size and modification time if they are missing. Any reference already
+     * held by this resource is swapped for one to the migrated contents.
+     *
+     * @return If the metadata of this resource was updated.
+     */
+    public boolean migrateLegacyContents() {
+        File file = getLegacyFile();
+        if (!file.isFile()) {
+            return false;
+        }
+
+        try {
+            String previous = hash;
+            if (previous == null) {
+                size = file.length();
+                lastModified = file.lastModified();
+            }
 
-        File file = new File(parent, getName() + "_" + getAuthor() + "_" + getVersion() + "." + getType());
-        try (FileOutputStream out = new FileOutputStream(file)) {
-            out.write(contents);
-            out.flush();
+            hash = BlobStore.getInstance().put(file);
+            if (previous != null) {
+                BlobStore.getInstance().release(previous);
+            }
+            return !hash.equals(previous);
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
@@ -140,6 +302,7 @@ public class Resource implements Serializable {
                 ", author='" + author + '\'' +
                 ", version='" + version + '\'' +
                 ", type='" + type + '\'' +
+                ", hash='" + hash + '\'' +
                 ", mainClass='" + mainClass + '\'' +
                 '}';
     }
@@ -0,0 +1,263 @@
+package net.jselby.cubirepo;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ResourceRegistry owns every Resource known to the repository, and indexes them by their
+ * normalized (author, name, version) coordinates.
+ *
+ * All operations are safe to call from concurrent request threads.
+ *
+ * @author j_selby
+ */
+public class ResourceRegistry {
+    /**
+     * Exact lookups: author/name/version -> Resource
+     */
+    private final ConcurrentMap<String, Resource> resources = new ConcurrentHashMap<>();
+
+    /**
+     * Variant lookups: author/name -> (version -> Resource), sorted by VersionComparator
+     */
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, Resource>> variants = new ConcurrentHashMap<>();
+
+    /**
+     * Author lookups: author -> (author/name/version -> Resource)
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Resource>> byAuthor = new ConcurrentHashMap<>();
+
+    /**
+     * Name lookups: name -> (author/name/version -> Resource)
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Resource>> byName = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every change, so that derived data can tell when it is out of date.
+     */
+    private final AtomicLong modifications = new AtomicLong();
+
+    /**
+     * Adds a resource to this registry, replacing any existing resource with the same coordinates.
+     *
+     * @param resource The resource to add.
+     * @return The resource that was replaced, or null if none existed.
+     */
+    public Resource add(Resource resource) {
+        String category = key(resource.getAuthor(), resource.getName());
+        String version = normalize(resource.getVersion());
+
+        String key = category + "/" + version;
+
+        synchronized (variants) {
+            Resource previous = resources.put(key, resource);
+            variants.computeIfAbsent(category, k -> new ConcurrentSkipListMap<>(VersionComparator.INSTANCE))
+                    .put(version, resource);
+            byAuthor.computeIfAbsent(normalize(resource.getAuthor()), k -> new ConcurrentHashMap<>()).put(key, resource);
+            byName.computeIfAbsent(normalize(resource.getName()), k -> new ConcurrentHashMap<>()).put(key, resource);
+            modifications.incrementAndGet();
+            return previous;
+        }
+    }
+
+    /**
+     * Removes a resource from this registry.
+     *
+     * @param resource The resource to remove.
+     * @return If the resource was present.
+     */
+    public boolean remove(Resource resource) {
+        String category = key(resource.getAuthor(), resource.getName());
+        String version = normalize(resource.getVersion());
+
+        String key = category + "/" + version;
+
+        synchronized (variants) {
+            if (!resources.remove(key, resource)) {
+                return false;
+            }
+
+            ConcurrentSkipListMap<String, Resource> versions = variants.get(category);
+            if (versions != null) {
+                versions.remove(version, resource);
+                if (versions.isEmpty()) {
+                    variants.remove(category);
+                }
+            }
+            removeFromIndex(byAuthor, normalize(resource.getAuthor()), key, resource);
+            removeFromIndex(byName, normalize(resource.getName()), key, resource);
+            modifications.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Finds a resource by its exact coordinates. Comparisons are case insensitive.
+     *
+     * @param author The author of the resource.
+     * @param name The name of the resource.
+     * @param version The version of the resource.
+     * @return The resource, or null if it doesn't exist.
+     */
+    public Resource get(String author, String name, String version) {
+        if (author == null || name == null || version == null) {
+            return null;
+        }
+        return resources.get(key(author, name) + "/" + normalize(version));
+    }
+
+    /**
+     * Finds a resource by its author and name, and either an exact version or a range of versions
+     * (such as latest, latest-stable, 1.2.+ or [1.0,2.0), see VersionRange). Exact versions take
+     * precedence, so a resource which is actually versioned "latest" is still found.
+     *
+     * @param author The author of the resource.
+     * @param name The name of the resource.
+     * @param query The version or range of versions.
+     * @return The resource, or the newest one in the range, or null if none match.
+     */
+    public Resource resolve(String author, String name, String query) {
+        Resource exact = get(author, name, query);
+        if (exact != null || query == null) {
+            return exact;
+        }
+
+        VersionRange range = VersionRange.parse(query);
+        if (range == null) {
+            return null;
+        }
+        NavigableMap<String, Resource> versions = variants.get(key(author, name));
+        return versions == null ? null : range.select(versions);
+    }
+
+    /**
+     * Returns all versions of a particular resource, oldest first.
+     *
+     * @param author The author of the resource.
+     * @param name The name of the resource.
+     * @return All known versions of this resource. Empty if none exist.
+     */
+    public Collection<Resource> getVariants(String author, String name) {
+        if (author == null || name == null) {
+            return Collections.emptyList();
+        }
+        Map<String, Resource> versions = variants.get(key(author, name));
+        if (versions == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(versions.values());
+    }
+
+    /**
+     * Returns all resources by a particular author.
+     *
+     * @param author The author to search for.
+     * @return All resources by this author. Empty if none exist.
+     */
+    public Collection<Resource> getByAuthor(String author) {
+        return lookup(byAuthor, author);
+    }
+
+    /**
+     * Returns all resources with a particular name, from any author.
+     *
+     * @param name The name to search for.
+     * @return All resources with this name. Empty if none exist.
+     */
+    public Collection<Resource> getByName(String name) {
+        return lookup(byName, name);
+    }
+
+    /**
+     * Checks if any version of a particular resource exists.
+     *
+     * @param author The author of the resource.
+     * @param name The name of the resource.
+     * @return If any version exists.
+     */
+    public boolean hasVariants(String author, String name) {
+        return author != null && name != null && variants.containsKey(key(author, name));
+    }
+
+    /**
+     * Finds a resource of the specified class.
+     *
+     * @param type The class to search for.
+     * @return The first instance found, or null if none exist.
+     */
+    public <T extends Resource> T find(Class<T> type) {
+        for (Resource resource : resources.values()) {
+            if (type.isInstance(resource)) {
+                return type.cast(resource);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a snapshot of all resources in this registry.
+     *
+     * @return A new list of resources.
+     */
+    public List<Resource> getAll() {
+        return new ArrayList<>(resources.values());
+    }
+
+    /**
+     * Marks this registry as modified, for when the metadata of a resource changes in place.
+     */
+    public void touch() {
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Returns a counter which changes whenever this registry (or a resource in it) is modified.
+     *
+     * @return The current modification count.
+     */
+    public long getModificationCount() {
+        return modifications.get();
+    }
+
+    /**
+     * Returns the amount of resources in this registry.
+     *
+     * @return The number of resources.
+     */
+    public int size() {
+        return resources.size();
+    }
+
+    private static Collection<Resource> lookup(Map<String, ConcurrentMap<String, Resource>> index, String value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        Map<String, Resource> matches = index.get(normalize(value));
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(matches.values());
+    }
+
+    private static void removeFromIndex(Map<String, ConcurrentMap<String, Resource>> index, String value,
+                                        String key, Resource resource) {
+        ConcurrentMap<String, Resource> matches = index.get(value);
+        if (matches != null) {
+            matches.remove(key, resource);
+            if (matches.isEmpty()) {
+                index.remove(value);
+            }
+        }
+    }
+
+    private static String key(String author, String name) {
+        return normalize(author) + "/" + normalize(name);
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+}
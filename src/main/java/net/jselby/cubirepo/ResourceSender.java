@@ -0,0 +1,432 @@
+package net.jselby.cubirepo;
+
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The ResourceSender writes the contents of a Resource to a HTTP response.
+ *
+ * Resources stored on disk are streamed directly from their file, so memory usage per request
+ * doesn't depend on the size of the resource. These also support conditional requests
+ * (If-None-Match, If-Modified-Since) and single byte ranges, so clients can skip unchanged
+ * downloads or resume interrupted ones. Clients which accept gzip are sent the precompressed copy
+ * of a resource, where one exists. Popular files are served from an ArtifactCache, without touching
+ * the disk.
+ *
+ * Given an executor, the body of a response is written from there with the request in async
+ * mode, so a slow client only holds on to a worker, and not to one of Jetty's threads.
+ *
+ * @author j_selby
+ */
+public class ResourceSender {
+    private final ArtifactCache cache;
+
+    /**
+     * Something which can be sent: a file, along with what conditional requests are checked
+     * against. Resources are sendable, as are things made from them, like patches.
+     */
+    public interface Sendable {
+        /**
+         * Returns the file holding the contents to send.
+         *
+         * @return The file, or null if the contents aren't stored locally.
+         */
+        File getFile();
+
+        /**
+         * Returns a gzip compressed copy of the file.
+         *
+         * @return The compressed file, or null if there is no compressed copy.
+         */
+        default File getCompressedFile() {
+            return null;
+        }
+
+        /**
+         * Returns the hex-encoded hash of the contents, which is sent as their ETag.
+         *
+         * @return The hash, or null if it is unknown.
+         */
+        String getHash();
+
+        /**
+         * Returns the size of the contents.
+         *
+         * @return The size in bytes.
+         */
+        long getSize();
+
+        /**
+         * Returns when the contents last changed.
+         *
+         * @return The modification time in milliseconds since the epoch, or 0 if unknown.
+         */
+        long getLastModified();
+
+        /**
+         * Returns a view of this which stays the same while it is being sent, for those which can
+         * be swapped out from under a request.
+         *
+         * @return The view, which is this by default.
+         */
+        default Sendable snapshot() {
+            return this;
+        }
+    }
+
+    /**
+     * Creates a new sender.
+     *
+     * @param cache The cache to serve popular files from.
+     */
+    public ResourceSender(ArtifactCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sends the contents of a resource as the body of a response.
+     *
+     * @param resource The resource, or other contents, to send.
+     * @param req The request being answered.
+     * @param res The response to write to.
+     * @return The status code of the response, 404 if the contents of the resource are missing, or
+     *         503 if they haven't been fetched yet.
+     * @throws IOException If the response could not be written.
+     */
+    public int send(Sendable resource, Request req, Response res) throws IOException {
+        return send(resource, req, res, null, null);
+    }
+
+    /**
+     * Sends the contents of a resource as the body of a response. If an executor is given and
+     * there is a body to send, the headers are sent right away, and the body is written from the
+     * executor with the request in async mode; the response is complete once that finishes.
+     *
+     * If a scheduler is given, bodies large enough to be scheduled wait for their turn, and are
+     * written within the bandwidth they are allowed. Downloads the scheduler turns away are
+     * answered with a 503, and a Retry-After header.
+     *
+     * @param resource The resource to send.
+     * @param req The request being answered.
+     * @param res The response to write to.
+     * @param executor The executor to write the body from, or null to write it on this thread.
+     * @param scheduler The scheduler to send large bodies through, or null.
+     * @return The status code of the response, 404 if the contents of the resource are missing, or
+     *         503 if they haven't been fetched yet or the scheduler turned the download away.
+     * @throws IOException If the response could not be written.
+     */
+    public int send(Sendable resource, Request req, Response res, Executor executor,
+                    DownloadScheduler scheduler) throws IOException {
+        // The ticket of the download, unless the body is still being written when this returns
+        DownloadScheduler.Ticket[] pending = new DownloadScheduler.Ticket[1];
+        try {
+            return sendFile(resource.snapshot(), req, res, executor, scheduler, pending);
+        } finally {
+            if (pending[0] != null) {
+                pending[0].close();
+            }
+        }
+    }
+
+    private int sendFile(Sendable resource, Request req, Response res, Executor executor,
+                         DownloadScheduler scheduler, DownloadScheduler.Ticket[] pending) throws IOException {
+        File file = resource.getFile();
+
+        if (file == null) {
+            // Not fetched yet, such as before the first Jenkins build has been mirrored
+            return 503;
+        }
+        if (!file.isFile()) {
+            return 404;
+        }
+
+        long lastModified = resource.getLastModified() > 0 ? resource.getLastModified() : file.lastModified();
+        String etag = resource.getHash() == null ? null : "\"" + resource.getHash() + "\"";
+
+        HttpServletResponse raw = res.raw();
+        raw.setHeader("Vary", "Accept-Encoding");
+
+        File compressed = resource.getCompressedFile();
+        boolean gzip = compressed != null && Compression.acceptsGzip(req);
+        if (gzip) {
+            // The compressed copy is a separate representation, with its own tag and ranges
+            file = compressed;
+            etag = etag == null ? null : "\"" + resource.getHash() + "-gzip\"";
+        }
+
+        if (isNotModified(req, etag, lastModified)) {
+            setValidators(raw, etag, lastModified);
+            return 304;
+        }
+
+        ByteBuffer cached = cache.get(file);
+        FileChannel channel = cached == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+        try {
+            long size = cached != null ? cached.remaining() : channel.size();
+
+            long start = 0;
+            long end = size - 1;
+            int status = 200;
+
+            String range = req.headers("Range");
+            if (range != null && isRangeApplicable(req, etag, lastModified)) {
+                long[] bounds = parseRange(range, size);
+                if (bounds == null) {
+                    raw.setHeader("Content-Range", "bytes */" + size);
+                    return 416;
+                } else if (bounds.length == 2) {
+                    start = bounds[0];
+                    end = bounds[1];
+                    status = 206;
+                    raw.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+                }
+            }
+
+            long length = end - start + 1;
+            DownloadScheduler.Ticket ticket = scheduler == null ? DownloadScheduler.UNLIMITED
+                    : scheduler.enter(req.ip(), length);
+            if (ticket == null) {
+                raw.setHeader("Retry-After", "5");
+                return 503;
+            }
+            pending[0] = ticket;
+
+            // Only describe the body once it is certain to be sent, so errors don't claim to be it
+            setValidators(raw, etag, lastModified);
+            raw.setHeader("Accept-Ranges", "bytes");
+            if (gzip) {
+                raw.setHeader("Content-Encoding", "gzip");
+            }
+            raw.setStatus(status);
+            raw.setHeader("Content-Length", Long.toString(length));
+
+            if (executor == null || length == 0) {
+                ticket.await();
+                writeBody(cached, channel, start, length, raw, ticket);
+                return status;
+            }
+
+            // Commit the headers, so nothing Spark does after the route can change them
+            raw.flushBuffer();
+            AsyncContext async = req.raw().startAsync();
+            async.setTimeout(0);
+
+            FileChannel source = channel;
+            channel = null;
+            pending[0] = null;
+            long from = start;
+            Runnable write = () -> {
+                try {
+                    writeBody(cached, source, from, length, raw, ticket);
+                } catch (IOException e) {
+                    // The client went away
+                } finally {
+                    ticket.close();
+                    close(source);
+                    async.complete();
+                }
+            };
+            // Queued downloads are only handed to a worker once they are let in
+            ticket.whenReady(() -> {
+                try {
+                    executor.execute(write);
+                } catch (RejectedExecutionException e) {
+                    write.run();
+                }
+            });
+            return status;
+        } finally {
+            close(channel);
+        }
+    }
+
+    private static void setValidators(HttpServletResponse raw, String etag, long lastModified) {
+        raw.setDateHeader("Last-Modified", lastModified);
+        if (etag != null) {
+            raw.setHeader("ETag", etag);
+        }
+    }
+
+    private static void writeBody(ByteBuffer cached, FileChannel channel, long start, long length,
+                                  HttpServletResponse raw, DownloadScheduler.Ticket ticket) throws IOException {
+        WritableByteChannel out = ticket.wrap(Channels.newChannel(raw.getOutputStream()));
+        if (cached != null) {
+            ((Buffer) cached).limit((int) (start + length));
+            ((Buffer) cached).position((int) start);
+            while (cached.hasRemaining()) {
+                out.write(cached);
+            }
+        } else {
+            transfer(channel, start, length, out);
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Checks the conditional headers of a request against the current version of a resource.
+     */
+    static boolean isNotModified(Request req, String etag, long lastModified) {
+        return isNotModified(req.headers("If-None-Match"), getDateHeader(req, "If-Modified-Since"), etag, lastModified);
+    }
+
+    /**
+     * Checks conditional headers against the current version of a resource. If-None-Match takes
+     * precedence over If-Modified-Since.
+     *
+     * @param ifNoneMatch The If-None-Match header, or null.
+     * @param ifModifiedSince The If-Modified-Since header, in milliseconds since the epoch, or -1.
+     * @param etag The current entity tag, or null if there is none.
+     * @param lastModified When the resource was last changed, in milliseconds since the epoch.
+     * @return If the client's copy is current.
+     */
+    static boolean isNotModified(String ifNoneMatch, long ifModifiedSince, String etag, long lastModified) {
+        if (ifNoneMatch != null) {
+            return etag != null && matchesTag(ifNoneMatch, etag);
+        }
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static boolean isRangeApplicable(Request req, String etag, long lastModified) {
+        String ifRange = req.headers("If-Range");
+        boolean tag = ifRange != null && (ifRange.startsWith("\"") || ifRange.startsWith("W/"));
+        return isRangeApplicable(ifRange, tag ? -1 : getDateHeader(req, "If-Range"), etag, lastModified);
+    }
+
+    /**
+     * Ranges only apply if the client's copy (as described by If-Range) is still current.
+     *
+     * @param ifRange The If-Range header, or null.
+     * @param ifRangeDate The If-Range header as a date, in milliseconds since the epoch, or -1 if it
+     *                    isn't one.
+     * @param etag The current entity tag, or null if there is none.
+     * @param lastModified When the resource was last changed, in milliseconds since the epoch.
+     * @return If the Range header should be honoured.
+     */
+    static boolean isRangeApplicable(String ifRange, long ifRangeDate, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && ifRange.equals(etag);
+        }
+        return ifRangeDate != -1 && lastModified / 1000 <= ifRangeDate / 1000;
+    }
+
+    private static boolean matchesTag(String header, String etag) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getDateHeader(Request req, String name) {
+        try {
+            return req.raw().getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a Range header.
+     *
+     * @param header The value of the header.
+     * @param size The size of the resource.
+     * @return The inclusive {start, end} of the range, an empty array if the header should be
+     *         ignored, or null if the range can't be satisfied.
+     */
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.contains(",")) {
+            // Only single byte ranges are supported, anything else gets the full body
+            return new long[0];
+        }
+
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return new long[0];
+        }
+
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                // Suffix range: the last n bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                if (dash == spec.length() - 1) {
+                    end = size - 1;
+                } else {
+                    end = Long.parseLong(spec.substring(dash + 1));
+                    if (end < start) {
+                        // Not a valid range at all, rather than one which can't be satisfied
+                        return new long[0];
+                    }
+                    end = Math.min(end, size - 1);
+                }
+            }
+
+            if (start < 0 || start >= size) {
+                return null;
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    /**
+     * Transfers a region of a file to a channel.
+     *
+     * @param channel The file to read from.
+     * @param position The position to start reading from.
+     * @param length The amount of bytes to send.
+     * @param out The channel to write to.
+     * @throws IOException If the transfer failed.
+     */
+    static void transfer(FileChannel channel, long position, long length, WritableByteChannel out)
+            throws IOException {
+        long end = position + length;
+        while (position < end) {
+            long sent = channel.transferTo(position, end - position, out);
+            if (sent <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += sent;
+        }
+    }
+}
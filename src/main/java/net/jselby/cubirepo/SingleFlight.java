@@ -0,0 +1,94 @@
+package net.jselby.cubirepo;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A SingleFlight makes concurrent loads of the same key share a single call. The first caller
+ * for a key runs the load; everyone who asks for that key while it is running waits for it, and
+ * gets the same result (or failure). Nothing is cached once the load has finished.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the loaded values.
+ * @author j_selby
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * A load which may fail with an IOException.
+     *
+     * @param <V> The type of the loaded value.
+     */
+    public interface Loader<V> {
+        V load() throws IOException;
+    }
+
+    /**
+     * Loads a value, or waits for a load of the same key which is already running.
+     *
+     * @param key The key to load.
+     * @param loader Loads the value, if no load for the key is running.
+     * @return The loaded value.
+     * @throws IOException If the load failed.
+     */
+    public V load(K key, Loader<V> loader) throws IOException {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            shared.incrementAndGet();
+            return await(existing);
+        }
+
+        try {
+            V value = loader.load();
+            future.complete(value);
+            return value;
+        } catch (IOException | RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Returns how many callers were given the result of another caller's load.
+     *
+     * @return The amount of shared loads.
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    private static <V> V await(CompletableFuture<V> future) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
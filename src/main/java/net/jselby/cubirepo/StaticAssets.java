@@ -0,0 +1,149 @@
+package net.jselby.cubirepo;
+
+import org.apache.commons.io.IOUtils;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * StaticAssets holds the files served under /res/, loaded once at startup.
+ *
+ * Each asset is also served under a fingerprinted name containing a hash of its contents
+ * (prism.0123456789ab.js), which can be cached by browsers and proxies forever, as any change to
+ * the asset changes its URL. Pages should link to assets through getUrl().
+ *
+ * @author j_selby
+ */
+public class StaticAssets {
+    private static final Map<String, String> TYPES = new HashMap<>();
+
+    static {
+        TYPES.put("js", "text/javascript; charset=utf-8");
+        TYPES.put("css", "text/css; charset=utf-8");
+        TYPES.put("html", "text/html; charset=utf-8");
+        TYPES.put("png", "image/png");
+        TYPES.put("svg", "image/svg+xml");
+    }
+
+    private final String prefix;
+    private final Map<String, Asset> byName = new HashMap<>();
+    private final Map<String, Asset> byFingerprint = new HashMap<>();
+
+    /**
+     * A single asset, with its contents ready to send.
+     */
+    private static class Asset {
+        private final String fingerprintedName;
+        private final String type;
+        private final byte[] contents;
+        private final byte[] gzip;
+        private final String etag;
+        private final String gzipEtag;
+
+        private Asset(String name, byte[] contents) {
+            String hash = Hashes.hash(contents).substring(0, 12);
+            int dot = name.lastIndexOf('.');
+            String extension = dot == -1 ? "" : name.substring(dot + 1);
+
+            this.fingerprintedName = dot == -1 ? name + "." + hash : name.substring(0, dot) + "." + hash + "." + extension;
+            this.type = TYPES.getOrDefault(extension.toLowerCase(Locale.ROOT), "application/octet-stream");
+            this.contents = contents;
+            byte[] compressed = Compression.gzip(contents);
+            this.gzip = compressed.length < contents.length ? compressed : null;
+            this.etag = "\"" + hash + "\"";
+            // The gzipped asset is a separate representation, with its own tag
+            this.gzipEtag = "\"" + hash + "-gzip\"";
+        }
+    }
+
+    /**
+     * Loads a set of assets from the classpath.
+     *
+     * @param prefix The URL (and classpath) prefix of the assets, such as /res/.
+     * @param names The names of the assets to load.
+     */
+    public StaticAssets(String prefix, String... names) {
+        this.prefix = prefix;
+
+        for (String name : names) {
+            try (InputStream in = getClass().getResourceAsStream(prefix + name)) {
+                if (in == null) {
+                    throw new IllegalArgumentException("Asset " + prefix + name + " does not exist");
+                }
+
+                Asset asset = new Asset(name, IOUtils.toByteArray(in));
+                byName.put(name, asset);
+                byFingerprint.put(asset.fingerprintedName, asset);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load asset " + prefix + name, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the fingerprinted URL of an asset.
+     *
+     * @param name The name of the asset.
+     * @return The URL to link to.
+     */
+    public String getUrl(String name) {
+        Asset asset = byName.get(name);
+        if (asset == null) {
+            throw new IllegalArgumentException("Unknown asset " + name);
+        }
+        return prefix + asset.fingerprintedName;
+    }
+
+    /**
+     * Sends an asset.
+     *
+     * @param name The requested name of the asset, either plain or fingerprinted.
+     * @param req The request being answered.
+     * @param res The response to write to.
+     * @return The status code of the response, or 404 if the asset doesn't exist.
+     * @throws IOException If the response could not be written.
+     */
+    public int send(String name, Request req, Response res) throws IOException {
+        Asset asset = byFingerprint.get(name);
+        if (asset != null) {
+            res.header("Cache-Control", "public, max-age=31536000, immutable");
+        } else {
+            asset = byName.get(name);
+            if (asset == null) {
+                return 404;
+            }
+            // Plain names can change contents, so they must be revalidated
+            res.header("Cache-Control", "no-cache");
+        }
+
+        boolean gzip = asset.gzip != null && Compression.acceptsGzip(req);
+        String etag = gzip ? asset.gzipEtag : asset.etag;
+
+        res.type(asset.type);
+        res.header("ETag", etag);
+        res.header("Vary", "Accept-Encoding");
+
+        if (ResourceSender.isNotModified(req.headers("If-None-Match"), -1, etag, 0)) {
+            return 304;
+        }
+
+        byte[] body = asset.contents;
+        if (gzip) {
+            body = asset.gzip;
+            res.header("Content-Encoding", "gzip");
+        }
+
+        res.raw().setContentLength(body.length);
+        OutputStream out = res.raw().getOutputStream();
+        out.write(body);
+        out.flush();
+        return 200;
+    }
+}
@@ -0,0 +1,172 @@
+package net.jselby.cubirepo;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A Template is a HTML page with %placeholders%, which is loaded and split up once so that
+ * rendering it is just a matter of appending its parts.
+ *
+ * @author j_selby
+ */
+public class Template {
+    private static final Pattern PLACEHOLDER = Pattern.compile("%([A-Za-z]+)%");
+    private static final Pattern ASSET = Pattern.compile("%res:([A-Za-z0-9._-]+)%");
+
+    /**
+     * Alternating literal text and placeholder names, starting and ending with literal text.
+     */
+    private final String[] parts;
+    private final int literalLength;
+
+    private Template(String source) {
+        List<String> split = new ArrayList<>();
+        Matcher matcher = PLACEHOLDER.matcher(source);
+        int last = 0;
+        int length = 0;
+        while (matcher.find()) {
+            split.add(source.substring(last, matcher.start()));
+            split.add(matcher.group(1));
+            length += matcher.start() - last;
+            last = matcher.end();
+        }
+        split.add(source.substring(last));
+        length += source.length() - last;
+
+        this.parts = split.toArray(new String[split.size()]);
+        this.literalLength = length;
+    }
+
+    /**
+     * Loads a template from the classpath.
+     *
+     * @param path The path of the template.
+     * @return The loaded template.
+     */
+    public static Template load(String path) {
+        return load(path, null);
+    }
+
+    /**
+     * Loads a template from the classpath, replacing %res:name% with the URL of that asset.
+     *
+     * @param path The path of the template.
+     * @param assets The assets the template links to, or null if it links to none.
+     * @return The loaded template.
+     */
+    public static Template load(String path, StaticAssets assets) {
+        try (InputStream in = Template.class.getResourceAsStream(path)) {
+            if (in == null) {
+                throw new IllegalArgumentException("Template " + path + " does not exist");
+            }
+
+            String source = IOUtils.toString(in, StandardCharsets.UTF_8);
+            if (assets != null) {
+                StringBuffer resolved = new StringBuffer(source.length());
+                Matcher matcher = ASSET.matcher(source);
+                while (matcher.find()) {
+                    matcher.appendReplacement(resolved, Matcher.quoteReplacement(assets.getUrl(matcher.group(1))));
+                }
+                source = matcher.appendTail(resolved).toString();
+            }
+            return new Template(source);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load template " + path, e);
+        }
+    }
+
+    /**
+     * Renders this template. Values are inserted as-is; callers are responsible for escaping.
+     *
+     * @param values The values for each placeholder. Missing placeholders are left empty.
+     * @return The rendered page.
+     */
+    public String render(Map<String, ? extends CharSequence> values) {
+        int length = literalLength;
+        for (CharSequence value : values.values()) {
+            length += value.length();
+        }
+
+        StringBuilder out = new StringBuilder(length);
+        for (int i = 0; i < parts.length; i++) {
+            if (i % 2 == 0) {
+                out.append(parts[i]);
+            } else {
+                CharSequence value = values.get(parts[i]);
+                if (value != null) {
+                    out.append(value);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Escapes text for use in HTML content or attribute values.
+     *
+     * @param value The text to escape.
+     * @return The escaped text.
+     */
+    public static String escapeHtml(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        StringBuilder out = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+                case '&': replacement = "&amp;"; break;
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&#39;"; break;
+                default: replacement = null;
+            }
+
+            if (replacement != null) {
+                if (out == null) {
+                    out = new StringBuilder(value.length() + 16).append(value, 0, i);
+                }
+                out.append(replacement);
+            } else if (out != null) {
+                out.append(c);
+            }
+        }
+        return out == null ? value : out.toString();
+    }
+
+    /**
+     * Escapes text for use inside a single or double quoted JavaScript string, which may itself be
+     * inside a HTML attribute.
+     *
+     * @param value The text to escape.
+     * @return The escaped text.
+     */
+    public static String escapeJs(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        StringBuilder out = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '\'' || c == '"' || c == '<' || c == '>' || c == '&' || c < 0x20) {
+                out.append(String.format("\\x%02x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
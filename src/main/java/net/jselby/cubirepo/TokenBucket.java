@@ -0,0 +1,60 @@
+package net.jselby.cubirepo;
+
+/**
+ * A TokenBucket limits the rate of something, such as bytes sent, while allowing short bursts.
+ *
+ * Tokens are added at a fixed rate, up to the size of the bucket. Taking tokens never blocks:
+ * callers reserve what they need, even if that leaves the bucket in debt, and are told how long to
+ * wait before going ahead. Callers are therefore served in the order they asked, and a large
+ * reservation doesn't starve small ones for longer than its own share.
+ *
+ * @author j_selby
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final long capacity;
+
+    private double available;
+    private long lastRefill;
+    private volatile long lastUsed;
+
+    /**
+     * Creates a new bucket, which starts full.
+     *
+     * @param rate The amount of tokens added per second.
+     * @param capacity The most tokens which can build up, and so the largest burst.
+     */
+    public TokenBucket(long rate, long capacity) {
+        this.tokensPerNano = rate / 1e9;
+        this.capacity = capacity;
+        this.available = capacity;
+        this.lastRefill = System.nanoTime();
+        this.lastUsed = lastRefill;
+    }
+
+    /**
+     * Takes tokens from the bucket.
+     *
+     * @param tokens The amount of tokens to take.
+     * @return How long to wait until the tokens would have been available, in nanoseconds. 0 if
+     *         they are available now.
+     */
+    public synchronized long reserve(long tokens) {
+        long now = System.nanoTime();
+        available = Math.min(capacity, available + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        lastUsed = now;
+
+        available -= tokens;
+        return available >= 0 ? 0 : (long) (-available / tokensPerNano);
+    }
+
+    /**
+     * Returns when tokens were last taken from this bucket.
+     *
+     * @return The time, from System.nanoTime().
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+}
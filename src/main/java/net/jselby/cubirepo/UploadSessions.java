@@ -0,0 +1,461 @@
+package net.jselby.cubirepo;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * UploadSessions lets large resources be uploaded in chunks, so a dropped connection only costs
+ * the chunk which was being sent, and chunks can be sent over several connections at once.
+ *
+ * A session is opened with the coordinates, size and SHA-256 hash of the resource. The file is
+ * given its full length up front, which on most filesystems only reserves the space sparsely, and
+ * each chunk is written straight to its offset as it arrives, in any order. Chunks can be sent again, until the session is committed; the hash of
+ * the whole file is then checked, and it is moved into the BlobStore without being copied.
+ *
+ * Sessions are kept in memory, and are forgotten after a day without any chunks arriving, or when
+ * the server restarts. Idle sessions are looked for every hour once start() has been called, and
+ * whenever a session is opened.
+ *
+ * @author j_selby
+ */
+public class UploadSessions {
+    /**
+     * The most sessions open at once.
+     */
+    public static final int MAX_SESSIONS = 64;
+
+    private static final String EXTENSION = ".part";
+    private static final long IDLE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long EXPIRY_INTERVAL_MINUTES = 60;
+
+    private final File directory;
+    private final long maxSize;
+    private final int chunkSize;
+    private final Gson gson;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private ScheduledExecutorService expiry;
+
+    /**
+     * An upload in progress. Chunks are written through a shared channel, at their own offsets, so
+     * they don't need to lock each other out; only the bookkeeping is synchronized.
+     */
+    private static class Session {
+        private final String id;
+        private final Resource resource;
+        private final String hash;
+        private final long size;
+        private final int chunks;
+        private final File file;
+        private final FileChannel channel;
+
+        private final BitSet received = new BitSet();
+        private final BitSet writing = new BitSet();
+        private long lastUsed = System.currentTimeMillis();
+        private boolean closed;
+
+        private Session(String id, Resource resource, String hash, long size, int chunks, File file,
+                        FileChannel channel) {
+            this.id = id;
+            this.resource = resource;
+            this.hash = hash;
+            this.size = size;
+            this.chunks = chunks;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Creates a new set of sessions, deleting any parts left over from before a restart.
+     *
+     * @param directory The directory to keep partial uploads in.
+     * @param maxSize The largest upload accepted, in bytes.
+     * @param chunkSize The size of each chunk, in bytes. The last chunk may be shorter.
+     * @param gson The Gson instance to write session details with.
+     */
+    public UploadSessions(File directory, long maxSize, int chunkSize, Gson gson) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.chunkSize = chunkSize;
+        this.gson = gson;
+
+        File[] partial = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (partial != null) {
+            for (File file : partial) {
+                if (!file.delete()) {
+                    System.err.println("Failed to delete " + file.getPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts expiring idle sessions in the background, so their files don't linger until another
+     * session is opened. Does nothing if this has already been started.
+     */
+    public synchronized void start() {
+        if (expiry != null) {
+            return;
+        }
+
+        expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Upload session expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiry.scheduleWithFixedDelay(this::expireIdle, EXPIRY_INTERVAL_MINUTES, EXPIRY_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    /**
+     * Opens a session, from the author, name, version, type, size and hash query parameters, and
+     * optionally mainClass. The details of the session are sent as JSON with a 201, as for status().
+     *
+     * @param req The request being answered.
+     * @param res The response to write to.
+     * @return The status code of the response, 400 if a parameter is missing or invalid, 413 if the
+     *         upload is too large, or 503 if too many sessions are open.
+     * @throws IOException If the upload could not be allocated, or the response could not be written.
+     */
+    public int open(Request req, Response res) throws IOException {
+        String author = req.queryParams("author");
+        String name = req.queryParams("name");
+        String version = req.queryParams("version");
+        String type = req.queryParams("type");
+        String hash = req.queryParams("hash");
+        long size;
+        try {
+            size = Long.parseLong(req.queryParams("size"));
+        } catch (NumberFormatException e) {
+            return 400;
+        }
+        if (author == null || name == null || version == null || type == null || !type.matches("[A-Za-z0-9]+")
+                || hash == null || !Hashes.isHash(hash.toLowerCase(Locale.ROOT)) || size < 0) {
+            return 400;
+        } else if (size > maxSize) {
+            return 413;
+        }
+
+        expireIdle();
+        if (sessions.size() >= MAX_SESSIONS) {
+            return 503;
+        }
+
+        Resource resource = new Resource();
+        resource.setAuthor(author);
+        resource.setName(name);
+        resource.setVersion(version);
+        resource.setType(type);
+        resource.setMainClass(req.queryParams("mainClass"));
+
+        Session session = sessions.get(create(resource, hash.toLowerCase(Locale.ROOT), size));
+        res.raw().setStatus(201);
+        sendStatus(session, req, res);
+        return 201;
+    }
+
+    /**
+     * Opens a session for a resource, creating its file at its full length.
+     *
+     * @param resource The resource being uploaded, without its contents.
+     * @param hash The expected hex-encoded SHA-256 hash of the upload, in lower case.
+     * @param size The size of the upload, in bytes.
+     * @return The ID of the session.
+     * @throws IOException If the upload could not be allocated.
+     */
+    String create(Resource resource, String hash, long size) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory.getPath());
+        }
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String id = Hashes.toHex(bytes);
+        File file = new File(directory, id + EXTENSION);
+
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FileChannel channel = out.getChannel();
+        try {
+            out.setLength(size);
+        } catch (IOException e) {
+            out.close();
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        }
+        int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+        sessions.put(id, new Session(id, resource, hash, size, chunks, file, channel));
+        return id;
+    }
+
+    /**
+     * Writes a chunk of an upload from the body of a request. The body is streamed straight to
+     * disk, rather than read into memory first.
+     *
+     * @param id The ID of the session.
+     * @param chunk The index of the chunk, from 0.
+     * @param req The request being answered.
+     * @return The status code of the response, 204 if the chunk was written, 400 if the body isn't
+     *         the length of the chunk, 404 if there is no such session or chunk, or the session was
+     *         closed while the chunk was being written, or 409 if the same chunk is already being
+     *         written.
+     * @throws IOException If the chunk could not be read or written.
+     */
+    public int write(String id, String chunk, Request req) throws IOException {
+        int index;
+        try {
+            index = Integer.parseInt(chunk);
+        } catch (NumberFormatException e) {
+            return 404;
+        }
+        return write(id, index, getBody(req.raw()), req.raw().getContentLength());
+    }
+
+    /**
+     * Writes a chunk of an upload from a stream.
+     *
+     * @param id The ID of the session.
+     * @param index The index of the chunk, from 0.
+     * @param body The contents of the chunk.
+     * @param declared The length the client declared for the chunk, or -1 if it is unknown.
+     * @return The status code of the response, as for write(String, String, Request).
+     * @throws IOException If the chunk could not be read or written.
+     */
+    int write(String id, int index, InputStream body, int declared) throws IOException {
+        Session session = sessions.get(id);
+        if (session == null || index < 0 || index >= session.chunks) {
+            return 404;
+        }
+
+        long offset = (long) index * chunkSize;
+        long length = Math.min(chunkSize, session.size - offset);
+        if (declared != -1 && declared != length) {
+            return 400;
+        }
+
+        synchronized (session) {
+            if (session.closed) {
+                return 404;
+            } else if (session.writing.get(index)) {
+                return 409;
+            }
+            session.writing.set(index);
+            session.received.clear(index);
+        }
+
+        boolean complete = false;
+        try {
+            complete = transfer(body, session.channel, offset, length);
+        } catch (ClosedChannelException e) {
+            // Aborted or expired part way through, which closes the channel under us
+            return 404;
+        } finally {
+            synchronized (session) {
+                session.writing.clear(index);
+                if (complete) {
+                    session.received.set(index);
+                }
+                session.lastUsed = System.currentTimeMillis();
+            }
+        }
+        return complete ? 204 : 400;
+    }
+
+    /**
+     * Sends the details of a session as JSON: its coordinates, size, chunkSize, the amount of
+     * chunks, how many have been received, and the indexes of those which are still missing.
+     *
+     * @param id The ID of the session.
+     * @param req The request being answered.
+     * @param res The response to write to.
+     * @return The status code of the response, or 404 if there is no such session.
+     * @throws IOException If the response could not be written.
+     */
+    public int status(String id, Request req, Response res) throws IOException {
+        Session session = sessions.get(id);
+        if (session == null) {
+            return 404;
+        }
+        sendStatus(session, req, res);
+        return 200;
+    }
+
+    /**
+     * Finishes an upload. Once every chunk has arrived and the file matches its hash, the file is
+     * moved into the BlobStore, and the resource is handed on to be published. Uploads which
+     * don't match their hash are discarded.
+     *
+     * @param id The ID of the session.
+     * @param publish Publishes the resource, once its contents are stored.
+     * @return The status code of the response, 404 if there is no such session, 409 if chunks are
+     *         still missing or being written, or 422 if the upload didn't match its hash.
+     * @throws IOException If the upload could not be stored.
+     */
+    public int commit(String id, Consumer<Resource> publish) throws IOException {
+        Session session = sessions.get(id);
+        if (session == null) {
+            return 404;
+        }
+        synchronized (session) {
+            if (session.closed) {
+                return 404;
+            } else if (!session.writing.isEmpty() || session.received.cardinality() < session.chunks) {
+                return 409;
+            }
+            session.closed = true;
+        }
+        sessions.remove(id, session);
+
+        try {
+            session.channel.close();
+            if (!Hashes.hash(session.file).equals(session.hash)) {
+                return 422;
+            }
+            session.resource.setContents(session.file, session.hash);
+        } finally {
+            Files.deleteIfExists(session.file.toPath());
+        }
+        publish.accept(session.resource);
+        return 200;
+    }
+
+    /**
+     * Abandons an upload, and deletes what was received of it.
+     *
+     * @param id The ID of the session.
+     * @return The status code of the response, 204 if the session was closed, or 404 if there is no
+     *         such session.
+     */
+    public int abort(String id) {
+        Session session = sessions.get(id);
+        return session != null && close(session) ? 204 : 404;
+    }
+
+    /**
+     * Returns how many sessions are open.
+     *
+     * @return The amount of open sessions.
+     */
+    public int getOpen() {
+        return sessions.size();
+    }
+
+    /**
+     * Closes sessions which haven't had a chunk written for a day.
+     */
+    private void expireIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_MILLIS;
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            boolean idle;
+            synchronized (session) {
+                idle = session.lastUsed < cutoff && session.writing.isEmpty();
+            }
+            if (idle) {
+                close(session);
+            }
+        }
+    }
+
+    private boolean close(Session session) {
+        synchronized (session) {
+            if (session.closed) {
+                return false;
+            }
+            session.closed = true;
+        }
+        sessions.remove(session.id, session);
+
+        // Chunks still being written fail once the channel is closed
+        try {
+            session.channel.close();
+            Files.deleteIfExists(session.file.toPath());
+        } catch (IOException e) {
+            System.err.println("Failed to delete " + session.file.getPath() + ": " + e);
+        }
+        return true;
+    }
+
+    private void sendStatus(Session session, Request req, Response res) throws IOException {
+        JsonArray missing = new JsonArray();
+        int received;
+        synchronized (session) {
+            received = session.received.cardinality();
+            for (int i = session.received.nextClearBit(0); i < session.chunks; i = session.received.nextClearBit(i + 1)) {
+                missing.add(new JsonPrimitive(i));
+            }
+        }
+
+        JsonObject body = new JsonObject();
+        body.addProperty("id", session.id);
+        body.addProperty("author", session.resource.getAuthor());
+        body.addProperty("name", session.resource.getName());
+        body.addProperty("version", session.resource.getVersion());
+        body.addProperty("type", session.resource.getType());
+        body.addProperty("hash", session.hash);
+        body.addProperty("size", session.size);
+        body.addProperty("chunkSize", chunkSize);
+        body.addProperty("chunks", session.chunks);
+        body.addProperty("received", received);
+        body.add("missing", missing);
+        Compression.sendText(req, res, "application/json", gson.toJson(body));
+    }
+
+    /**
+     * Copies exactly length bytes from a stream into a channel, at an offset.
+     *
+     * @return If the stream held exactly that many bytes.
+     */
+    private static boolean transfer(InputStream in, FileChannel channel, long offset, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long position = offset;
+        long end = offset + length;
+        int read;
+        // Reads one byte past the end of the chunk, to tell if the body was too long
+        while ((read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1))) != -1) {
+            if (position + read > end) {
+                return false;
+            }
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+        }
+        return position == end;
+    }
+
+    /**
+     * Returns the body of a request, past Spark's wrapper, which reads the whole body into memory.
+     */
+    static InputStream getBody(HttpServletRequest raw) throws IOException {
+        if (raw instanceof HttpServletRequestWrapper) {
+            return ((HttpServletRequestWrapper) raw).getRequest().getInputStream();
+        }
+        return raw.getInputStream();
+    }
+}
@@ -0,0 +1,143 @@
+package net.jselby.cubirepo;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The VersionComparator orders version strings the way people read them, rather than
+ * alphabetically: 1.10 comes after 1.9, and 1.0-beta comes before 1.0.
+ *
+ * Versions are split into numbers and words, at dots, dashes, underscores, pluses, and wherever
+ * digits meet letters. Numbers compare by value, and come after any word. Well-known pre-release
+ * words (dev, alpha, beta, milestone, rc, snapshot, pre, preview) come before the end of a
+ * version, and other words after it. Comparisons are case insensitive, and versions which only
+ * differ in their separators are ordered by their text, so that distinct strings never compare
+ * as equal.
+ *
+ * @author j_selby
+ */
+public class VersionComparator implements Comparator<String> {
+    public static final VersionComparator INSTANCE = new VersionComparator();
+
+    private static final String[] PRE_RELEASES = {
+            "dev", "a", "alpha", "b", "beta", "m", "milestone", "pre", "preview", "cr", "rc", "snapshot"
+    };
+
+    /**
+     * Ranks of the pre-release words, in the same order as PRE_RELEASES. Words with the same rank
+     * (such as a and alpha) mean the same thing.
+     */
+    private static final int[] PRE_RELEASE_RANKS = {0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6};
+
+    private VersionComparator() {}
+
+    @Override
+    public int compare(String first, String second) {
+        if (first.equalsIgnoreCase(second)) {
+            return 0;
+        }
+
+        List<String> firstTokens = tokenize(first);
+        List<String> secondTokens = tokenize(second);
+        int shared = Math.min(firstTokens.size(), secondTokens.size());
+        for (int i = 0; i < shared; i++) {
+            int result = compareTokens(firstTokens.get(i), secondTokens.get(i));
+            if (result != 0) {
+                return result;
+            }
+        }
+
+        if (firstTokens.size() != secondTokens.size()) {
+            // 1.0-beta < 1.0 < 1.0-sp < 1.0.0, as numbers come after words
+            boolean firstLonger = firstTokens.size() > secondTokens.size();
+            String next = (firstLonger ? firstTokens : secondTokens).get(shared);
+            boolean longerIsLater = isNumber(next) || getPreReleaseRank(next) == -1;
+            return firstLonger == longerIsLater ? 1 : -1;
+        }
+        return first.toLowerCase(Locale.ROOT).compareTo(second.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks if a version is a full release, without any pre-release words in it.
+     *
+     * @param version The version to check.
+     * @return If the version is stable.
+     */
+    public static boolean isStable(String version) {
+        for (String token : tokenize(version)) {
+            if (!isNumber(token) && getPreReleaseRank(token) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits a version into its numbers and words. Leading zeros are removed from numbers.
+     *
+     * @param version The version to split.
+     * @return The tokens of the version, in lower case.
+     */
+    static List<String> tokenize(String version) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= version.length(); i++) {
+            char c = i < version.length() ? Character.toLowerCase(version.charAt(i)) : '.';
+            boolean separator = !Character.isLetterOrDigit(c);
+            if (start != -1 && (separator || Character.isDigit(c) != Character.isDigit(version.charAt(start)))) {
+                tokens.add(trimZeros(version.substring(start, i).toLowerCase(Locale.ROOT)));
+                start = -1;
+            }
+            if (!separator && start == -1) {
+                start = i;
+            }
+        }
+        return tokens;
+    }
+
+    private static int compareTokens(String first, String second) {
+        boolean firstNumber = isNumber(first);
+        boolean secondNumber = isNumber(second);
+        if (firstNumber && secondNumber) {
+            // Both are free of leading zeros, so a longer number is a larger one
+            if (first.length() != second.length()) {
+                return Integer.compare(first.length(), second.length());
+            }
+            return first.compareTo(second);
+        } else if (firstNumber != secondNumber) {
+            return firstNumber ? 1 : -1;
+        }
+
+        int firstRank = getPreReleaseRank(first);
+        int secondRank = getPreReleaseRank(second);
+        if (firstRank != -1 && secondRank != -1) {
+            return Integer.compare(firstRank, secondRank);
+        } else if (firstRank != -1 || secondRank != -1) {
+            return firstRank != -1 ? -1 : 1;
+        }
+        return first.compareTo(second);
+    }
+
+    private static int getPreReleaseRank(String token) {
+        for (int i = 0; i < PRE_RELEASES.length; i++) {
+            if (PRE_RELEASES[i].equals(token)) {
+                return PRE_RELEASE_RANKS[i];
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isNumber(String token) {
+        return !token.isEmpty() && Character.isDigit(token.charAt(0));
+    }
+
+    private static String trimZeros(String token) {
+        int i = 0;
+        while (i < token.length() - 1 && token.charAt(i) == '0') {
+            i++;
+        }
+        return token.substring(i);
+    }
+}
@@ -0,0 +1,141 @@
+package net.jselby.cubirepo;
+
+import java.math.BigInteger;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * A VersionRange selects the newest version of a resource matching a query, rather than one exact
+ * version. Queries may be:
+ *
+ * <ul>
+ *     <li>latest, or +: the newest version.</li>
+ *     <li>latest-stable: the newest version without a pre-release word (see VersionComparator).</li>
+ *     <li>1.2.+: the newest version starting with 1.2.</li>
+ *     <li>[1.0,2.0), (1.0,], [1.5]: the newest version within an interval. Square brackets include
+ *     the bound, round ones exclude it, and a missing bound is unlimited.</li>
+ * </ul>
+ *
+ * Versions are looked up in a map sorted by VersionComparator, so selecting one only walks past
+ * versions which are close to a bound but don't match it.
+ *
+ * @author j_selby
+ */
+public class VersionRange {
+    private final String lower;
+    private final boolean lowerInclusive;
+    private final String upper;
+    private final boolean upperInclusive;
+    private final String prefix;
+    private final boolean stableOnly;
+
+    private VersionRange(String lower, boolean lowerInclusive, String upper, boolean upperInclusive,
+                         String prefix, boolean stableOnly) {
+        this.lower = lower;
+        this.lowerInclusive = lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upperInclusive;
+        this.prefix = prefix;
+        this.stableOnly = stableOnly;
+    }
+
+    /**
+     * Parses a query.
+     *
+     * @param query The query to parse.
+     * @return The range, or null if the query is an ordinary version.
+     */
+    public static VersionRange parse(String query) {
+        String trimmed = query.trim().toLowerCase(Locale.ROOT);
+        if (trimmed.equals("latest") || trimmed.equals("+")) {
+            return new VersionRange(null, false, null, false, null, false);
+        } else if (trimmed.equals("latest-stable")) {
+            return new VersionRange(null, false, null, false, null, true);
+        } else if (trimmed.endsWith(".+") && trimmed.length() > 2) {
+            String base = trimmed.substring(0, trimmed.length() - 2);
+            return new VersionRange(base, true, getNextPrefix(base), false, base + ".", false);
+        }
+
+        if (trimmed.length() < 3) {
+            return null;
+        }
+        char open = trimmed.charAt(0);
+        char close = trimmed.charAt(trimmed.length() - 1);
+        if ((open != '[' && open != '(') || (close != ']' && close != ')')) {
+            return null;
+        }
+
+        String body = trimmed.substring(1, trimmed.length() - 1);
+        int comma = body.indexOf(',');
+        if (comma == -1) {
+            // [1.5] is exactly 1.5
+            String exact = body.trim();
+            if (open != '[' || close != ']' || exact.isEmpty()) {
+                return null;
+            }
+            return new VersionRange(exact, true, exact, true, null, false);
+        }
+
+        String lower = body.substring(0, comma).trim();
+        String upper = body.substring(comma + 1).trim();
+        if (upper.contains(",")) {
+            return null;
+        }
+        return new VersionRange(lower.isEmpty() ? null : lower, open == '[',
+                upper.isEmpty() ? null : upper, close == ']', null, false);
+    }
+
+    /**
+     * Selects the newest version in this range.
+     *
+     * @param versions Versions mapped to their values, sorted by VersionComparator.
+     * @param <T> The type of the values.
+     * @return The value of the newest matching version, or null if none match.
+     */
+    public <T> T select(NavigableMap<String, T> versions) {
+        NavigableMap<String, T> candidates = versions;
+        if (upper != null) {
+            candidates = candidates.headMap(upper, upperInclusive);
+        }
+
+        // Walk down from the top of the range, past any versions which don't match
+        for (Map.Entry<String, T> entry : candidates.descendingMap().entrySet()) {
+            String version = entry.getKey();
+            if (lower != null) {
+                int result = VersionComparator.INSTANCE.compare(version, lower);
+                if (result < 0 || (result == 0 && !lowerInclusive)) {
+                    return null;
+                }
+            }
+            if (prefix != null && !version.toLowerCase(Locale.ROOT).startsWith(prefix)) {
+                continue;
+            }
+            if (stableOnly && !VersionComparator.isStable(version)) {
+                continue;
+            }
+            return entry.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Finds the smallest version which sorts after every version starting with a prefix, by
+     * incrementing the last number of it: 1.2 becomes 1.3.
+     */
+    private static String getNextPrefix(String base) {
+        int end = base.length();
+        int start = end;
+        while (start > 0 && Character.isDigit(base.charAt(start - 1))) {
+            start--;
+        }
+        if (start == end) {
+            // Ends with a word, so there's no simple upper bound
+            return null;
+        }
+
+        String incremented = new BigInteger(base.substring(start, end)).add(BigInteger.ONE).toString();
+        // Pre-releases of the next version sort before it, so exclude those too
+        return base.substring(0, start) + incremented + "-dev";
+    }
+}
@@ -0,0 +1,83 @@
+package net.jselby.cubirepo;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Workers creates executors for blocking work, such as writing a large download to a slow client,
+ * so that it doesn't tie up the threads Jetty needs to answer other requests.
+ *
+ * On Java 21 and later, every task gets its own virtual thread, which costs next to nothing while
+ * blocked. Earlier versions get a bounded pool of platform threads; tasks beyond its size wait
+ * in a queue of the same length, and beyond that are rejected, so callers can run them
+ * themselves. Virtual threads are looked up reflectively, as the build targets Java 17.
+ *
+ * @author j_selby
+ */
+public final class Workers {
+    private Workers() {}
+
+    /**
+     * Creates an executor for blocking work.
+     *
+     * @param name The name of the threads, which get a number appended.
+     * @param maxThreads The amount of threads to use if virtual threads aren't available.
+     * @return The executor.
+     */
+    public static ExecutorService create(String name, int maxThreads) {
+        ExecutorService virtual = createVirtual(name);
+        if (virtual != null) {
+            return virtual;
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxThreads), r -> {
+                    Thread thread = new Thread(r, name + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Checks if virtual threads are available in this JVM.
+     *
+     * @return If create() returns executors using virtual threads.
+     */
+    public static boolean isVirtual() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static ExecutorService createVirtual(String name) {
+        if (!isVirtual()) {
+            return null;
+        }
+
+        try {
+            // Thread.ofVirtual().name(name, 0).factory()
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Failed to create virtual threads, falling back to a thread pool: " + e);
+            return null;
+        }
+    }
+}
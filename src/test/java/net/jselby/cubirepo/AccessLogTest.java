@@ -0,0 +1,66 @@
+package net.jselby.cubirepo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AccessLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void dropsEntriesOnceTheBufferIsFull() throws IOException {
+        File file = new File(folder.getRoot(), "access.log");
+        AccessLog log = new AccessLog(file, Long.MAX_VALUE, false);
+        for (int i = 0; i < AccessLog.CAPACITY; i++) {
+            log.event("event " + i);
+        }
+        assertEquals(0, log.getDropped());
+
+        log.event("one too many");
+        log.event("and another");
+        assertEquals(2, log.getDropped());
+        assertFalse("Nothing is written without the writer", file.exists());
+    }
+
+    @Test
+    public void writesEntriesAsJsonLines() throws IOException {
+        File file = new File(folder.getRoot(), "logs/access.log");
+        AccessLog log = new AccessLog(file, Long.MAX_VALUE);
+        log.event("uploaded \"a\"\n");
+        log.event("second");
+        log.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).matches(
+                "\\{\"time\":\"[0-9T:.-]+Z\",\"event\":\"uploaded \\\\\"a\\\\\"\\\\u000a\"}"));
+        assertTrue(lines.get(1), lines.get(1).endsWith("\"event\":\"second\"}"));
+    }
+
+    @Test
+    public void rotatesLargeFiles() throws IOException {
+        File file = new File(folder.getRoot(), "access.log");
+        AccessLog log = new AccessLog(file, 1);
+        for (int i = 0; i < 3; i++) {
+            log.event("event " + i);
+        }
+        log.close();
+
+        assertTrue(read(file).contains("event 2"));
+        assertTrue(read(new File(file.getPath() + ".1")).contains("event 1"));
+        assertTrue(read(new File(file.getPath() + ".2")).contains("event 0"));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,99 @@
+package net.jselby.cubirepo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ArtifactCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file(int size, int fill) throws IOException {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) fill);
+        File file = folder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    @Test
+    public void cachesFilesOnTheirSecondRequest() throws IOException {
+        ArtifactCache cache = new ArtifactCache(4000);
+        File file = file(1000, 7);
+
+        assertNull(cache.get(file));
+        ByteBuffer loaded = cache.get(file);
+        assertNotNull(loaded);
+        assertEquals(1000, loaded.remaining());
+        assertEquals(7, loaded.get(999));
+        assertEquals(1000, cache.getUsed());
+
+        // Served from memory from now on, each caller with its own position
+        ByteBuffer first = cache.get(file);
+        first.position(500);
+        assertEquals(1000, cache.get(file).remaining());
+        assertTrue(first.isReadOnly());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void neverCachesLargeFiles() throws IOException {
+        ArtifactCache cache = new ArtifactCache(4000);
+        File file = file(1001, 1);
+        assertNull(cache.get(file));
+        assertNull(cache.get(file));
+        assertEquals(0, cache.getUsed());
+    }
+
+    @Test
+    public void isDisabledWithoutBudget() throws IOException {
+        ArtifactCache cache = new ArtifactCache(0);
+        File file = file(10, 1);
+        assertNull(cache.get(file));
+        assertNull(cache.get(file));
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFiles() throws IOException {
+        ArtifactCache cache = new ArtifactCache(4000);
+        File[] files = new File[5];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = file(1000, i);
+            cache.get(files[i]);
+            assertNotNull(cache.get(files[i]));
+            // Keep the first file in use
+            cache.get(files[0]);
+        }
+
+        assertEquals(4000, cache.getUsed());
+        assertEquals(1, cache.getEvictions());
+        long hits = cache.getHits();
+        assertNotNull(cache.get(files[0]));
+        assertNull(cache.get(files[1]));
+        assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    public void invalidatesFiles() throws IOException {
+        ArtifactCache cache = new ArtifactCache(4000);
+        File file = file(1000, 1);
+        cache.get(file);
+        cache.get(file);
+
+        cache.invalidate(file);
+        cache.invalidate(null);
+        assertEquals(0, cache.getUsed());
+        // Back to needing two requests
+        assertNull(cache.get(file));
+    }
+}
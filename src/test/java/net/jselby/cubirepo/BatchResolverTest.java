@@ -0,0 +1,198 @@
+package net.jselby.cubirepo;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import spark.Request;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class BatchResolverTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Gson gson = new Gson();
+    private final ResourceRegistry registry = new ResourceRegistry();
+    private final BatchResolver resolver = new BatchResolver(registry, gson);
+
+    /**
+     * A resource whose contents are kept in a file of its own, rather than the BlobStore.
+     */
+    private static class StoredResource extends Resource {
+        private final transient File file;
+
+        private StoredResource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public long getSize() {
+            return file == null ? 0 : file.length();
+        }
+
+        @Override
+        public long getLastModified() {
+            return 1_500_000_000_000L;
+        }
+    }
+
+    private void add(String author, String name, String version, String contents) throws IOException {
+        File file = null;
+        if (contents != null) {
+            file = folder.newFile();
+            Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        }
+        Resource resource = new StoredResource(file);
+        resource.setAuthor(author);
+        resource.setName(name);
+        resource.setVersion(version);
+        resource.setType("jar");
+        registry.add(resource);
+    }
+
+    private void addAll() throws IOException {
+        add("me", "Core", "1.0", "core 1.0");
+        add("me", "core", "1.2", "core 1.2");
+        add("me", "util", "2.0", "util 2.0");
+    }
+
+    private SparkStubs.Sent resolve(String body) throws IOException {
+        SparkStubs.Sent sent = SparkStubs.response();
+        sent.status = resolver.resolve(request(body), sent.response);
+        return sent;
+    }
+
+    private SparkStubs.Sent bundle(String body, DownloadScheduler scheduler) throws IOException {
+        SparkStubs.Sent sent = SparkStubs.response();
+        sent.status = resolver.bundle(request(body), sent.response, null, scheduler);
+        return sent;
+    }
+
+    private static Request request(String body) {
+        return SparkStubs.request(Collections.emptyMap(), Collections.emptyMap(),
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private JsonObject json(SparkStubs.Sent sent) throws IOException {
+        return gson.fromJson(new String(sent.getContents(), StandardCharsets.UTF_8), JsonObject.class);
+    }
+
+    @Test
+    public void resolvesCoordinatesInOrder() throws IOException {
+        addAll();
+        SparkStubs.Sent sent = resolve("[\"me/util/2.0\", {\"author\": \"me\", \"name\": \"core\","
+                + " \"version\": \"[1.0,2.0)\"}, \"me/util/2.0\", \"you/thing/1.0\"]");
+        assertEquals(200, sent.status);
+
+        JsonObject result = json(sent);
+        JsonArray resources = result.getAsJsonArray("resources");
+        assertEquals(2, resources.size());
+        assertEquals("/me/util/util_2.0.jar", resources.get(0).getAsJsonObject().get("url").getAsString());
+        assertEquals("1.2", resources.get(1).getAsJsonObject().get("version").getAsString());
+
+        JsonArray missing = result.getAsJsonArray("missing");
+        assertEquals(1, missing.size());
+        assertEquals("thing", missing.get(0).getAsJsonObject().get("name").getAsString());
+    }
+
+    @Test
+    public void rejectsMalformedRequests() throws IOException {
+        addAll();
+        assertEquals(400, resolve("{}").status);
+        assertEquals(400, resolve("[\"me/core\"]").status);
+        assertEquals(400, resolve("[{\"author\": \"me\", \"name\": \"core\"}]").status);
+        assertEquals(400, resolve("[1.0, [").status);
+        assertEquals(400, bundle("[[]]", null).status);
+    }
+
+    @Test
+    public void rejectsOversizedRequests() throws IOException {
+        List<String> coordinates = new ArrayList<>();
+        for (int i = 0; i <= BatchResolver.MAX_COORDINATES; i++) {
+            coordinates.add("me/core/" + i);
+        }
+        assertEquals(400, resolve(gson.toJson(coordinates)).status);
+
+        char[] padding = new char[BatchResolver.MAX_REQUEST_SIZE];
+        Arrays.fill(padding, ' ');
+        assertEquals(413, resolve("[" + new String(padding) + "]").status);
+        assertEquals(413, bundle("[" + new String(padding) + "]", null).status);
+    }
+
+    @Test
+    public void bundlesContentsAsZip() throws IOException {
+        addAll();
+        SparkStubs.Sent sent = bundle("[\"me/core/1.0\", \"me/util/latest\"]", null);
+        assertEquals(200, sent.status);
+        assertEquals("application/zip", sent.headers.get("Content-Type"));
+
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(sent.body.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), new String(readAll(zip), StandardCharsets.UTF_8));
+            }
+        }
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("me/core/core_1.0.jar", "core 1.0");
+        expected.put("me/util/util_2.0.jar", "util 2.0");
+        assertEquals(expected, entries);
+    }
+
+    @Test
+    public void sendsNothingUnlessEverythingExists() throws IOException {
+        addAll();
+        SparkStubs.Sent sent = bundle("[\"me/core/1.0\", \"me/core/9.0\"]", null);
+        assertEquals(404, sent.status);
+        assertEquals(1, json(sent).getAsJsonArray("missing").size());
+
+        // Contents which have gone from disk count as missing too
+        Files.delete(registry.get("me", "util", "2.0").getFile().toPath());
+        assertEquals(404, bundle("[\"me/util/2.0\"]", null).status);
+    }
+
+    @Test
+    public void asksToRetryUntilContentsAreFetched() throws IOException {
+        addAll();
+        add("me", "build", "latest", null);
+        SparkStubs.Sent sent = bundle("[\"me/core/1.0\", \"me/build/latest\"]", null);
+        assertEquals(503, sent.status);
+        assertEquals("60", sent.headers.get("Retry-After"));
+        assertEquals(0, sent.body.size());
+
+        assertEquals(503, bundle("[\"me/core/1.0\"]", new DownloadScheduler(0, 0, 0, 0, 0)).status);
+    }
+
+    private static byte[] readAll(ZipInputStream zip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = zip.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
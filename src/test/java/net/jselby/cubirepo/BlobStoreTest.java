@@ -0,0 +1,101 @@
+package net.jselby.cubirepo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class BlobStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final byte[] CONTENTS = new String(new char[10_000]).replace('\0', 'a')
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void storesIdenticalContentsOnce() throws IOException {
+        BlobStore store = new BlobStore(folder.newFolder());
+        String hash = store.put(new ByteArrayInputStream(CONTENTS));
+        assertEquals(Hashes.hash(CONTENTS), hash);
+        assertEquals(hash, store.put(new ByteArrayInputStream(CONTENTS)));
+
+        File file = store.getFile(hash);
+        assertTrue(store.contains(hash));
+        assertArrayEquals(CONTENTS, Files.readAllBytes(file.toPath()));
+        // Sharded by the start of the hash
+        assertEquals(hash.substring(2, 4), file.getParentFile().getName());
+        assertEquals(hash.substring(0, 2), file.getParentFile().getParentFile().getName());
+        assertEquals(2, store.getReferences(hash));
+    }
+
+    @Test
+    public void deletesBlobsOnceNothingReferencesThem() throws IOException {
+        BlobStore store = new BlobStore(folder.newFolder());
+        String hash = store.put(new ByteArrayInputStream(CONTENTS));
+        store.retain(hash);
+
+        store.release(hash);
+        assertTrue(store.contains(hash));
+        store.release(hash);
+        assertFalse(store.contains(hash));
+        assertEquals(0, store.getReferences(hash));
+
+        // Releasing more than was held does nothing
+        store.release(hash);
+        assertEquals(0, store.getReferences(hash));
+    }
+
+    @Test
+    public void movesFilesIntoTheStore() throws IOException {
+        BlobStore store = new BlobStore(folder.newFolder());
+        File file = folder.newFile();
+        Files.write(file.toPath(), CONTENTS);
+
+        String hash = store.put(file);
+        assertFalse(file.exists());
+        assertTrue(store.contains(hash));
+        assertEquals(1, store.getReferences(hash));
+    }
+
+    @Test
+    public void compressesBlobsInTheBackground() throws Exception {
+        BlobStore store = new BlobStore(folder.newFolder());
+        String hash = store.put(new ByteArrayInputStream(CONTENTS));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getCompressedFile(hash) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        File compressed = store.getCompressedFile(hash);
+        assertNotNull(compressed);
+        assertTrue(compressed.length() < CONTENTS.length);
+
+        store.release(hash);
+        assertNull(store.getCompressedFile(hash));
+    }
+
+    @Test
+    public void quarantinesOnlyUnreferencedBlobsWhenAsked() throws IOException {
+        BlobStore store = new BlobStore(folder.newFolder());
+        File quarantine = folder.newFolder();
+        String hash = store.put(new ByteArrayInputStream(CONTENTS));
+
+        assertFalse(store.quarantine(hash, quarantine, true));
+        assertTrue(store.contains(hash));
+
+        assertTrue(store.quarantine(hash, quarantine, false));
+        assertFalse(store.contains(hash));
+        assertEquals(1, quarantine.listFiles().length);
+        // The reference is kept, so storing the contents again restores the blob
+        assertEquals(1, store.getReferences(hash));
+        store.put(new ByteArrayInputStream(CONTENTS));
+        assertTrue(store.contains(hash));
+    }
+}
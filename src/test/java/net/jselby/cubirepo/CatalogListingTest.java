@@ -0,0 +1,142 @@
+package net.jselby.cubirepo;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CatalogListingTest {
+    private final Gson gson = new Gson();
+    private final ResourceRegistry registry = new ResourceRegistry();
+    private final CatalogListing listing = new CatalogListing(registry, gson);
+
+    private void add(String author, String name, String version, String type) {
+        Resource resource = new Resource();
+        resource.setAuthor(author);
+        resource.setName(name);
+        resource.setVersion(version);
+        resource.setType(type);
+        registry.add(resource);
+    }
+
+    private void addAll() {
+        add("me", "plugin", "1.10", "jar");
+        add("me", "plugin", "1.9", "jar");
+        add("Me", "Alpha", "1.0", "zip");
+        add("you", "plugin", "2.0", "jar");
+    }
+
+    private SparkStubs.Sent send(Map<String, String> headers, Map<String, String> params) throws IOException {
+        SparkStubs.Sent sent = SparkStubs.response();
+        sent.status = listing.send(SparkStubs.request(headers, params, new byte[0]), sent.response);
+        return sent;
+    }
+
+    private static List<String> coordinates(SparkStubs.Sent sent) throws IOException {
+        JsonArray array = new Gson().fromJson(new String(sent.getContents(), StandardCharsets.UTF_8), JsonArray.class);
+        List<String> coordinates = new ArrayList<>();
+        for (JsonElement element : array) {
+            coordinates.add(element.getAsJsonObject().get("author").getAsString() + "/"
+                    + element.getAsJsonObject().get("name").getAsString() + "/"
+                    + element.getAsJsonObject().get("version").getAsString());
+        }
+        return coordinates;
+    }
+
+    private static Map<String, String> map(String... pairs) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            map.put(pairs[i], pairs[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void listsEverythingInOrder() throws IOException {
+        addAll();
+        SparkStubs.Sent sent = send(map(), map());
+        assertEquals(200, sent.status);
+        assertEquals(Arrays.asList("Me/Alpha/1.0", "me/plugin/1.9", "me/plugin/1.10", "you/plugin/2.0"),
+                coordinates(sent));
+        assertEquals(4, listing.getAll().size());
+    }
+
+    @Test
+    public void tagsEachEncodingSeparately() throws IOException {
+        addAll();
+        String identity = send(map(), map()).headers.get("ETag");
+        SparkStubs.Sent gzipped = send(map("Accept-Encoding", "gzip"), map());
+        String gzip = gzipped.headers.get("ETag");
+        assertEquals("gzip", gzipped.headers.get("Content-Encoding"));
+        assertEquals(coordinates(send(map(), map())), coordinates(gzipped));
+        assertNotEquals(identity, gzip);
+        assertTrue(gzip.endsWith("-gzip\""));
+
+        assertEquals(304, send(map("If-None-Match", identity), map()).status);
+        assertEquals(304, send(map("Accept-Encoding", "gzip", "If-None-Match", gzip), map()).status);
+        // A tag only matches its own encoding, and only in whole
+        assertEquals(200, send(map("Accept-Encoding", "gzip", "If-None-Match", identity), map()).status);
+        assertEquals(200, send(map("If-None-Match", identity.substring(0, 10) + "\""), map()).status);
+    }
+
+    @Test
+    public void changesTagWhenTheRegistryChanges() throws IOException {
+        addAll();
+        String before = send(map(), map()).headers.get("ETag");
+        add("new", "thing", "1.0", "jar");
+        String after = send(map(), map()).headers.get("ETag");
+        assertNotEquals(before, after);
+        assertEquals(200, send(map("If-None-Match", before), map()).status);
+    }
+
+    @Test
+    public void filtersAndPages() throws IOException {
+        addAll();
+        SparkStubs.Sent sent = send(map(), map("author", "ME", "type", "jar"));
+        assertEquals(Arrays.asList("me/plugin/1.9", "me/plugin/1.10"), coordinates(sent));
+        assertEquals("2", sent.headers.get("X-Total-Count"));
+
+        sent = send(map(), map("name", "plugin", "offset", "1", "limit", "1"));
+        assertEquals(Arrays.asList("me/plugin/1.10"), coordinates(sent));
+        assertEquals("3", sent.headers.get("X-Total-Count"));
+
+        assertTrue(coordinates(send(map(), map("offset", "10"))).isEmpty());
+        assertTrue(coordinates(send(map(), map("limit", "0"))).isEmpty());
+    }
+
+    @Test
+    public void pagesWithoutOverflowing() throws IOException {
+        addAll();
+        String max = Integer.toString(Integer.MAX_VALUE);
+        assertEquals(3, coordinates(send(map(), map("offset", "1", "limit", max))).size());
+        assertTrue(coordinates(send(map(), map("offset", max, "limit", max))).isEmpty());
+        assertEquals(4, coordinates(send(map(), map("limit", "99999999999"))).size());
+    }
+
+    @Test
+    public void rejectsNegativeAndMalformedPages() throws IOException {
+        addAll();
+        assertEquals(400, send(map(), map("offset", "-1")).status);
+        assertEquals(400, send(map(), map("limit", "-5")).status);
+        assertEquals(400, send(map(), map("limit", "ten")).status);
+    }
+
+    @Test
+    public void searchesByAuthorNameOrBoth() {
+        addAll();
+        assertEquals(3, listing.search("me").size());
+        assertEquals(3, listing.search("PLUGIN").size());
+        assertEquals(2, listing.search("me/plugin").size());
+        assertTrue(listing.search("nobody").isEmpty());
+    }
+}
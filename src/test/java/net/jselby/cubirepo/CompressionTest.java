@@ -0,0 +1,26 @@
+package net.jselby.cubirepo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+    @Test
+    public void acceptsGzip() {
+        assertTrue(Compression.acceptsGzip("gzip"));
+        assertTrue(Compression.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertTrue(Compression.acceptsGzip("br, *"));
+        assertFalse(Compression.acceptsGzip((String) null));
+        assertFalse(Compression.acceptsGzip("deflate, br"));
+        assertFalse(Compression.acceptsGzip("gzip;q=0"));
+        assertFalse(Compression.acceptsGzip("gzip;q=zero"));
+    }
+
+    @Test
+    public void explicitGzipOverridesWildcard() {
+        assertTrue(Compression.acceptsGzip("*;q=0, gzip"));
+        assertFalse(Compression.acceptsGzip("gzip;q=0, *"));
+        assertFalse(Compression.acceptsGzip("*, gzip;q=0"));
+        assertFalse(Compression.acceptsGzip("deflate, *;q=0"));
+    }
+}
@@ -0,0 +1,82 @@
+package net.jselby.cubirepo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Resource resource(String version, byte[] contents) throws IOException {
+        Resource resource = new Resource();
+        resource.setAuthor("me");
+        resource.setName("delta-test");
+        resource.setVersion(version);
+        resource.setType("jar");
+        resource.setContents(new ByteArrayInputStream(contents));
+        return resource;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void servesPatchesWhichReproduceTheTarget() throws IOException {
+        Random random = new Random(5);
+        byte[] old = randomBytes(random, 200_000);
+        byte[] changed = old.clone();
+        System.arraycopy(randomBytes(random, 500), 0, changed, 100_000, 500);
+        Resource base = resource("1.0", old);
+        Resource target = resource("1.1", changed);
+
+        DeltaCache cache = new DeltaCache(folder.getRoot(), 1024 * 1024);
+        ResourceSender.Sendable patch = cache.get(base, target);
+        assertNotNull(patch);
+        assertEquals(1, cache.getCreated());
+        assertEquals(patch.getFile().length(), patch.getSize());
+        assertEquals(patch.getSize(), cache.getUsed());
+        assertTrue(patch.getHash().startsWith("delta-"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(patch.getFile())) {
+            Delta.apply(base.getFile(), in, out);
+        }
+        assertArrayEquals(changed, out.toByteArray());
+
+        // Asking again reuses the patch
+        assertEquals(patch.getFile(), cache.get(base, target).getFile());
+        assertEquals(1, cache.getCreated());
+        base.releaseContents();
+        target.releaseContents();
+    }
+
+    @Test
+    public void remembersPairsWithoutWorthwhilePatches() throws IOException {
+        Random random = new Random(6);
+        Resource base = resource("1.0", randomBytes(random, 50_000));
+        Resource target = resource("2.0", randomBytes(random, 50_000));
+
+        DeltaCache cache = new DeltaCache(folder.getRoot(), 1024 * 1024);
+        assertNull(cache.get(base, target));
+        assertNull(cache.get(base, target));
+        assertEquals(0, cache.getCreated());
+        File[] left = folder.getRoot().listFiles();
+        assertEquals(0, left == null ? 0 : left.length);
+        base.releaseContents();
+        target.releaseContents();
+    }
+}
@@ -0,0 +1,122 @@
+package net.jselby.cubirepo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(1234);
+
+    private File write(byte[] data) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] roundTrip(byte[] base, byte[] target, long maxSize, long[] patchSize) throws IOException {
+        File baseFile = write(base);
+        File targetFile = write(target);
+        File patch = folder.newFile();
+        long size = Delta.create(baseFile, targetFile, Hashes.hash(target), patch, maxSize);
+        if (patchSize != null) {
+            patchSize[0] = size;
+        }
+        if (size == -1) {
+            return null;
+        }
+        assertEquals(patch.length(), size);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(patch)) {
+            Delta.apply(baseFile, in, out);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTripsEditedFile() throws IOException {
+        byte[] base = randomBytes(300_000);
+        // Insert, delete and change some bytes, and move a block around
+        byte[] target = concat(
+                Arrays.copyOfRange(base, 200_000, 250_000),
+                Arrays.copyOfRange(base, 0, 10_000),
+                randomBytes(777),
+                Arrays.copyOfRange(base, 12_000, 200_000),
+                Arrays.copyOfRange(base, 250_000, 300_000));
+        target[150_000] ^= 1;
+
+        long[] size = new long[1];
+        assertArrayEquals(target, roundTrip(base, target, Long.MAX_VALUE, size));
+        // Only the changes are inserted
+        assertTrue("Patch of " + size[0] + " bytes", size[0] < 10_000);
+    }
+
+    @Test
+    public void roundTripsUnrelatedAndEmptyFiles() throws IOException {
+        byte[] unrelated = randomBytes(5000);
+        assertArrayEquals(unrelated, roundTrip(randomBytes(5000), unrelated, Long.MAX_VALUE, null));
+        assertArrayEquals(new byte[0], roundTrip(randomBytes(5000), new byte[0], Long.MAX_VALUE, null));
+        assertArrayEquals(unrelated, roundTrip(new byte[0], unrelated, Long.MAX_VALUE, null));
+    }
+
+    @Test
+    public void givesUpOnPatchesLargerThanTheLimit() throws IOException {
+        assertNull(roundTrip(randomBytes(50_000), randomBytes(50_000), 10_000, null));
+    }
+
+    @Test
+    public void rejectsPatchAppliedToWrongBase() throws IOException {
+        byte[] base = randomBytes(100_000);
+        byte[] target = concat(base, randomBytes(100));
+        File patch = folder.newFile();
+        Delta.create(write(base), write(target), Hashes.hash(target), patch, Long.MAX_VALUE);
+
+        byte[] otherBase = base.clone();
+        otherBase[5000] ^= 1;
+        try (InputStream in = new FileInputStream(patch)) {
+            Delta.apply(write(otherBase), in, new ByteArrayOutputStream());
+            fail("Patch applied to the wrong base");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void rejectsGarbage() throws IOException {
+        try {
+            Delta.apply(write(randomBytes(10)), new java.io.ByteArrayInputStream(randomBytes(100)),
+                    new ByteArrayOutputStream());
+            fail("Garbage applied as a patch");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
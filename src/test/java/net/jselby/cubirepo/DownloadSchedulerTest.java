@@ -0,0 +1,147 @@
+package net.jselby.cubirepo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class DownloadSchedulerTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void bucketAllowsBurstThenMakesCallersWait() {
+        TokenBucket bucket = new TokenBucket(1000, 500);
+        assertEquals(0, bucket.reserve(500));
+
+        // Half a second in debt, at 1000 tokens a second
+        long wait = bucket.reserve(500);
+        assertTrue("Waited " + wait, wait > TimeUnit.MILLISECONDS.toNanos(400)
+                && wait <= TimeUnit.MILLISECONDS.toNanos(500));
+
+        // Later callers queue up behind the debt
+        assertTrue(bucket.reserve(100) > wait);
+    }
+
+    @Test
+    public void smallDownloadsArentScheduled() {
+        DownloadScheduler scheduler = new DownloadScheduler(MB, 0, 0, 1, 0);
+        assertSame(DownloadScheduler.UNLIMITED, scheduler.enter("a", MB - 1));
+        assertNotSame(DownloadScheduler.UNLIMITED, scheduler.enter("a", MB));
+    }
+
+    @Test
+    public void queuesAndRejectsBeyondLimits() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(0, 0, 0, 1, 1);
+        DownloadScheduler.Ticket first = scheduler.enter("a", MB);
+        first.await();
+        assertEquals(1, scheduler.getActive());
+
+        DownloadScheduler.Ticket second = scheduler.enter("b", MB);
+        assertNotNull(second);
+        assertEquals(1, scheduler.getQueued());
+
+        assertNull(scheduler.enter("c", MB));
+        assertEquals(1, scheduler.getRejected());
+
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                second.await();
+                started.countDown();
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        });
+        waiter.start();
+        assertFalse("Queued download started early", started.await(100, TimeUnit.MILLISECONDS));
+
+        first.close();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertNull(failure.get());
+        assertEquals(1, scheduler.getActive());
+        assertEquals(0, scheduler.getQueued());
+
+        second.close();
+        second.close();
+        assertEquals(0, scheduler.getActive());
+    }
+
+    @Test
+    public void closingQueuedTicketLeavesQueue() {
+        DownloadScheduler scheduler = new DownloadScheduler(0, 0, 0, 1, 1);
+        DownloadScheduler.Ticket active = scheduler.enter("a", MB);
+        DownloadScheduler.Ticket queued = scheduler.enter("b", MB);
+        queued.close();
+        assertEquals(0, scheduler.getQueued());
+        assertNotNull(scheduler.enter("c", MB));
+        active.close();
+    }
+
+    @Test
+    public void newDownloadsDontJumpTheQueue() {
+        DownloadScheduler scheduler = new DownloadScheduler(0, 0, 0, 1, 5);
+        DownloadScheduler.Ticket active = scheduler.enter("a", MB);
+        scheduler.enter("b", MB);
+        active.close();
+        // The place of a went straight to b, even though b isn't waiting for it yet
+        scheduler.enter("c", MB);
+        assertEquals(1, scheduler.getActive());
+        assertEquals(1, scheduler.getQueued());
+    }
+
+    @Test
+    public void handsQueuedDownloadsOverWhenLetIn() {
+        DownloadScheduler scheduler = new DownloadScheduler(0, 0, 0, 1, 1);
+        DownloadScheduler.Ticket active = scheduler.enter("a", MB);
+        List<String> ready = new ArrayList<>();
+        active.whenReady(() -> ready.add("a"));
+        assertEquals(Collections.singletonList("a"), ready);
+
+        DownloadScheduler.Ticket queued = scheduler.enter("b", MB);
+        queued.whenReady(() -> ready.add("b"));
+        assertEquals(1, ready.size());
+
+        // Runs on the thread closing a, without anything waiting for b
+        active.close();
+        assertEquals(Arrays.asList("a", "b"), ready);
+        assertEquals(0, scheduler.getQueued());
+        queued.close();
+        assertEquals(0, scheduler.getActive());
+    }
+
+    @Test
+    public void limitsBandwidthPerClient() throws IOException {
+        // 64 KB of burst, then 256 KB a second
+        DownloadScheduler scheduler = new DownloadScheduler(0, 0, 256 * 1024, 4, 4);
+        DownloadScheduler.Ticket ticket = scheduler.enter("a", MB);
+        ticket.await();
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        WritableByteChannel out = ticket.wrap(Channels.newChannel(sink));
+        ByteBuffer data = ByteBuffer.allocate(192 * 1024);
+        long start = System.nanoTime();
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+        long elapsed = System.nanoTime() - start;
+        ticket.close();
+
+        assertEquals(192 * 1024, sink.size());
+        // 128 KB beyond the burst takes half a second
+        assertTrue("Took " + elapsed / 1000000 + " ms", elapsed >= TimeUnit.MILLISECONDS.toNanos(400));
+    }
+}
@@ -0,0 +1,86 @@
+package net.jselby.cubirepo;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    @Test
+    public void isEmptyUntilRecordedTo() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getSum());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void keepsSmallValuesExactly() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 16; i++) {
+            histogram.record(i);
+        }
+        assertEquals(16, histogram.getCount());
+        assertEquals(120, histogram.getSum());
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(7, histogram.getValueAtPercentile(50));
+        assertEquals(15, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void keepsLargeValuesWithinSixPercent() {
+        for (long value = 16; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            Histogram histogram = new Histogram();
+            histogram.record(value);
+            long reported = histogram.getValueAtPercentile(50);
+            assertTrue(value + " reported as " + reported, Math.abs(reported - value) <= value * 0.0625);
+        }
+
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertTrue(histogram.getValueAtPercentile(100) > Long.MAX_VALUE / 2);
+    }
+
+    @Test
+    public void findsPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(500, histogram.getValueAtPercentile(50), 500 * 0.0625);
+        assertEquals(990, histogram.getValueAtPercentile(99), 990 * 0.0625);
+        assertEquals(1000, histogram.getValueAtPercentile(100), 1000 * 0.0625);
+        assertEquals(1000, histogram.getValueAtPercentile(150), 1000 * 0.0625);
+        assertEquals(500500, histogram.getSum());
+    }
+
+    @Test
+    public void recordsNegativeValuesAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getSum());
+        assertEquals(0, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void countsEveryConcurrentRecord() throws InterruptedException {
+        Histogram histogram = new Histogram();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int thread = 0; thread < 4; thread++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    histogram.record(i);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(40000, histogram.getCount());
+        assertEquals(4L * 10000 * 9999 / 2, histogram.getSum());
+    }
+}
@@ -0,0 +1,176 @@
+package net.jselby.cubirepo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class IntegrityScanTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ResourceRegistry registry = new ResourceRegistry();
+    private final List<Resource> quarantined = new ArrayList<>();
+    private MetadataStore store;
+    private AccessLog log;
+    private File quarantine;
+
+    @Before
+    public void open() throws IOException {
+        store = new MetadataStore(registry, folder.newFolder(), 1000);
+        log = new AccessLog(folder.newFile(), 1024 * 1024);
+        quarantine = folder.newFolder();
+    }
+
+    @After
+    public void close() throws IOException {
+        store.close();
+        log.close();
+    }
+
+    private IntegrityScan scan(ResourceRegistry registry, MetadataStore store) {
+        IntegrityScan scan = new IntegrityScan(registry, store, log, quarantine, 2, quarantined::add);
+        scan.run();
+        assertEquals(1, scan.getProgress(), 0);
+        return scan;
+    }
+
+    private IntegrityScan scan() {
+        return scan(registry, store);
+    }
+
+    /**
+     * Contents no other test shares, as the BlobStore is shared by all of them.
+     */
+    private static byte[] unique() {
+        return ("contents " + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Resource resource(String name) {
+        Resource resource = new Resource();
+        resource.setAuthor("scan");
+        resource.setName(name + "-" + UUID.randomUUID());
+        resource.setVersion("1.0");
+        resource.setType("jar");
+        return resource;
+    }
+
+    private Resource stored(String name, byte[] contents) throws IOException {
+        Resource resource = resource(name);
+        resource.setContents(contents);
+        store.add(resource);
+        return resource;
+    }
+
+    @Test
+    public void leavesHealthyContentsAlone() throws IOException {
+        Resource resource = stored("healthy", unique());
+        IntegrityScan scan = scan();
+        assertEquals(0, scan.getMissing());
+        assertEquals(0, scan.getCorrupt());
+        assertTrue(resource.getFile().isFile());
+        assertTrue(quarantined.isEmpty());
+    }
+
+    @Test
+    public void quarantinesCorruptContents() throws IOException {
+        byte[] contents = unique();
+        Resource first = stored("corrupt", contents);
+        Resource second = stored("copy", contents);
+        File file = first.getFile();
+        byte[] damaged = contents.clone();
+        damaged[0] ^= 1;
+        Files.write(file.toPath(), damaged);
+
+        IntegrityScan scan = scan();
+        assertEquals(1, scan.getCorrupt());
+        assertFalse(file.exists());
+        assertEquals(1, quarantine.listFiles().length);
+        assertTrue(quarantined.contains(first));
+        assertTrue(quarantined.contains(second));
+    }
+
+    @Test
+    public void quarantinesTruncatedContents() throws IOException {
+        Resource resource = stored("truncated", unique());
+        Files.write(resource.getFile().toPath(), new byte[3]);
+        assertEquals(1, scan().getCorrupt());
+        assertEquals(1, quarantined.size());
+    }
+
+    @Test
+    public void reportsMissingContents() throws IOException {
+        Resource resource = stored("missing", unique());
+        Files.delete(resource.getFile().toPath());
+        store.add(resource("empty"));
+
+        IntegrityScan scan = scan();
+        assertEquals(2, scan.getMissing());
+        assertEquals(0, scan.getCorrupt());
+    }
+
+    @Test
+    public void quarantinesOrphanedBlobs() throws IOException {
+        byte[] contents = unique();
+        File orphan = BlobStore.getInstance().getFile(Hashes.hash(contents));
+        assertTrue(orphan.getParentFile().isDirectory() || orphan.getParentFile().mkdirs());
+        Files.write(orphan.toPath(), contents);
+        Resource kept = stored("referenced", unique());
+
+        IntegrityScan scan = scan();
+        assertTrue(scan.getOrphans() >= 1);
+        assertFalse(orphan.exists());
+        assertTrue(kept.getFile().isFile());
+    }
+
+    @Test
+    public void migratesLegacyContents() throws IOException {
+        Resource resource = resource("legacy");
+        byte[] contents = unique();
+        File legacy = new File("cache", resource.getName() + "_scan_1.0.jar");
+        assertTrue(legacy.getParentFile().isDirectory() || legacy.getParentFile().mkdirs());
+        Files.write(legacy.toPath(), contents);
+        store.add(resource);
+        long modifications = registry.getModificationCount();
+
+        IntegrityScan scan = scan();
+        assertEquals(0, scan.getMissing());
+        assertEquals(Hashes.hash(contents), resource.getHash());
+        assertArrayEquals(contents, Files.readAllBytes(resource.getFile().toPath()));
+        assertTrue(registry.getModificationCount() > modifications);
+        Files.deleteIfExists(legacy.toPath());
+    }
+
+    @Test
+    public void releasesMigratedContentsOfReplacedResources() throws IOException {
+        Resource resource = resource("replaced");
+        byte[] contents = unique();
+        File legacy = new File("cache", resource.getName() + "_scan_1.0.jar");
+        assertTrue(legacy.getParentFile().isDirectory() || legacy.getParentFile().mkdirs());
+        Files.write(legacy.toPath(), contents);
+        registry.add(resource);
+
+        // The store no longer knows the resource, as if it was replaced during the scan
+        MetadataStore other = new MetadataStore(new ResourceRegistry(), folder.newFolder(), 1000);
+        try {
+            scan(registry, other);
+        } finally {
+            other.close();
+        }
+        String hash = Hashes.hash(contents);
+        assertEquals(0, BlobStore.getInstance().getReferences(hash));
+        assertFalse(BlobStore.getInstance().getFile(hash).exists());
+        Files.deleteIfExists(legacy.toPath());
+    }
+}
@@ -0,0 +1,150 @@
+package net.jselby.cubirepo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class JarIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final byte[] MANIFEST = "Manifest-Version: 1.0\nMain-Class: net.example.Main\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static byte[] repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(text);
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private File createJar(int fillerEntries) throws IOException {
+        File file = folder.newFile("test.jar");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            zip.setComment("A comment, which comes after the end record");
+            zip.putNextEntry(new ZipEntry("META-INF/"));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zip.write(MANIFEST);
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("net/example/Main.class"));
+            zip.write(repeat("class bytes ", 100));
+            zip.closeEntry();
+
+            byte[] stored = repeat("stored ", 10);
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            ZipEntry entry = new ZipEntry("plugin.yml");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stored.length);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(stored);
+            zip.closeEntry();
+
+            for (int i = 0; i < fillerEntries; i++) {
+                zip.putNextEntry(new ZipEntry("f/" + i));
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    private static byte[] readData(File file, JarIndex.Entry entry) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer data = ByteBuffer.allocate((int) entry.getCompressedSize());
+            channel.read(data, JarIndex.getDataOffset(channel, entry));
+            return data.array();
+        }
+    }
+
+    @Test
+    public void indexesEntries() throws IOException {
+        File file = createJar(0);
+        JarIndex index = JarIndex.read(file);
+
+        assertEquals(3, index.getEntries().size());
+        assertNull("Directories aren't indexed", index.getEntry("META-INF/"));
+        assertTrue(index.hasClass("net.example.Main"));
+        assertFalse(index.hasClass("net.example.Other"));
+        assertTrue(index.isCurrent(file));
+
+        JarIndex.Entry manifest = index.getEntry("META-INF/MANIFEST.MF");
+        assertEquals(JarIndex.DEFLATED, manifest.getMethod());
+        assertEquals(MANIFEST.length, manifest.getSize());
+        CRC32 crc = new CRC32();
+        crc.update(MANIFEST);
+        assertEquals(crc.getValue(), manifest.getCrc());
+
+        // The offset leads to the raw deflated bytes of the entry
+        try (InputStream in = new InflaterInputStream(
+                new java.io.ByteArrayInputStream(readData(file, manifest)), new Inflater(true))) {
+            byte[] inflated = new byte[MANIFEST.length];
+            int read = 0;
+            while (read < inflated.length) {
+                read += in.read(inflated, read, inflated.length - read);
+            }
+            assertArrayEquals(MANIFEST, inflated);
+        }
+
+        JarIndex.Entry stored = index.getEntry("plugin.yml");
+        assertEquals(JarIndex.STORED, stored.getMethod());
+        assertArrayEquals(repeat("stored ", 10), readData(file, stored));
+    }
+
+    @Test
+    public void readsZip64Archives() throws IOException {
+        // More than 65535 entries forces zip64 end records
+        File file = createJar(70_000);
+        JarIndex index = JarIndex.read(file);
+
+        assertEquals(70_003, index.getEntries().size());
+        assertNotNull(index.getEntry("f/69999"));
+        assertArrayEquals(repeat("stored ", 10), readData(file, index.getEntry("plugin.yml")));
+    }
+
+    @Test
+    public void noticesChangedFiles() throws IOException {
+        File file = createJar(0);
+        JarIndex index = JarIndex.read(file);
+        Files.write(file.toPath(), new byte[] {1, 2, 3}, StandardOpenOption.APPEND);
+        assertFalse(index.isCurrent(file));
+    }
+
+    @Test(expected = ZipException.class)
+    public void rejectsFilesWhichArentZips() throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), repeat("not a zip ", 100));
+        JarIndex.read(file);
+    }
+
+    @Test(expected = ZipException.class)
+    public void rejectsTruncatedArchives() throws IOException {
+        File file = createJar(0);
+        byte[] data = Files.readAllBytes(file.toPath());
+        // Keep the end record, but lose the start of the central directory
+        int cut = data.length - 120;
+        File truncated = folder.newFile();
+        Files.write(truncated.toPath(), java.util.Arrays.copyOfRange(data, cut, data.length));
+        JarIndex.read(truncated);
+    }
+}
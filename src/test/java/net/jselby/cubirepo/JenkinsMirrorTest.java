@@ -0,0 +1,69 @@
+package net.jselby.cubirepo;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class JenkinsMirrorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rejectsNamesLeavingTheDirectory() {
+        assertTrue(JenkinsMirror.isSafeFileName("server-1.0.jar"));
+        assertFalse(JenkinsMirror.isSafeFileName("../server.jar"));
+        assertFalse(JenkinsMirror.isSafeFileName("server/../../x.jar"));
+        assertFalse(JenkinsMirror.isSafeFileName("..\\server.jar"));
+        assertFalse(JenkinsMirror.isSafeFileName("/etc/passwd"));
+        assertFalse(JenkinsMirror.isSafeFileName(""));
+        assertFalse(JenkinsMirror.isSafeFileName(null));
+    }
+
+    private JenkinsMirror load(String fileName) throws IOException {
+        File directory = folder.newFolder();
+        Files.write(new File(directory, "7_server.jar").toPath(), new byte[] {1, 2, 3});
+        Files.write(new File(directory, "server.jar").toPath(), new byte[] {1, 2, 3});
+        new File(directory, "7_x").mkdir();
+        String state = "{\"number\":7,\"fileName\":\"" + fileName + "\",\"hash\":\"ab\",\"size\":3,"
+                + "\"lastModified\":1000}";
+        Files.write(new File(directory, "state.json").toPath(), state.getBytes(StandardCharsets.UTF_8));
+        return new JenkinsMirror(new URL("http://127.0.0.1:1/api/json"), directory);
+    }
+
+    @Test
+    public void restoresSavedBuild() throws IOException {
+        JenkinsMirror.Build build = load("server.jar").getBuild();
+        assertNotNull(build);
+        assertEquals(7, build.getNumber());
+        assertEquals("ab", build.getHash());
+        assertEquals(3, build.getSize());
+        assertEquals(1000, build.getLastModified());
+    }
+
+    @Test
+    public void ignoresSavedBuildWithUnsafeName() throws IOException {
+        // Resolves to a file which exists, but outside of the names the mirror creates
+        assertNull(load("x/../server.jar").getBuild());
+    }
+
+    @Test
+    public void serializesUnmirroredResourceWithoutBuild() {
+        Gson gson = new GsonBuilder().registerTypeAdapter(JenkinsResource.class, JenkinsResource.SERIALIZER).create();
+        JsonObject json = gson.toJsonTree(new Resource[] {new JenkinsResource()}).getAsJsonArray().get(0)
+                .getAsJsonObject();
+        assertEquals("server", json.get("name").getAsString());
+        assertEquals("cubition", json.get("author").getAsString());
+        assertNull(json.get("hash"));
+    }
+}
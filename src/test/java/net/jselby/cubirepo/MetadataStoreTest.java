@@ -0,0 +1,148 @@
+package net.jselby.cubirepo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MetadataStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Resource resource(String name, String version) {
+        Resource resource = new Resource();
+        resource.setAuthor("me");
+        resource.setName(name);
+        resource.setVersion(version);
+        resource.setType("jar");
+        return resource;
+    }
+
+    private ResourceRegistry reload(File directory, int compactThreshold) throws IOException {
+        ResourceRegistry registry = new ResourceRegistry();
+        MetadataStore store = new MetadataStore(registry, directory, compactThreshold);
+        store.load();
+        store.close();
+        return registry;
+    }
+
+    @Test
+    public void truncatesTornJournalTail() throws IOException {
+        File directory = folder.getRoot();
+        MetadataStore store = new MetadataStore(new ResourceRegistry(), directory, 100);
+        store.load();
+        store.add(resource("a", "1"));
+        store.add(resource("b", "1"));
+        store.close();
+
+        File journal = new File(directory, "cubirepo.journal");
+        long valid = journal.length();
+        try (FileOutputStream out = new FileOutputStream(journal, true)) {
+            // An add record claiming a longer payload than was written before the crash
+            out.write(new byte[] {1, 0, 0, 0, 100, '{', '"'});
+        }
+
+        ResourceRegistry registry = reload(directory, 100);
+        assertEquals(2, registry.size());
+        assertNotNull(registry.get("me", "a", "1"));
+        assertEquals(valid, journal.length());
+
+        // New records follow the valid ones, and are read back
+        store = new MetadataStore(registry, directory, 100);
+        store.load();
+        store.add(resource("c", "1"));
+        store.close();
+        assertEquals(3, reload(directory, 100).size());
+    }
+
+    @Test
+    public void ignoresRecordsWithBadChecksums() throws IOException {
+        File directory = folder.getRoot();
+        MetadataStore store = new MetadataStore(new ResourceRegistry(), directory, 100);
+        store.load();
+        store.add(resource("a", "1"));
+        store.close();
+
+        File journal = new File(directory, "cubirepo.journal");
+        long valid = journal.length();
+        store = new MetadataStore(new ResourceRegistry(), directory, 100);
+        store.add(resource("b", "1"));
+        store.close();
+
+        // Flip a byte of the second record's checksum
+        byte[] data = java.nio.file.Files.readAllBytes(journal.toPath());
+        data[data.length - 1] ^= 1;
+        java.nio.file.Files.write(journal.toPath(), data);
+
+        ResourceRegistry registry = reload(directory, 100);
+        assertEquals(1, registry.size());
+        assertNull(registry.get("me", "b", "1"));
+        assertEquals(valid, journal.length());
+    }
+
+    @Test
+    public void replaysJournalOnTopOfSnapshot() throws IOException {
+        File directory = folder.getRoot();
+        ResourceRegistry registry = new ResourceRegistry();
+        MetadataStore store = new MetadataStore(registry, directory, 3);
+        store.load();
+
+        List<Resource> added = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Resource resource = resource("r" + i, "1." + i);
+            store.add(resource);
+            added.add(resource);
+        }
+        // The third record compacted the first three into the snapshot
+        assertTrue(new File(directory, "cubirepo.snapshot").isFile());
+        assertEquals(5, registry.size());
+        assertFalse(store.remove(resource("r1", "1.1")));
+
+        store.remove(added.get(1));
+        Resource replaced = resource("r4", "1.4");
+        replaced.setMainClass("net.example.Main");
+        store.add(replaced);
+        store.close();
+
+        ResourceRegistry loaded = reload(directory, 100);
+        assertEquals(4, loaded.size());
+        assertNull(loaded.get("me", "r1", "1.1"));
+        assertNotNull(loaded.get("me", "r0", "1.0"));
+        // Added by the record which triggered the compaction
+        assertNotNull(loaded.get("me", "r2", "1.2"));
+        assertEquals("net.example.Main", loaded.get("me", "r4", "1.4").getMainClass());
+    }
+
+    @Test
+    public void migratesLegacyRegistry() throws IOException {
+        File directory = folder.getRoot();
+        File legacy = new File(directory, "cubirepo.dat");
+        List<Resource> resources = new ArrayList<>();
+        resources.add(resource("old", "1"));
+        resources.add(resource("old", "2"));
+        resources.add(new JenkinsResource());
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(legacy))) {
+            out.writeObject(resources);
+        }
+
+        ResourceRegistry registry = reload(directory, 100);
+        assertEquals(2, registry.size());
+        assertNotNull(registry.get("me", "old", "2"));
+        assertNull(registry.find(JenkinsResource.class));
+
+        assertFalse(legacy.exists());
+        assertTrue(new File(directory, "cubirepo.dat.migrated").isFile());
+        assertTrue(new File(directory, "cubirepo.snapshot").isFile());
+
+        // Later starts read the snapshot instead
+        assertEquals(2, reload(directory, 100).size());
+    }
+}
@@ -0,0 +1,73 @@
+package net.jselby.cubirepo;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    private final Metrics metrics = new Metrics();
+
+    @Test
+    public void rendersCountersByLabel() {
+        metrics.increment("requests_total", "Requests served.", 1, "status", "200");
+        metrics.increment("requests_total", "Requests served.", 2, "status", "200");
+        metrics.increment("requests_total", "Requests served.", 1, "status", "404");
+        metrics.increment("errors_total", "Errors.", 5);
+
+        assertEquals("# HELP errors_total Errors.\n"
+                + "# TYPE errors_total counter\n"
+                + "errors_total 5\n"
+                + "# HELP requests_total Requests served.\n"
+                + "# TYPE requests_total counter\n"
+                + "requests_total{status=\"200\"} 3\n"
+                + "requests_total{status=\"404\"} 1\n", metrics.render());
+    }
+
+    @Test
+    public void readsGaugesWhenRendered() {
+        AtomicInteger value = new AtomicInteger(3);
+        metrics.gauge("queued", "Queued things.", value::get);
+        metrics.counter("handled_total", "Handled things.", () -> 1.5);
+        assertTrue(metrics.render().contains("\nqueued 3\n"));
+        value.set(7);
+        assertTrue(metrics.render().contains("\nqueued 7\n"));
+        assertTrue(metrics.render().contains("# TYPE handled_total counter\nhandled_total 1.5\n"));
+    }
+
+    @Test
+    public void rendersHistogramsAsScaledSummaries() {
+        for (int i = 1; i <= 100; i++) {
+            metrics.observe("latency_seconds", "Latency.", 0.25, 8, "route", "/");
+        }
+        String rendered = metrics.render();
+        assertTrue(rendered, rendered.contains("# TYPE latency_seconds summary\n"));
+        assertTrue(rendered, rendered.contains("latency_seconds{route=\"/\",quantile=\"0.5\"} 2\n"));
+        assertTrue(rendered, rendered.contains("latency_seconds{route=\"/\",quantile=\"0.999\"} 2\n"));
+        assertTrue(rendered, rendered.contains("latency_seconds_sum{route=\"/\"} 200\n"));
+        assertTrue(rendered, rendered.contains("latency_seconds_count{route=\"/\"} 100\n"));
+    }
+
+    @Test
+    public void escapesLabelValues() {
+        metrics.increment("odd_total", "Odd labels.", 1, "path", "a\"b\\c\nd", "empty", null);
+        assertTrue(metrics.render().contains("odd_total{path=\"a\\\"b\\\\c\\nd\",empty=\"\"} 1\n"));
+    }
+
+    @Test
+    public void boundsTheNumberOfSeries() {
+        for (int i = 0; i < 10005; i++) {
+            metrics.increment("paths_total", "Paths.", 1, "path", "/" + i);
+        }
+        String rendered = metrics.render();
+        assertTrue(rendered.contains("paths_total{path=\"/9999\"} 1\n"));
+        assertFalse(rendered.contains("paths_total{path=\"/10000\"}"));
+        assertTrue(rendered.contains("paths_total{overflow=\"true\"} 5\n"));
+    }
+
+    @Test
+    public void sharesOneInstance() {
+        assertSame(Metrics.getInstance(), Metrics.getInstance());
+    }
+}
@@ -0,0 +1,130 @@
+package net.jselby.cubirepo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class ResourceRegistryTest {
+    private static Resource resource(String author, String name, String version) {
+        Resource resource = new Resource();
+        resource.setAuthor(author);
+        resource.setName(name);
+        resource.setVersion(version);
+        resource.setType("jar");
+        return resource;
+    }
+
+    private static List<String> versions(Iterable<Resource> resources) {
+        List<String> versions = new ArrayList<>();
+        for (Resource resource : resources) {
+            versions.add(resource.getVersion());
+        }
+        return versions;
+    }
+
+    @Test
+    public void findsResourcesIgnoringCase() {
+        ResourceRegistry registry = new ResourceRegistry();
+        Resource resource = resource("Me", "Plugin", "1.0-BETA");
+        assertNull(registry.add(resource));
+
+        assertSame(resource, registry.get("me", "PLUGIN", "1.0-beta"));
+        assertNull(registry.get("me", "plugin", "1.0"));
+        assertNull(registry.get(null, "plugin", "1.0-beta"));
+        assertTrue(registry.hasVariants("ME", "plugin"));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void ignoresTheDefaultLocale() {
+        Locale previous = Locale.getDefault();
+        ResourceRegistry registry = new ResourceRegistry();
+        try {
+            // Where I would otherwise lowercase to a dotless i
+            Locale.setDefault(new Locale("tr", "TR"));
+            registry.add(resource("ILLUMINATI", "INFO", "1.0"));
+        } finally {
+            Locale.setDefault(previous);
+        }
+        assertNotNull(registry.get("illuminati", "info", "1.0"));
+    }
+
+    @Test
+    public void replacesResourcesWithTheSameCoordinates() {
+        ResourceRegistry registry = new ResourceRegistry();
+        Resource first = resource("me", "plugin", "1.0");
+        Resource second = resource("ME", "plugin", "1.0");
+        registry.add(first);
+        long modifications = registry.getModificationCount();
+
+        assertSame(first, registry.add(second));
+        assertSame(second, registry.get("me", "plugin", "1.0"));
+        assertEquals(1, registry.getVariants("me", "plugin").size());
+        assertEquals(1, registry.getByAuthor("me").size());
+        assertTrue(registry.getModificationCount() > modifications);
+    }
+
+    @Test
+    public void removesOnlyTheSameResource() {
+        ResourceRegistry registry = new ResourceRegistry();
+        Resource resource = resource("me", "plugin", "1.0");
+        registry.add(resource);
+
+        // Same coordinates, but a different resource
+        assertFalse(registry.remove(resource("me", "plugin", "1.0")));
+        assertTrue(registry.remove(resource));
+        assertFalse(registry.remove(resource));
+
+        assertNull(registry.get("me", "plugin", "1.0"));
+        assertFalse(registry.hasVariants("me", "plugin"));
+        assertTrue(registry.getByAuthor("me").isEmpty());
+        assertTrue(registry.getByName("plugin").isEmpty());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void listsVariantsOldestFirst() {
+        ResourceRegistry registry = new ResourceRegistry();
+        for (String version : new String[] {"1.10", "1.2", "2.0-beta", "1.9"}) {
+            registry.add(resource("me", "plugin", version));
+        }
+        registry.add(resource("you", "plugin", "3.0"));
+
+        assertEquals(Arrays.asList("1.2", "1.9", "1.10", "2.0-beta"), versions(registry.getVariants("me", "plugin")));
+        assertEquals(5, registry.getByName("PLUGIN").size());
+        assertEquals(1, registry.getByAuthor("you").size());
+        assertTrue(registry.getVariants("me", "other").isEmpty());
+    }
+
+    @Test
+    public void resolvesRangesButPrefersExactVersions() {
+        ResourceRegistry registry = new ResourceRegistry();
+        for (String version : new String[] {"1.0", "1.1", "2.0-rc1"}) {
+            registry.add(resource("me", "plugin", version));
+        }
+        assertEquals("2.0-rc1", registry.resolve("me", "plugin", "latest").getVersion());
+        assertEquals("1.1", registry.resolve("me", "plugin", "latest-stable").getVersion());
+        assertEquals("1.1", registry.resolve("me", "plugin", "1.+").getVersion());
+        assertNull(registry.resolve("me", "plugin", "3.0"));
+
+        // A resource actually versioned "latest" is found as such
+        registry.add(resource("me", "plugin", "latest"));
+        assertEquals("latest", registry.resolve("me", "plugin", "latest").getVersion());
+    }
+
+    @Test
+    public void findsResourcesByClass() {
+        ResourceRegistry registry = new ResourceRegistry();
+        registry.add(resource("me", "plugin", "1.0"));
+        assertNull(registry.find(JenkinsResource.class));
+
+        JenkinsResource jenkins = new JenkinsResource();
+        registry.add(jenkins);
+        assertSame(jenkins, registry.find(JenkinsResource.class));
+    }
+}
@@ -0,0 +1,162 @@
+package net.jselby.cubirepo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class ResourceSenderTest {
+    private static final String ETAG = "\"abc\"";
+    private static final long MODIFIED = 1_500_000_000_123L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ResourceSender.Sendable sendable() throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), new byte[1000]);
+        File compressed = folder.newFile();
+        Files.write(compressed.toPath(), new byte[100]);
+        return new ResourceSender.Sendable() {
+            @Override
+            public File getFile() {
+                return file;
+            }
+
+            @Override
+            public File getCompressedFile() {
+                return compressed;
+            }
+
+            @Override
+            public String getHash() {
+                return "abc";
+            }
+
+            @Override
+            public long getSize() {
+                return 1000;
+            }
+
+            @Override
+            public long getLastModified() {
+                return MODIFIED;
+            }
+        };
+    }
+
+    private static void assertNoRepresentation(Map<String, String> headers) {
+        for (String name : new String[] {"Content-Encoding", "ETag", "Last-Modified", "Accept-Ranges"}) {
+            assertFalse(name + " sent with an error", headers.containsKey(name));
+        }
+    }
+
+    @Test
+    public void rejectedDownloadsDontDescribeTheBody() throws IOException {
+        SparkStubs.Sent sent = SparkStubs.response();
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("Accept-Encoding", "gzip");
+        DownloadScheduler full = new DownloadScheduler(0, 0, 0, 0, 0);
+
+        assertEquals(503, new ResourceSender(new ArtifactCache(0))
+                .send(sendable(), SparkStubs.request(headers), sent.response, null, full));
+        assertNoRepresentation(sent.headers);
+        assertTrue(sent.headers.containsKey("Retry-After"));
+    }
+
+    @Test
+    public void unsatisfiableRangesDontDescribeTheBody() throws IOException {
+        SparkStubs.Sent sent = SparkStubs.response();
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("Accept-Encoding", "gzip");
+        headers.put("Range", "bytes=5000-");
+
+        assertEquals(416, new ResourceSender(new ArtifactCache(0))
+                .send(sendable(), SparkStubs.request(headers), sent.response));
+        assertNoRepresentation(sent.headers);
+        assertEquals("bytes */100", sent.headers.get("Content-Range"));
+    }
+
+    @Test
+    public void notModifiedKeepsValidators() throws IOException {
+        SparkStubs.Sent sent = SparkStubs.response();
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("Accept-Encoding", "gzip");
+        headers.put("If-None-Match", "\"abc-gzip\"");
+
+        assertEquals(304, new ResourceSender(new ArtifactCache(0))
+                .send(sendable(), SparkStubs.request(headers), sent.response));
+        assertEquals("\"abc-gzip\"", sent.headers.get("ETag"));
+    }
+
+    @Test
+    public void parsesByteRanges() {
+        assertArrayEquals(new long[] {0, 99}, ResourceSender.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] {500, 999}, ResourceSender.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[] {900, 999}, ResourceSender.parseRange("bytes=-100", 1000));
+        // Ranges running past the end are cut short, as are suffixes longer than the file
+        assertArrayEquals(new long[] {990, 999}, ResourceSender.parseRange("bytes=990-2000", 1000));
+        assertArrayEquals(new long[] {0, 999}, ResourceSender.parseRange("bytes=-5000", 1000));
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRanges() {
+        assertNull(ResourceSender.parseRange("bytes=1000-", 1000));
+        assertNull(ResourceSender.parseRange("bytes=-0", 1000));
+        assertNull(ResourceSender.parseRange("bytes=0-0", 0));
+    }
+
+    @Test
+    public void ignoresUnsupportedRanges() {
+        assertEquals(0, ResourceSender.parseRange("bytes=0-1,5-6", 1000).length);
+        assertEquals(0, ResourceSender.parseRange("items=0-1", 1000).length);
+        assertEquals(0, ResourceSender.parseRange("bytes=abc", 1000).length);
+        assertEquals(0, ResourceSender.parseRange("bytes=x-5", 1000).length);
+        // A last byte before the first makes the range invalid, so the full body is sent
+        assertEquals(0, ResourceSender.parseRange("bytes=50-10", 1000).length);
+        assertEquals(0, ResourceSender.parseRange("bytes=2000-10", 1000).length);
+    }
+
+    @Test
+    public void matchesIfNoneMatch() {
+        assertTrue(ResourceSender.isNotModified(ETAG, -1, ETAG, MODIFIED));
+        assertTrue(ResourceSender.isNotModified("\"other\", W/\"abc\"", -1, ETAG, MODIFIED));
+        assertTrue(ResourceSender.isNotModified("*", -1, ETAG, MODIFIED));
+        assertFalse(ResourceSender.isNotModified("\"other\"", -1, ETAG, MODIFIED));
+        assertFalse(ResourceSender.isNotModified(ETAG, -1, null, MODIFIED));
+    }
+
+    @Test
+    public void ifNoneMatchTakesPrecedenceOverDates() {
+        assertFalse(ResourceSender.isNotModified("\"other\"", MODIFIED + 10_000, ETAG, MODIFIED));
+    }
+
+    @Test
+    public void comparesIfModifiedSinceInWholeSeconds() {
+        // HTTP dates have no milliseconds
+        assertTrue(ResourceSender.isNotModified(null, MODIFIED - 123, ETAG, MODIFIED));
+        assertTrue(ResourceSender.isNotModified(null, MODIFIED + 60_000, ETAG, MODIFIED));
+        assertFalse(ResourceSender.isNotModified(null, MODIFIED - 1000, ETAG, MODIFIED));
+        assertFalse(ResourceSender.isNotModified(null, -1, ETAG, MODIFIED));
+    }
+
+    @Test
+    public void appliesRangesOnlyToCurrentCopies() {
+        assertTrue(ResourceSender.isRangeApplicable(null, -1, ETAG, MODIFIED));
+        assertTrue(ResourceSender.isRangeApplicable(ETAG, -1, ETAG, MODIFIED));
+        assertFalse(ResourceSender.isRangeApplicable("\"old\"", -1, ETAG, MODIFIED));
+        // Weak tags never match for ranges
+        assertFalse(ResourceSender.isRangeApplicable("W/\"abc\"", -1, ETAG, MODIFIED));
+
+        assertTrue(ResourceSender.isRangeApplicable("date", MODIFIED - 123, ETAG, MODIFIED));
+        assertFalse(ResourceSender.isRangeApplicable("date", MODIFIED - 1000, ETAG, MODIFIED));
+        assertFalse(ResourceSender.isRangeApplicable("garbage", -1, ETAG, MODIFIED));
+    }
+}
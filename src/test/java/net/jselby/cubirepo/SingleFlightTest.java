@@ -0,0 +1,133 @@
+package net.jselby.cubirepo;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+    private final SingleFlight<String, String> flight = new SingleFlight<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts a load which blocks until released, and waits for it to be running.
+     */
+    private Future<String> startBlocked(String key, CountDownLatch release, AtomicInteger calls,
+                                        SingleFlight.Loader<String> then) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        Future<String> future = executor.submit(() -> flight.load(key, () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return then.load();
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return future;
+    }
+
+    private void awaitShared(long amount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (flight.getShared() < amount) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void sharesConcurrentLoads() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Future<String> first = startBlocked("a", release, calls, () -> "loaded");
+
+        List<Future<String>> waiting = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            waiting.add(executor.submit(() -> flight.load("a", () -> {
+                calls.incrementAndGet();
+                return "not shared";
+            })));
+        }
+        awaitShared(5);
+        release.countDown();
+
+        assertEquals("loaded", first.get(10, TimeUnit.SECONDS));
+        for (Future<String> future : waiting) {
+            assertEquals("loaded", future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(5, flight.getShared());
+    }
+
+    @Test
+    public void keepsKeysApart() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Future<String> first = startBlocked("a", release, calls, () -> "a");
+
+        assertEquals("b", flight.load("b", () -> "b"));
+        release.countDown();
+        assertEquals("a", first.get(10, TimeUnit.SECONDS));
+        assertEquals(0, flight.getShared());
+    }
+
+    @Test
+    public void forgetsFinishedLoads() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals("1", flight.load("a", () -> Integer.toString(calls.incrementAndGet())));
+        assertEquals("2", flight.load("a", () -> Integer.toString(calls.incrementAndGet())));
+        assertEquals(0, flight.getShared());
+    }
+
+    @Test
+    public void sharesFailures() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Future<String> first = startBlocked("a", release, calls, () -> {
+            throw new IOException("broken");
+        });
+        Future<String> second = executor.submit(() -> flight.load("a", () -> "not shared"));
+        awaitShared(1);
+        release.countDown();
+
+        for (Future<String> future : Arrays.asList(first, second)) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                assertEquals("broken", e.getCause().getMessage());
+            }
+        }
+
+        // A failed load isn't remembered either
+        assertEquals("fixed", flight.load("a", () -> "fixed"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void passesRuntimeExceptionsThrough() throws IOException {
+        flight.load("a", () -> {
+            throw new IllegalStateException();
+        });
+    }
+}
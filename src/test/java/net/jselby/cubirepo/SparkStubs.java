@@ -0,0 +1,170 @@
+package net.jselby.cubirepo;
+
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stand-ins for Spark's requests and responses, so senders can be tested without a server.
+ */
+class SparkStubs {
+    /**
+     * What was sent through a stub response.
+     */
+    static class Sent {
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int status = 200;
+        Response response;
+
+        /**
+         * Returns the body, decompressed if it was sent with gzip.
+         */
+        byte[] getContents() throws IOException {
+            if (!"gzip".equals(headers.get("Content-Encoding"))) {
+                return body.toByteArray();
+            }
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()))) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            }
+        }
+    }
+
+    static Request request(Map<String, String> headers) {
+        return request(headers, Collections.emptyMap(), new byte[0]);
+    }
+
+    static Request request(Map<String, String> headers, Map<String, String> params, byte[] body) {
+        InputStream in = new ByteArrayInputStream(body);
+        ServletInputStream stream = new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return in.read();
+            }
+        };
+        HttpServletRequest raw = proxy(HttpServletRequest.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getDateHeader":
+                    return -1L;
+                case "getHeader":
+                    return headers.get(args[0]);
+                case "getParameter":
+                    return params.get(args[0]);
+                case "getContentLength":
+                    return body.length;
+                case "getInputStream":
+                    return stream;
+                default:
+                    return null;
+            }
+        });
+        return new Request() {
+            @Override
+            public String headers(String name) {
+                return headers.get(name);
+            }
+
+            @Override
+            public String queryParams(String name) {
+                return params.get(name);
+            }
+
+            @Override
+            public String ip() {
+                return "127.0.0.1";
+            }
+
+            @Override
+            public HttpServletRequest raw() {
+                return raw;
+            }
+        };
+    }
+
+    static Sent response() {
+        Sent sent = new Sent();
+        ServletOutputStream stream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                sent.body.write(b);
+            }
+        };
+        HttpServletResponse raw = proxy(HttpServletResponse.class, (method, args) -> {
+            switch (method.getName()) {
+                case "setHeader":
+                case "addHeader":
+                case "setDateHeader":
+                    sent.headers.put((String) args[0], String.valueOf(args[1]));
+                    return null;
+                case "setContentType":
+                    sent.headers.put("Content-Type", (String) args[0]);
+                    return null;
+                case "setContentLength":
+                    sent.headers.put("Content-Length", String.valueOf(args[0]));
+                    return null;
+                case "setStatus":
+                    sent.status = (Integer) args[0];
+                    return null;
+                case "containsHeader":
+                    return sent.headers.containsKey(args[0]);
+                case "getHeader":
+                    return sent.headers.get(args[0]);
+                case "getOutputStream":
+                    return stream;
+                default:
+                    return null;
+            }
+        });
+
+        try {
+            // Spark only hands out responses to routes, so go through its own constructor
+            Constructor<Response> constructor = Response.class.getDeclaredConstructor(HttpServletResponse.class);
+            constructor.setAccessible(true);
+            sent.response = constructor.newInstance(raw);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return sent;
+    }
+
+    private static <T> T proxy(Class<T> type, BiFunction<Method, Object[], Object> handler) {
+        return type.cast(Proxy.newProxyInstance(SparkStubs.class.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    Object result = handler.apply(method, args);
+                    if (result == null && method.getReturnType().isPrimitive()) {
+                        // Defaults for everything the stubs don't care about
+                        Class<?> returned = method.getReturnType();
+                        if (returned == boolean.class) {
+                            return false;
+                        } else if (returned == long.class) {
+                            return 0L;
+                        } else if (returned != void.class) {
+                            return 0;
+                        }
+                    }
+                    return result;
+                }));
+    }
+}
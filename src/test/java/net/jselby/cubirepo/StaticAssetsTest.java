@@ -0,0 +1,82 @@
+package net.jselby.cubirepo;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StaticAssetsTest {
+    private final StaticAssets assets = new StaticAssets("/res/", "prism.js", "prism.css");
+
+    private SparkStubs.Sent send(String name, String... headers) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            values.put(headers[i], headers[i + 1]);
+        }
+        SparkStubs.Sent sent = SparkStubs.response();
+        sent.status = assets.send(name, SparkStubs.request(values), sent.response);
+        return sent;
+    }
+
+    private static byte[] original(String name) throws IOException {
+        try (InputStream in = StaticAssetsTest.class.getResourceAsStream("/res/" + name)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private static String fingerprinted(String url) {
+        return url.substring("/res/".length());
+    }
+
+    @Test
+    public void fingerprintsUrls() {
+        String url = assets.getUrl("prism.js");
+        assertTrue(url, url.matches("/res/prism\\.[0-9a-f]{12}\\.js"));
+        assertNotEquals(url, assets.getUrl("prism.css"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownAssets() {
+        assets.getUrl("missing.js");
+    }
+
+    @Test
+    public void cachesFingerprintedNamesForever() throws IOException {
+        SparkStubs.Sent sent = send(fingerprinted(assets.getUrl("prism.js")));
+        assertEquals(200, sent.status);
+        assertTrue(sent.headers.get("Cache-Control").contains("immutable"));
+        assertEquals("text/javascript; charset=utf-8", sent.headers.get("Content-Type"));
+        assertArrayEquals(original("prism.js"), sent.getContents());
+    }
+
+    @Test
+    public void revalidatesPlainNames() throws IOException {
+        SparkStubs.Sent sent = send("prism.css");
+        assertEquals(200, sent.status);
+        assertEquals("no-cache", sent.headers.get("Cache-Control"));
+        assertArrayEquals(original("prism.css"), sent.getContents());
+
+        assertEquals(304, send("prism.css", "If-None-Match", sent.headers.get("ETag")).status);
+        assertEquals(404, send("missing.css").status);
+    }
+
+    @Test
+    public void tagsEachEncodingSeparately() throws IOException {
+        SparkStubs.Sent identity = send("prism.js");
+        SparkStubs.Sent gzip = send("prism.js", "Accept-Encoding", "gzip");
+        assertEquals("gzip", gzip.headers.get("Content-Encoding"));
+        assertArrayEquals(identity.getContents(), gzip.getContents());
+
+        String tag = gzip.headers.get("ETag");
+        assertNotEquals(identity.headers.get("ETag"), tag);
+        assertEquals(304, send("prism.js", "Accept-Encoding", "gzip", "If-None-Match", tag).status);
+        assertEquals(200, send("prism.js", "If-None-Match", tag).status);
+        assertEquals(200, send("prism.js", "Accept-Encoding", "gzip",
+                "If-None-Match", identity.headers.get("ETag")).status);
+    }
+}
@@ -0,0 +1,61 @@
+package net.jselby.cubirepo;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TemplateTest {
+    @Test
+    public void fillsPlaceholdersAndLeavesOtherText() {
+        Map<String, String> values = new HashMap<>();
+        values.put("title", "Resources");
+        values.put("body", "<b>bold</b>");
+        values.put("unused", "nothing");
+
+        String page = Template.load("/template-test.html").render(values);
+        assertTrue(page.contains("<h1>Resources</h1><p><b>bold</b></p>"));
+        assertTrue(page.contains("<p>100% sure, %not-a-placeholder%</p>"));
+        assertFalse(page.contains("nothing"));
+    }
+
+    @Test
+    public void leavesMissingPlaceholdersEmpty() {
+        String page = Template.load("/template-test.html").render(Collections.singletonMap("title", "x"));
+        assertTrue(page.contains("<h1>x</h1><p></p>"));
+    }
+
+    @Test
+    public void linksToFingerprintedAssets() {
+        StaticAssets assets = new StaticAssets("/res/", "prism.css");
+        String page = Template.load("/template-test.html", assets).render(Collections.emptyMap());
+        assertTrue(page.startsWith("<link href=\"" + assets.getUrl("prism.css") + "\">"));
+
+        // Without assets, the reference is left alone
+        assertTrue(Template.load("/template-test.html").render(Collections.emptyMap())
+                .startsWith("<link href=\"%res:prism.css%\">"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingTemplates() {
+        Template.load("/no-such-template.html");
+    }
+
+    @Test
+    public void escapesHtml() {
+        assertEquals("&lt;a href=&quot;x&quot; title=&#39;y&#39;&gt;&amp;&lt;/a&gt;",
+                Template.escapeHtml("<a href=\"x\" title='y'>&</a>"));
+        assertEquals("plain", Template.escapeHtml("plain"));
+        assertEquals("", Template.escapeHtml(null));
+    }
+
+    @Test
+    public void escapesJavaScriptStrings() {
+        assertEquals("\\x27);alert(\\x22x\\x22);\\x3c/script\\x3e\\x5c\\x0a",
+                Template.escapeJs("');alert(\"x\");</script>\\\n"));
+        assertEquals("", Template.escapeJs(null));
+    }
+}
@@ -0,0 +1,147 @@
+package net.jselby.cubirepo;
+
+import com.google.gson.Gson;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UploadSessionsTest {
+    private static final int CHUNK_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private UploadSessions sessions;
+    private byte[] data;
+    private final List<Resource> published = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder();
+        sessions = new UploadSessions(directory, 10_000, CHUNK_SIZE, new Gson());
+        data = new byte[2500];
+        new Random(99).nextBytes(data);
+    }
+
+    private String open(String hash) throws IOException {
+        Resource resource = new Resource();
+        resource.setAuthor("author");
+        resource.setName("name");
+        resource.setVersion("1.0");
+        resource.setType("jar");
+        return sessions.create(resource, hash, data.length);
+    }
+
+    private int send(String id, int index) throws IOException {
+        int start = index * CHUNK_SIZE;
+        byte[] chunk = Arrays.copyOfRange(data, start, Math.min(data.length, start + CHUNK_SIZE));
+        return sessions.write(id, index, new ByteArrayInputStream(chunk), chunk.length);
+    }
+
+    @Test
+    public void rejectsChunksOfTheWrongLength() throws IOException {
+        String id = open(Hashes.hash(data));
+        assertEquals(400, sessions.write(id, 0, new ByteArrayInputStream(new byte[999]), 999));
+        assertEquals(400, sessions.write(id, 2, new ByteArrayInputStream(new byte[1000]), 1000));
+        // Bodies which don't match their declared length are caught while reading
+        assertEquals(400, sessions.write(id, 0, new ByteArrayInputStream(new byte[999]), -1));
+        assertEquals(400, sessions.write(id, 0, new ByteArrayInputStream(new byte[1001]), -1));
+        assertEquals(404, sessions.write(id, 3, new ByteArrayInputStream(new byte[0]), 0));
+        assertEquals(404, sessions.write("missing", 0, new ByteArrayInputStream(new byte[1000]), 1000));
+    }
+
+    @Test
+    public void commitsOnceEveryChunkHasArrived() throws IOException {
+        String id = open(Hashes.hash(data));
+        assertEquals(204, send(id, 2));
+        assertEquals(204, send(id, 0));
+        assertEquals(409, sessions.commit(id, published::add));
+
+        assertEquals(204, send(id, 1));
+        // Chunks can be sent again before committing
+        assertEquals(204, send(id, 1));
+        assertEquals(200, sessions.commit(id, published::add));
+
+        assertEquals(1, published.size());
+        Resource resource = published.get(0);
+        assertEquals(Hashes.hash(data), resource.getHash());
+        assertEquals(data.length, resource.getSize());
+        assertEquals(0, sessions.getOpen());
+        assertEquals(0, directory.list().length);
+        assertEquals(404, sessions.commit(id, published::add));
+    }
+
+    @Test
+    public void discardsUploadsWhichDontMatchTheirHash() throws IOException {
+        byte[] other = data.clone();
+        other[0] ^= 1;
+        String id = open(Hashes.hash(other));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(204, send(id, i));
+        }
+        assertEquals(422, sessions.commit(id, published::add));
+        assertTrue(published.isEmpty());
+        assertEquals(0, sessions.getOpen());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void abortsSessions() throws IOException {
+        String id = open(Hashes.hash(data));
+        assertEquals(204, send(id, 0));
+        assertEquals(1, directory.list().length);
+
+        assertEquals(204, sessions.abort(id));
+        assertEquals(404, sessions.abort(id));
+        assertEquals(404, send(id, 1));
+        assertEquals(404, sessions.commit(id, published::add));
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void chunksInFlightWhenAbortedAreNotFound() throws IOException {
+        String id = open(Hashes.hash(data));
+        InputStream body = new InputStream() {
+            private int reads;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                if (reads++ == 1) {
+                    sessions.abort(id);
+                }
+                int count = Math.min(length, 100);
+                Arrays.fill(buffer, offset, offset + count, (byte) 1);
+                return count;
+            }
+        };
+        assertEquals(404, sessions.write(id, 0, body, CHUNK_SIZE));
+        assertEquals(0, sessions.getOpen());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void deletesPartsLeftBeforeRestart() throws IOException {
+        open(Hashes.hash(data));
+        assertEquals(1, directory.list().length);
+        new UploadSessions(directory, 10_000, CHUNK_SIZE, new Gson());
+        assertEquals(0, directory.list().length);
+    }
+}
@@ -0,0 +1,125 @@
+package net.jselby.cubirepo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class VersionComparatorTest {
+    private static final VersionComparator COMPARATOR = VersionComparator.INSTANCE;
+
+    private static NavigableMap<String, String> versions(String... versions) {
+        NavigableMap<String, String> map = new TreeMap<>(COMPARATOR);
+        for (String version : versions) {
+            map.put(version, version);
+        }
+        return map;
+    }
+
+    private static String select(String query, NavigableMap<String, String> versions) {
+        VersionRange range = VersionRange.parse(query);
+        assertNotNull("Not a range: " + query, range);
+        return range.select(versions);
+    }
+
+    @Test
+    public void ordersVersionsAsPeopleReadThem() {
+        List<String> expected = Arrays.asList(
+                "0.9", "1.0-dev", "1.0-alpha", "1.0-beta", "1.0-beta2", "1.0-rc1", "1.0-snapshot",
+                "1.0", "1.0.1", "1.2", "1.9", "1.10", "2.0");
+        List<String> shuffled = new ArrayList<>(expected);
+        Collections.shuffle(shuffled, new java.util.Random(42));
+        shuffled.sort(COMPARATOR);
+        assertEquals(expected, shuffled);
+    }
+
+    @Test
+    public void ordersExtraTokensAfterTheEnd() {
+        List<String> expected = Arrays.asList("1.0-beta", "1.0", "1.0-sp", "1.0.0", "1.0.0.1", "1.0.1", "1.0.1-sp");
+        List<String> shuffled = new ArrayList<>(expected);
+        Collections.shuffle(shuffled, new java.util.Random(7));
+        shuffled.sort(COMPARATOR);
+        assertEquals(expected, shuffled);
+        assertTrue(COMPARATOR.compare("1.0-sp", "1.0.0") < 0);
+        assertTrue(COMPARATOR.compare("1.0.0", "1.0-sp") > 0);
+    }
+
+    @Test
+    public void comparesNumbersByValue() {
+        assertTrue(COMPARATOR.compare("1.10", "1.9") > 0);
+        assertTrue(COMPARATOR.compare("1.010", "1.9") > 0);
+        assertTrue(COMPARATOR.compare("10000000000000000000001", "9") > 0);
+    }
+
+    @Test
+    public void treatsSynonymsAndCaseAlike() {
+        assertEquals(0, COMPARATOR.compare("1.0-BETA", "1.0-beta"));
+        assertTrue(COMPARATOR.compare("1.0-a", "1.0-beta") < 0);
+        // Distinct strings never compare as equal, so both fit in a sorted map
+        assertNotEquals(0, COMPARATOR.compare("1.0-alpha", "1.0-a"));
+        assertNotEquals(0, COMPARATOR.compare("1.0", "1-0"));
+    }
+
+    @Test
+    public void detectsStableVersions() {
+        assertTrue(VersionComparator.isStable("1.2.3"));
+        assertTrue(VersionComparator.isStable("1.2-final"));
+        assertFalse(VersionComparator.isStable("1.2-SNAPSHOT"));
+        assertFalse(VersionComparator.isStable("1.2rc1"));
+    }
+
+    @Test
+    public void plusSelectsNewestWithPrefix() {
+        NavigableMap<String, String> versions = versions(
+                "1.1.9", "1.2", "1.2.0", "1.2.5", "1.2.10", "1.20.1", "1.3-beta", "1.3");
+        assertEquals("1.2.10", select("1.2.+", versions));
+        assertEquals("1.20.1", select("1.+", versions));
+        assertEquals("1.20.1", select("latest", versions));
+        assertNull(select("1.4.+", versions));
+    }
+
+    @Test
+    public void plusExcludesPreReleasesOfNextVersion() {
+        assertEquals("1.2.5", select("1.2.+", versions("1.2.5", "1.3-dev", "1.3-alpha")));
+        // But not pre-releases within the prefix
+        assertEquals("1.2.6-beta", select("1.2.+", versions("1.2.5", "1.2.6-beta")));
+    }
+
+    @Test
+    public void plusRequiresTheDotAfterThePrefix() {
+        // 1.20 is not in 1.2.+, even though it shares the text
+        assertNull(select("1.2.+", versions("1.20", "1.21.3")));
+        assertEquals("1.2.1", select("1.2.+", versions("1.2.1", "1.20")));
+    }
+
+    @Test
+    public void latestStableSkipsPreReleases() {
+        NavigableMap<String, String> versions = versions("1.0", "1.1", "2.0-rc1", "2.0-SNAPSHOT");
+        assertEquals("1.1", select("latest-stable", versions));
+        assertEquals("2.0-SNAPSHOT", select("latest", versions));
+    }
+
+    @Test
+    public void selectsWithinIntervals() {
+        NavigableMap<String, String> versions = versions("1.0", "1.5", "2.0-beta", "2.0", "3.0");
+        assertEquals("2.0-beta", select("[1.0,2.0)", versions));
+        assertEquals("2.0", select("[1.0,2.0]", versions));
+        assertEquals("3.0", select("(1.0,]", versions));
+        assertEquals("1.5", select("[1.5]", versions));
+        assertNull(select("(1.5,2.0-beta)", versions));
+        assertNull(select("[4.0,)", versions));
+    }
+
+    @Test
+    public void ordinaryVersionsAreNotRanges() {
+        assertNull(VersionRange.parse("1.2.3"));
+        assertNull(VersionRange.parse("[1.0"));
+        assertNull(VersionRange.parse("(1.5)"));
+    }
+}